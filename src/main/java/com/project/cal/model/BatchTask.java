@@ -0,0 +1,43 @@
+package com.project.cal.model;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task evaluating a program for a range of rows.
+ * The range is halved until it is at most grain rows; splits fall on block boundaries,
+ * so every task writes whole blocks into its own slice of the output array.
+ */
+final class BatchTask extends RecursiveAction
+{
+  static final int MIN_GRAIN = 4 * Program.BLOCK;
+
+  private final Program program;
+  private final double[][] columns;
+  private final double[] out;
+  private final int from;
+  private final int to;
+  private final int grain;
+
+  BatchTask(Program program, double[][] columns, double[] out, int from, int to, int grain)
+  {
+    this.program = program;
+    this.columns = columns;
+    this.out = out;
+    this.from = from;
+    this.to = to;
+    this.grain = grain;
+  }
+
+  @Override
+  protected void compute()
+  {
+    int rows = to - from;
+    if (rows <= grain || rows <= Program.BLOCK) program.run(columns, out, from, to);
+    else
+    {
+      int middle = from + (rows / 2 + Program.BLOCK - 1) / Program.BLOCK * Program.BLOCK;
+      invokeAll(new BatchTask(program, columns, out, from, middle, grain),
+                new BatchTask(program, columns, out, middle, to, grain));
+    }
+  }
+}
@@ -0,0 +1,361 @@
+package com.project.cal.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses many expression texts in parallel, such as the formulas of a store being reloaded.
+ * The texts are taken in chunks on the calling thread and each chunk is parsed by a fork/join task, with a few
+ * chunks per thread of the pool pending at a time, as by {@link BulkValidator}. The parsed expressions and the
+ * errors are returned in the order of the texts.
+ * <p>
+ * Everything parsed in one call is interned together: a text repeated in the batch is parsed once and gives
+ * the same expression, and expressions compiling to the same program, or to the same code or constant pool,
+ * share it, as kept by an {@link Interner}. The result reports the throughput, and the speedup over parsing on
+ * one thread, estimated as the processor time the tasks spent parsing divided by the wall-clock time.
+ * A parser is immutable and may be used by several threads at once.
+ */
+public final class BulkParser
+{
+  private static final Logger logger = LoggerFactory.getLogger(BulkParser.class);
+
+  // Texts parsed by a task
+  private static final int CHUNK = 1024;
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final ForkJoinPool pool;
+  private final Set<Expression.Option> options;
+
+  /**
+   * Creates a parser running in the common fork/join pool, simplifying the expressions without options.
+   */
+  public BulkParser()
+  {
+    this(ForkJoinPool.commonPool(), EnumSet.noneOf(Expression.Option.class));
+  }
+
+  /**
+   * @param pool The pool running the tasks
+   * @param options Rewrites allowed in addition to those giving bit-identical results
+   */
+  public BulkParser(ForkJoinPool pool, Set<Expression.Option> options)
+  {
+    this.pool = pool;
+    this.options = options.isEmpty() ? EnumSet.noneOf(Expression.Option.class) : EnumSet.copyOf(options);
+  }
+
+  /**
+   * Parses the texts of a stream, up to its end.
+   * @param texts The texts; text i is item i of the result
+   * @return The expressions and the errors
+   */
+  public Result parse(Stream<? extends CharSequence> texts)
+  {
+    return parse(texts.iterator());
+  }
+
+  /**
+   * Parses the texts of a collection or any iterable.
+   * @param texts The texts; text i is item i of the result
+   * @return The expressions and the errors
+   */
+  public Result parse(Iterable<? extends CharSequence> texts)
+  {
+    return parse(texts.iterator());
+  }
+
+  private Result parse(Iterator<? extends CharSequence> texts)
+  {
+    Collector collector = new Collector();
+    String[] chunk = new String[CHUNK];
+    int size = 0;
+    while (texts.hasNext())
+    {
+      chunk[size++] = texts.next().toString();
+      if (size == CHUNK)
+      {
+        collector.submit(chunk);
+        chunk = new String[CHUNK];
+        size = 0;
+      }
+    }
+    if (size > 0) collector.submit(Arrays.copyOf(chunk, size));
+    return collector.finish();
+  }
+
+  // Submits the chunks in order and merges their results in the same order, with a bounded number pending
+  private final class Collector
+  {
+    private final long start = System.nanoTime();
+    private final Interner interner = new Interner();
+    // the expression, or the message of the error, of each text parsed so far
+    private final ConcurrentHashMap<String, Object> parsed = new ConcurrentHashMap<String, Object>();
+    private final ArrayDeque<ChunkTask> pending = new ArrayDeque<ChunkTask>();
+    private final int window = 2 * pool.getParallelism() + 1;
+    private final ArrayList<Expression> expressions = new ArrayList<Expression>();
+    private final ArrayList<Failure> errors = new ArrayList<Failure>();
+    private long characters;
+    private long parseNanos;
+
+    void submit(String[] texts)
+    {
+      if (pending.size() == window) merge(pending.poll());
+      ChunkTask task = new ChunkTask(texts, options, interner, parsed);
+      pending.add(task);
+      pool.execute(task);
+    }
+
+    private void merge(ChunkTask task)
+    {
+      task.join();
+      characters += task.characters;
+      parseNanos += task.nanos;
+      for (int i = 0; i < task.texts.length; ++i)
+      {
+        Object value = task.values[i];
+        if (value instanceof Expression) expressions.add((Expression)value);
+        else
+        {
+          errors.add(new Failure(expressions.size(), task.texts[i], (String)value));
+          expressions.add(null);
+        }
+      }
+    }
+
+    Result finish()
+    {
+      while (!pending.isEmpty()) merge(pending.poll());
+      Result result = new Result(expressions, errors, characters, expressions.size() - parsed.size(),
+        interner.getSharedPrograms(), interner.getSharedArrays(), System.nanoTime() - start, parseNanos);
+      logger.debug("{}", result);
+      return result;
+    }
+  }
+
+  /**
+   * Fork/join task parsing a chunk of texts, looking each up among those of the batch parsed already.
+   */
+  private static final class ChunkTask extends RecursiveAction
+  {
+    final String[] texts;
+    final Set<Expression.Option> options;
+    final Interner interner;
+    final ConcurrentHashMap<String, Object> parsed;
+    // the expression, or the message of the error, of each text
+    final Object[] values;
+    long characters;
+    long nanos;
+
+    ChunkTask(String[] texts, Set<Expression.Option> options, Interner interner, ConcurrentHashMap<String, Object> parsed)
+    {
+      this.texts = texts;
+      this.options = options;
+      this.interner = interner;
+      this.parsed = parsed;
+      values = new Object[texts.length];
+    }
+
+    @Override
+    protected void compute()
+    {
+      long start = time();
+      for (int i = 0; i < texts.length; ++i)
+      {
+        String text = texts[i];
+        characters += text.length();
+        Object value = parsed.get(text);
+        if (value == null)
+        {
+          try
+          {
+            value = new Expression(text, options, interner);
+          }
+          catch (Exception ex)
+          {
+            value = ex.getMessage();
+          }
+          // another task may have parsed the same text meanwhile; its expression is kept
+          Object existing = parsed.putIfAbsent(text, value);
+          if (existing != null) value = existing;
+        }
+        values[i] = value;
+      }
+      nanos = time() - start;
+    }
+
+    // The processor time of the current thread, which unlike the wall-clock time leaves out the time the thread
+    // waits for a processor, so the sum over the tasks is the time parsing would take on one thread
+    private static long time()
+    {
+      return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+  }
+
+  /**
+   * An illegal text: its index, the text and the message of the error.
+   */
+  public static final class Failure
+  {
+    private final int index;
+    private final String text;
+    private final String message;
+
+    Failure(int index, String text, String message)
+    {
+      this.index = index;
+      this.text = text;
+      this.message = message;
+    }
+
+    /**
+     * @return The index of the text, from 0
+     */
+    public int getIndex()
+    {
+      return index;
+    }
+
+    public String getText()
+    {
+      return text;
+    }
+
+    /**
+     * @return The message of the exception the constructor of Expression throws for the text
+     */
+    public String getMessage()
+    {
+      return message;
+    }
+
+    public String toString()
+    {
+      return "Text " + index + ": " + message;
+    }
+  }
+
+  /**
+   * The expressions parsed, the errors, what was shared and the time it took.
+   */
+  public static final class Result
+  {
+    private final List<Expression> expressions;
+    private final List<Failure> errors;
+    private final long characters;
+    private final long duplicates;
+    private final long sharedPrograms;
+    private final long sharedArrays;
+    private final long nanos;
+    private final long parseNanos;
+
+    Result(List<Expression> expressions, List<Failure> errors, long characters, long duplicates, long sharedPrograms,
+      long sharedArrays, long nanos, long parseNanos)
+    {
+      this.expressions = Collections.unmodifiableList(expressions);
+      this.errors = Collections.unmodifiableList(errors);
+      this.characters = characters;
+      this.duplicates = duplicates;
+      this.sharedPrograms = sharedPrograms;
+      this.sharedArrays = sharedArrays;
+      this.nanos = Math.max(1, nanos);
+      this.parseNanos = parseNanos;
+    }
+
+    /**
+     * @return The expression of each text, in the order of the texts, null for an illegal text
+     */
+    public List<Expression> getExpressions()
+    {
+      return expressions;
+    }
+
+    /**
+     * @return The illegal texts, in the order of the texts
+     */
+    public List<Failure> getErrors()
+    {
+      return errors;
+    }
+
+    /**
+     * @return The number of texts
+     */
+    public int getCount()
+    {
+      return expressions.size();
+    }
+
+    public long getCharacters()
+    {
+      return characters;
+    }
+
+    /**
+     * @return The number of texts that were repeats of an earlier text, and were not parsed again
+     */
+    public long getDuplicateCount()
+    {
+      return duplicates;
+    }
+
+    /**
+     * @return The number of expressions whose program was that of an expression parsed before
+     */
+    public long getSharedProgramCount()
+    {
+      return sharedPrograms;
+    }
+
+    /**
+     * @return The number of code arrays and constant pools that were those of a program parsed before
+     */
+    public long getSharedArrayCount()
+    {
+      return sharedArrays;
+    }
+
+    /**
+     * @return The wall-clock time of the parse in nanoseconds, taking the texts included
+     */
+    public long getNanos()
+    {
+      return nanos;
+    }
+
+    /**
+     * @return The processor time the tasks spent parsing in nanoseconds, about the time of parsing on one thread
+     */
+    public long getParseNanos()
+    {
+      return parseNanos;
+    }
+
+    public double getTextsPerSecond()
+    {
+      return getCount() * 1e9 / nanos;
+    }
+
+    /**
+     * @return The time parsing would take on one thread divided by the wall-clock time
+     */
+    public double getSpeedup()
+    {
+      return (double)parseNanos / nanos;
+    }
+
+    public String toString()
+    {
+      return String.format("%d texts, %d illegal, %d repeated, %d programs and %d arrays shared, in %.1f ms, "
+        + "%.0f texts/s, speedup %.2f", getCount(), errors.size(), duplicates, sharedPrograms, sharedArrays,
+        nanos / 1e6, getTextsPerSecond(), getSpeedup());
+    }
+  }
+}
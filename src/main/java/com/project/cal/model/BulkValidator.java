@@ -0,0 +1,294 @@
+package com.project.cal.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the syntax of many expression texts in parallel, such as the formulas of an import file, one per line.
+ * The texts are validated as by {@link Expression#validate(CharSequence)}: no expression is built and no exception
+ * is created for an illegal text. Lines are read in chunks on the calling thread and each chunk is validated
+ * by a fork/join task; only a few chunks per thread of the pool are pending at a time, so the memory used does not
+ * grow with the input. The report holds the counts, the first errors in the order of the lines, and the throughput.
+ * A validator is immutable and may be used by several threads at once.
+ */
+public final class BulkValidator
+{
+  private static final Logger logger = LoggerFactory.getLogger(BulkValidator.class);
+
+  // Texts validated by a task
+  private static final int CHUNK = 2048;
+
+  private final ForkJoinPool pool;
+  private final int maxErrors;
+
+  /**
+   * Creates a validator running in the common fork/join pool and reporting the first 1000 errors.
+   */
+  public BulkValidator()
+  {
+    this(ForkJoinPool.commonPool(), 1000);
+  }
+
+  /**
+   * @param pool The pool running the tasks
+   * @param maxErrors The number of errors kept in the report; all of them are counted
+   */
+  public BulkValidator(ForkJoinPool pool, int maxErrors)
+  {
+    if (maxErrors < 0) throw new IllegalArgumentException("Illegal error count " + maxErrors);
+    this.pool = pool;
+    this.maxErrors = maxErrors;
+  }
+
+  /**
+   * Validates every line of a UTF-8 file.
+   * @param file The texts, one per line
+   * @return The report, where line numbers start at 1
+   * @throws IOException If the file can not be read
+   */
+  public Report validate(Path file) throws IOException
+  {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+    {
+      return validate(reader);
+    }
+  }
+
+  /**
+   * Validates every line read from a reader, up to its end. The reader is not closed.
+   * @param reader The texts, one per line
+   * @return The report, where line numbers start at 1
+   * @throws IOException If the reader fails
+   */
+  public Report validate(BufferedReader reader) throws IOException
+  {
+    Collector collector = new Collector();
+    ArrayList<String> chunk = new ArrayList<String>(CHUNK);
+    for (String line = reader.readLine(); line != null; line = reader.readLine())
+    {
+      chunk.add(line);
+      if (chunk.size() == CHUNK)
+      {
+        collector.submit(chunk);
+        chunk = new ArrayList<String>(CHUNK);
+      }
+    }
+    if (!chunk.isEmpty()) collector.submit(chunk);
+    return collector.finish();
+  }
+
+  /**
+   * Validates a list of texts.
+   * @param texts The texts; text i is reported at line i + 1
+   * @return The report
+   */
+  public Report validate(List<? extends CharSequence> texts)
+  {
+    Collector collector = new Collector();
+    for (int i = 0; i < texts.size(); i += CHUNK) collector.submit(texts.subList(i, Math.min(texts.size(), i + CHUNK)));
+    return collector.finish();
+  }
+
+  // Submits the chunks in order and merges their results in the same order, with a bounded number pending
+  private final class Collector
+  {
+    private final long start = System.nanoTime();
+    private final ArrayDeque<ChunkTask> pending = new ArrayDeque<ChunkTask>();
+    private final int window = 2 * pool.getParallelism() + 1;
+    private final ArrayList<Failure> errors = new ArrayList<Failure>();
+    private long count;
+    private long invalid;
+    private long characters;
+
+    void submit(List<? extends CharSequence> texts)
+    {
+      if (pending.size() == window) merge(pending.poll());
+      ChunkTask task = new ChunkTask(texts, count + 1);
+      count += texts.size();
+      pending.add(task);
+      pool.execute(task);
+    }
+
+    private void merge(ChunkTask task)
+    {
+      task.join();
+      characters += task.characters;
+      invalid += task.invalid;
+      for (int i = 0; i < task.invalid && errors.size() < maxErrors; ++i)
+      {
+        int index = task.indexes[i];
+        errors.add(new Failure(task.first + index, task.texts.get(index).toString(), task.validations[i]));
+      }
+    }
+
+    Report finish()
+    {
+      while (!pending.isEmpty()) merge(pending.poll());
+      Report report = new Report(count, invalid, characters, errors, System.nanoTime() - start);
+      logger.debug("{}", report);
+      return report;
+    }
+  }
+
+  /**
+   * Fork/join task validating a chunk of texts, keeping the index and validation of each illegal one.
+   */
+  private static final class ChunkTask extends RecursiveAction
+  {
+    final List<? extends CharSequence> texts;
+    final long first;
+    int invalid;
+    int[] indexes;
+    Validation[] validations;
+    long characters;
+
+    ChunkTask(List<? extends CharSequence> texts, long first)
+    {
+      this.texts = texts;
+      this.first = first;
+    }
+
+    @Override
+    protected void compute()
+    {
+      for (int i = 0; i < texts.size(); ++i)
+      {
+        CharSequence text = texts.get(i);
+        characters += text.length();
+        Validation validation = Validation.of(text);
+        if (validation.isValid()) continue;
+        if (validations == null || invalid == validations.length)
+        {
+          int size = invalid == 0 ? 16 : 2 * invalid;
+          indexes = invalid == 0 ? new int[size] : Arrays.copyOf(indexes, size);
+          validations = invalid == 0 ? new Validation[size] : Arrays.copyOf(validations, size);
+        }
+        indexes[invalid] = i;
+        validations[invalid++] = validation;
+      }
+    }
+  }
+
+  /**
+   * An illegal text: its line, the text and the first error in it.
+   */
+  public static final class Failure
+  {
+    private final long line;
+    private final String text;
+    private final Validation validation;
+
+    Failure(long line, String text, Validation validation)
+    {
+      this.line = line;
+      this.text = text;
+      this.validation = validation;
+    }
+
+    public long getLine()
+    {
+      return line;
+    }
+
+    public String getText()
+    {
+      return text;
+    }
+
+    public Validation getValidation()
+    {
+      return validation;
+    }
+
+    public String toString()
+    {
+      return "Line " + line + ": " + validation.getMessage();
+    }
+  }
+
+  /**
+   * The texts validated, the illegal ones and the time it took.
+   */
+  public static final class Report
+  {
+    private final long count;
+    private final long invalid;
+    private final long characters;
+    private final List<Failure> errors;
+    private final long nanos;
+
+    Report(long count, long invalid, long characters, List<Failure> errors, long nanos)
+    {
+      this.count = count;
+      this.invalid = invalid;
+      this.characters = characters;
+      this.errors = Collections.unmodifiableList(errors);
+      this.nanos = Math.max(1, nanos);
+    }
+
+    /**
+     * @return The number of texts validated
+     */
+    public long getCount()
+    {
+      return count;
+    }
+
+    /**
+     * @return The number of illegal texts
+     */
+    public long getInvalidCount()
+    {
+      return invalid;
+    }
+
+    public long getCharacters()
+    {
+      return characters;
+    }
+
+    /**
+     * @return The first illegal texts, in the order of the lines, up to the maximum of the validator
+     */
+    public List<Failure> getErrors()
+    {
+      return errors;
+    }
+
+    /**
+     * @return The time of the validation in nanoseconds, reading included
+     */
+    public long getNanos()
+    {
+      return nanos;
+    }
+
+    public double getTextsPerSecond()
+    {
+      return count * 1e9 / nanos;
+    }
+
+    /**
+     * @return Millions of characters validated per second
+     */
+    public double getMegacharactersPerSecond()
+    {
+      return characters * 1e3 / nanos;
+    }
+
+    public String toString()
+    {
+      return String.format("%d texts, %d illegal, in %.1f ms, %.0f texts/s, %.1f M characters/s", count, invalid,
+        nanos / 1e6, getTextsPerSecond(), getMegacharactersPerSecond());
+    }
+  }
+}
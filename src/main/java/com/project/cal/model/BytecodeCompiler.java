@@ -0,0 +1,433 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates a program into a JVM class implementing {@link Evaluator}.
+ * The class file is written directly, so no library beyond the JDK is needed. It uses class file
+ * version 49, which is verified by type inference and therefore needs no stack map frames.
+ * Every class is defined by its own class loader and can be unloaded as soon as the evaluator is dropped.
+ */
+final class BytecodeCompiler
+{
+  // The JIT does not compile methods with more bytecode than this (-XX:-DontCompileHugeMethods)
+  private static final int maxCodeLength = 8000;
+  private static final String evaluator = Evaluator.class.getName().replace('.', '/');
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  private final Program program;
+  private final ArrayList<byte[]> pool = new ArrayList<byte[]>();
+  private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+  private int poolSize = 1;
+  private final Code code = new Code();
+
+  private BytecodeCompiler(Program program)
+  {
+    this.program = program;
+  }
+
+  /**
+   * @return A generated evaluator, or null if the program is too large to profit from compilation
+   */
+  static Evaluator compile(Program program)
+  {
+    BytecodeCompiler compiler = new BytecodeCompiler(program);
+    String name = nextName();
+    byte[] bytes = compiler.toClass(name);
+    if (bytes == null) return null;
+    try
+    {
+      Class<?> type = new Loader(Evaluator.class.getClassLoader()).define(name.replace('/', '.'), bytes);
+      return (Evaluator)type.getConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException ex)
+    {
+      throw new IllegalStateException("Compilation of expression failed", ex);
+    }
+  }
+
+  private static String nextName()
+  {
+    return "com/project/cal/model/CompiledExpression" + counter.incrementAndGet();
+  }
+
+  private byte[] toClass(String name)
+  {
+    if (!emit()) return null;
+    int thisClass = classRef(name);
+    int superClass = classRef("java/lang/Object");
+    int iface = classRef(evaluator);
+    int init = utf8("<init>");
+    int initType = utf8("()V");
+    int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+    int eval = utf8("eval");
+    int evalType = utf8("([D)D");
+    int codeName = utf8("Code");
+
+    Code file = new Code();
+    file.u4(0xCAFEBABE);
+    file.u2(0);
+    file.u2(49);
+    file.u2(poolSize);
+    for (byte[] entry : pool) file.bytes(entry);
+    file.u2(0x0031);                       // public final super
+    file.u2(thisClass);
+    file.u2(superClass);
+    file.u2(1);
+    file.u2(iface);
+    file.u2(0);                            // fields
+    file.u2(2);                            // methods
+    // public <init>() { super(); }
+    file.u2(0x0001);
+    file.u2(init);
+    file.u2(initType);
+    file.u2(1);
+    file.u2(codeName);
+    file.u4(12 + 5);
+    file.u2(1);
+    file.u2(1);
+    file.u4(5);
+    file.u1(0x2a);                         // aload_0
+    file.u1(0xb7);                         // invokespecial
+    file.u2(objectInit);
+    file.u1(0xb1);                         // return
+    file.u2(0);
+    file.u2(0);
+    // public double eval(double[] args)
+    file.u2(0x0001);
+    file.u2(eval);
+    file.u2(evalType);
+    file.u2(1);
+    file.u2(codeName);
+    file.u4(12 + code.length());
+    file.u2(2 * program.maxStack + 4);
+    file.u2(8 + 2 * program.slots);
+    file.u4(code.length());
+    file.bytes(code.toArray());
+    file.u2(0);
+    file.u2(0);
+    file.u2(0);                            // class attributes
+    return file.toArray();
+  }
+
+  // Emits the body of eval. Locals: 0 this, 1 args, 2-7 work area of the factorial function, 8- slots.
+  private boolean emit()
+  {
+    if (8 + 2 * program.slots > 0xFFFF) return false;
+    // the bytecode offset of each instruction, and the branches to patch with them
+    int[] offsets = new int[program.code.length + 1];
+    ArrayList<int[]> branches = new ArrayList<int[]>();
+    for (int pc = 0; pc < program.code.length; ++pc)
+    {
+      int ins = program.code[pc];
+      int operand = Program.operand(ins);
+      offsets[pc] = code.length();
+      switch (Program.opcode(ins))
+      {
+        case Program.CONST: constant(program.consts[operand]); break;
+        case Program.STORE:
+          code.u1(0x5c);                   // dup2
+          local(0x39, 8 + 2 * operand);    // dstore
+          break;
+        case Program.LOAD: local(0x18, 8 + 2 * operand); break;     // dload
+        case Program.VAR:
+          code.u1(0x2b);                   // aload_1
+          integer(operand);
+          code.u1(0x31);                   // daload
+          break;
+        case Program.ADD: code.u1(0x63); break;
+        case Program.SUB: code.u1(0x67); break;
+        case Program.MUL: code.u1(0x6b); break;
+        case Program.DIV: code.u1(0x6f); break;
+        case Program.NEG: code.u1(0x77); break;
+        case Program.LN: math("log", "(D)D"); break;
+        case Program.EXP: math("exp", "(D)D"); break;
+        case Program.LOG: math("log10", "(D)D"); break;
+        case Program.SQR:
+          code.u1(0x5c);                   // dup2
+          code.u1(0x6b);                   // dmul
+          break;
+        case Program.SQRT: math("sqrt", "(D)D"); break;
+        case Program.ABS: math("abs", "(D)D"); break;
+        case Program.POW: math("pow", "(DD)D"); break;
+        case Program.FACT: factorial(); break;
+        case Program.LT: compare(0x98, 0x9c); break;                   // dcmpg, ifge
+        case Program.LE: compare(0x98, 0x9d); break;                   // dcmpg, ifgt
+        case Program.GT: compare(0x97, 0x9e); break;                   // dcmpl, ifle
+        case Program.GE: compare(0x97, 0x9b); break;                   // dcmpl, iflt
+        case Program.EQ: compare(0x97, 0x9a); break;                   // dcmpl, ifne
+        case Program.NE: compare(0x97, 0x99); break;                   // dcmpl, ifeq
+        case Program.MIN: math("min", "(DD)D"); break;
+        case Program.MAX: math("max", "(DD)D"); break;
+        case Program.BOOL:
+          math("abs", "(D)D");
+          code.u1(0x0e);                   // dconst_0
+          compare(0x97, 0x9e);             // dcmpl, ifle
+          break;
+        case Program.JUMP:
+          branches.add(new int[] { code.length(), operand });
+          code.u1(0xa7); code.u2(0);       // goto
+          break;
+        case Program.JUMP_FALSE:
+          // |x| > 0 is false for 0 and NaN
+          math("abs", "(D)D");
+          code.u1(0x0e);                   // dconst_0
+          code.u1(0x97);                   // dcmpl
+          branches.add(new int[] { code.length(), operand });
+          code.u1(0x9e); code.u2(0);       // ifle
+          break;
+        default: return false;
+      }
+      if (code.length() > maxCodeLength) return false;
+    }
+    offsets[program.code.length] = code.length();
+    for (int[] branch : branches) code.patch(branch[0], offsets[branch[1]] - branch[0]);
+    code.u1(0xaf);                         // dreturn
+    return true;
+  }
+
+  // Compares the two values on the stack to 1 or 0: jumps to 0 on the negation of the comparison
+  private void compare(int cmp, int negation)
+  {
+    code.u1(cmp);
+    int no = code.length();
+    code.u1(negation); code.u2(0);
+    code.u1(0x0f);                         // dconst_1
+    int exit = code.length();
+    code.u1(0xa7); code.u2(0);             // goto end
+    code.patch(no, code.length() - no);
+    code.u1(0x0e);                         // dconst_0
+    code.patch(exit, code.length() - exit);
+  }
+
+  private void constant(double value)
+  {
+    if (Double.doubleToLongBits(value) == 0L) code.u1(0x0e);                // dconst_0
+    else if (value == 1.0) code.u1(0x0f);                                    // dconst_1
+    else
+    {
+      code.u1(0x14);                                                         // ldc2_w
+      code.u2(doubleConst(value));
+    }
+  }
+
+  private void local(int opcode, int index)
+  {
+    if (index > 255)
+    {
+      code.u1(0xc4);                                                         // wide
+      code.u1(opcode);
+      code.u2(index);
+    }
+    else
+    {
+      code.u1(opcode);
+      code.u1(index);
+    }
+  }
+
+  private void integer(int value)
+  {
+    if (value <= 5) code.u1(0x03 + value);                                   // iconst_<n>
+    else if (value <= Byte.MAX_VALUE)
+    {
+      code.u1(0x10);                                                         // bipush
+      code.u1(value);
+    }
+    else if (value <= Short.MAX_VALUE)
+    {
+      code.u1(0x11);                                                         // sipush
+      code.u2(value);
+    }
+    else
+    {
+      code.u1(0x13);                                                         // ldc_w
+      code.u2(intConst(value));
+    }
+  }
+
+  private void math(String name, String type)
+  {
+    code.u1(0xb8);                                                           // invokestatic
+    code.u2(methodRef("java/lang/Math", name, type));
+  }
+
+  // x < 0 ? NaN : x >= 171 ? Infinity : 1.0 * 2 * 3 * ... * (int)x
+  private void factorial()
+  {
+    code.u1(0x39); code.u1(2);             // dstore x
+    code.u1(0x18); code.u1(2);             // dload x
+    code.u1(0x0e);                         // dconst_0
+    code.u1(0x98);                         // dcmpg
+    int negative = code.length();
+    code.u1(0x9c); code.u2(0);             // ifge positive
+    code.u1(0x14); code.u2(doubleConst(Double.NaN));
+    int exit = code.length();
+    code.u1(0xa7); code.u2(0);             // goto end
+    code.patch(negative, code.length() - negative);
+    code.u1(0x18); code.u1(2);             // dload x
+    code.u1(0x14); code.u2(doubleConst(Program.MAX_FACTORIAL + 1));
+    code.u1(0x97);                         // dcmpl
+    int small = code.length();
+    code.u1(0x9b); code.u2(0);             // iflt small
+    code.u1(0x14); code.u2(doubleConst(Double.POSITIVE_INFINITY));
+    int overflow = code.length();
+    code.u1(0xa7); code.u2(0);             // goto end
+    code.patch(small, code.length() - small);
+    code.u1(0x18); code.u1(2);             // dload x
+    code.u1(0x8e);                         // d2i
+    code.u1(0x36); code.u1(4);             // istore n
+    code.u1(0x0f);                         // dconst_1
+    code.u1(0x39); code.u1(5);             // dstore u
+    code.u1(0x05);                         // iconst_2
+    code.u1(0x36); code.u1(7);             // istore i
+    int loop = code.length();
+    code.u1(0x15); code.u1(7);             // iload i
+    code.u1(0x15); code.u1(4);             // iload n
+    int done = code.length();
+    code.u1(0xa3); code.u2(0);             // if_icmpgt done
+    code.u1(0x18); code.u1(5);             // dload u
+    code.u1(0x15); code.u1(7);             // iload i
+    code.u1(0x87);                         // i2d
+    code.u1(0x6b);                         // dmul
+    code.u1(0x39); code.u1(5);             // dstore u
+    code.u1(0x84); code.u1(7); code.u1(1); // iinc i 1
+    int back = code.length();
+    code.u1(0xa7); code.u2(loop - back);   // goto loop
+    code.patch(done, code.length() - done);
+    code.u1(0x18); code.u1(5);             // dload u
+    code.patch(exit, code.length() - exit);
+    code.patch(overflow, code.length() - overflow);
+  }
+
+  private int utf8(String text)
+  {
+    Code entry = new Code();
+    entry.u1(1);
+    entry.utf(text);
+    return add("U" + text, entry, 1);
+  }
+
+  private int classRef(String name)
+  {
+    int utf = utf8(name);
+    Code entry = new Code();
+    entry.u1(7);
+    entry.u2(utf);
+    return add("C" + name, entry, 1);
+  }
+
+  private int methodRef(String owner, String name, String type)
+  {
+    int cls = classRef(owner);
+    int nameUtf = utf8(name);
+    int typeUtf = utf8(type);
+    Code nameAndType = new Code();
+    nameAndType.u1(12);
+    nameAndType.u2(nameUtf);
+    nameAndType.u2(typeUtf);
+    int nat = add("N" + name + type, nameAndType, 1);
+    Code entry = new Code();
+    entry.u1(10);
+    entry.u2(cls);
+    entry.u2(nat);
+    return add("M" + owner + "." + name + type, entry, 1);
+  }
+
+  private int doubleConst(double value)
+  {
+    long bits = Double.doubleToRawLongBits(value);
+    Code entry = new Code();
+    entry.u1(6);
+    entry.u4((int)(bits >>> 32));
+    entry.u4((int)bits);
+    return add("D" + bits, entry, 2);
+  }
+
+  private int intConst(int value)
+  {
+    Code entry = new Code();
+    entry.u1(3);
+    entry.u4(value);
+    return add("I" + value, entry, 1);
+  }
+
+  private int add(String key, Code entry, int slots)
+  {
+    Integer index = poolIndex.get(key);
+    if (index != null) return index;
+    pool.add(entry.toArray());
+    poolIndex.put(key, poolSize);
+    poolSize += slots;
+    return poolSize - slots;
+  }
+
+  // Growable byte buffer with big endian writes as used in class files.
+  private static final class Code
+  {
+    private byte[] bytes = new byte[256];
+    private int length;
+
+    int length()
+    {
+      return length;
+    }
+
+    void u1(int value)
+    {
+      if (length == bytes.length) bytes = Arrays.copyOf(bytes, 2 * length);
+      bytes[length++] = (byte)value;
+    }
+
+    void u2(int value)
+    {
+      u1(value >>> 8);
+      u1(value);
+    }
+
+    void u4(int value)
+    {
+      u2(value >>> 16);
+      u2(value);
+    }
+
+    void bytes(byte[] values)
+    {
+      for (byte b : values) u1(b);
+    }
+
+    void utf(String text)
+    {
+      byte[] data = text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      u2(data.length);
+      bytes(data);
+    }
+
+    // Sets the 16 bit branch offset of the jump instruction at position pc.
+    void patch(int pc, int offset)
+    {
+      bytes[pc + 1] = (byte)(offset >>> 8);
+      bytes[pc + 2] = (byte)offset;
+    }
+
+    byte[] toArray()
+    {
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+
+  // One loader per generated class, so the class is unloaded together with its evaluator.
+  private static final class Loader extends ClassLoader
+  {
+    Loader(ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] bytes)
+    {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.project.cal.model;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Source of the variable values in batch evaluation, read one block of rows at a time.
+ * The values need not be in heap arrays: a buffer source reads them where they are,
+ * for instance from a memory-mapped file, with an offset and a stride for each variable.
+ */
+interface Columns
+{
+  /**
+   * Copies the values of a variable for n rows to the start of block.
+   * @param var Index of the variable
+   * @param row First row
+   * @param block Receives the values
+   * @param n Number of rows
+   */
+  void read(int var, int row, double[] block, int n);
+
+  /**
+   * @return Columns reading the values of variable Xi from columns[i]
+   */
+  static Columns of(double[][] columns)
+  {
+    return (var, row, block, n) -> System.arraycopy(columns[var], row, block, 0, n);
+  }
+
+  /**
+   * @return Columns reading the value of variable Xi in row r from buffers[i] at offsets[i] + r * strides[i]
+   */
+  static Columns of(DoubleBuffer[] buffers, int[] offsets, int[] strides)
+  {
+    return (var, row, block, n) ->
+    {
+      DoubleBuffer buffer = buffers[var];
+      int stride = strides[var];
+      int index = offsets[var] + row * stride;
+      for (int i = 0; i < n; ++i, index += stride) block[i] = buffer.get(index);
+    };
+  }
+}
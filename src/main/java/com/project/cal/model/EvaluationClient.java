@@ -0,0 +1,208 @@
+package com.project.cal.model;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of an {@link EvaluationServer} on the same machine. Requests are sent at once and answered
+ * through futures, so any number may be outstanding. The client may be used by several threads at once.
+ */
+public final class EvaluationClient implements Closeable
+{
+  private final Socket socket;
+  private final DataOutputStream out;
+  // the futures of the requests not yet answered, by id
+  private final ConcurrentHashMap<Integer, CompletableFuture<?>> outstanding = new ConcurrentHashMap<Integer, CompletableFuture<?>>();
+  // the ids of the outstanding definitions, answered by a handle instead of values
+  private final ConcurrentHashMap<Integer, CompletableFuture<Integer>> definitions = new ConcurrentHashMap<Integer, CompletableFuture<Integer>>();
+  private final AtomicInteger ids = new AtomicInteger();
+  private final Thread reader;
+  private final byte[] bytes = new byte[8192];
+
+  /**
+   * Connects to a server on the loopback address.
+   * @param port The port of the server
+   * @throws IOException If the server can not be reached
+   */
+  public EvaluationClient(int port) throws IOException
+  {
+    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    socket.setTcpNoDelay(true);
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    reader = new Thread(this::read, "cal-client-" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Defines an expression on the server.
+   * @param text The expression on infix form
+   * @return The handle of the expression, or an exception if the text is not a legal expression
+   */
+  public CompletableFuture<Integer> define(String text)
+  {
+    CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+    int id = ids.getAndIncrement();
+    definitions.put(id, future);
+    register(id, future);
+    synchronized (out)
+    {
+      try
+      {
+        out.writeInt(id);
+        out.writeByte(EvaluationServer.DEFINE);
+        out.writeUTF(text);
+        out.flush();
+      }
+      catch (IOException ex)
+      {
+        fail(id, ex);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Evaluates a defined expression for rows of arguments.
+   * @param handle The handle returned by define
+   * @param columns The number of values in a row
+   * @param values The arguments row after row; variable Xi of row r at r * columns + i
+   * @return The value of row r at index r, NaN where a function gets an illegal argument
+   */
+  public CompletableFuture<double[]> evaluate(int handle, int columns, double[] values)
+  {
+    return evaluate(handle, null, columns, values);
+  }
+
+  /**
+   * Evaluates an expression for rows of arguments, parsing it on the server unless it is in the server's cache.
+   * @see #evaluate(int, int, double[])
+   */
+  public CompletableFuture<double[]> evaluate(String text, int columns, double[] values)
+  {
+    return evaluate(-1, text, columns, values);
+  }
+
+  private CompletableFuture<double[]> evaluate(int handle, String text, int columns, double[] values)
+  {
+    if (columns < 1 || values.length % columns != 0) throw new IllegalArgumentException("Not a whole number of rows");
+    if (values.length > EvaluationServer.MAX_VALUES) throw new IllegalArgumentException("Too many values");
+    CompletableFuture<double[]> future = new CompletableFuture<double[]>();
+    int id = ids.getAndIncrement();
+    register(id, future);
+    synchronized (out)
+    {
+      try
+      {
+        out.writeInt(id);
+        if (text == null)
+        {
+          out.writeByte(EvaluationServer.EVALUATE);
+          out.writeInt(handle);
+        }
+        else
+        {
+          out.writeByte(EvaluationServer.EVALUATE_TEXT);
+          out.writeUTF(text);
+        }
+        out.writeInt(values.length / columns);
+        out.writeInt(columns);
+        for (int i = 0; i < values.length; )
+        {
+          int m = Math.min(values.length - i, bytes.length / 8);
+          ByteBuffer.wrap(bytes, 0, 8 * m).asDoubleBuffer().put(values, i, m);
+          out.write(bytes, 0, 8 * m);
+          i += m;
+        }
+        out.flush();
+      }
+      catch (IOException ex)
+      {
+        fail(id, ex);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * @return The number of requests sent and not yet answered
+   */
+  public int getOutstanding()
+  {
+    return outstanding.size();
+  }
+
+  /**
+   * Closes the connection. Outstanding requests complete with an exception.
+   */
+  public void close() throws IOException
+  {
+    socket.close();
+  }
+
+  private void register(int id, CompletableFuture<?> future)
+  {
+    outstanding.put(id, future);
+    if (socket.isClosed() || !reader.isAlive()) fail(id, new IOException("Connection closed"));
+  }
+
+  private void fail(int id, Throwable cause)
+  {
+    definitions.remove(id);
+    CompletableFuture<?> future = outstanding.remove(id);
+    if (future != null) future.completeExceptionally(cause);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void read()
+  {
+    byte[] buffer = new byte[8192];
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)))
+    {
+      while (true)
+      {
+        int id = in.readInt();
+        byte status = in.readByte();
+        CompletableFuture<Integer> definition = definitions.remove(id);
+        CompletableFuture<?> future = outstanding.remove(id);
+        if (future == null) throw new IOException("Response to unknown request " + id);
+        if (status == EvaluationServer.ERROR)
+        {
+          future.completeExceptionally(new Exception(in.readUTF()));
+          continue;
+        }
+        int n = in.readInt();
+        if (definition != null)
+        {
+          definition.complete(n);
+          continue;
+        }
+        double[] values = new double[n];
+        for (int i = 0; i < n; )
+        {
+          int m = Math.min(n - i, buffer.length / 8);
+          in.readFully(buffer, 0, 8 * m);
+          ByteBuffer.wrap(buffer, 0, 8 * m).asDoubleBuffer().get(values, i, m);
+          i += m;
+        }
+        ((CompletableFuture<double[]>)future).complete(values);
+      }
+    }
+    catch (IOException ex)
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+      }
+      for (Integer id : outstanding.keySet()) fail(id, ex);
+    }
+  }
+}
@@ -0,0 +1,538 @@
+package com.project.cal.model;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server evaluating expressions for other processes on the same machine, over a binary protocol on a loopback socket.
+ * <p>
+ * A client sends requests without waiting for the responses, and matches each response to its request by the id
+ * it chose. All numbers are big-endian and texts are written as by DataOutput.writeUTF. A request is
+ * <pre>
+ *   int id, byte DEFINE, text                                            - response: int handle
+ *   int id, byte EVALUATE, int handle, int rows, int columns, doubles   - response: int rows, doubles
+ *   int id, byte EVALUATE_TEXT, text, int rows, int columns, doubles    - response: int rows, doubles
+ * </pre>
+ * where the doubles are the arguments row after row, and the response is int id, byte OK, followed by the result,
+ * or int id, byte ERROR, text with the reason. A handle names a defined expression for all the clients of the server.
+ * <p>
+ * Texts are parsed through an expression cache. Requests for the same expression that arrive while earlier ones
+ * are waiting or being evaluated are joined into one batch, evaluated in one call, on a fixed pool of threads.
+ * At most maxPending requests are accepted and not yet answered; beyond that the server stops reading from
+ * the connections, so clients sending too fast are held back by their socket buffers.
+ * <p>
+ * The responses of a connection are queued and written by a thread of its own, so an evaluation never waits
+ * for a client. A client that does not read its responses holds back only itself: once MAX_QUEUED bytes are
+ * waiting for it, the server stops reading its requests.
+ */
+public final class EvaluationServer implements Closeable
+{
+  static final byte DEFINE = 1;
+  static final byte EVALUATE = 2;
+  static final byte EVALUATE_TEXT = 3;
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+  // Largest number of doubles in a request
+  static final int MAX_VALUES = 1 << 24;
+
+  private static final Logger logger = LoggerFactory.getLogger(EvaluationServer.class);
+
+  // Largest number of rows evaluated in one batch
+  private static final int MAX_BATCH = 1 << 16;
+  private static final int MAX_HANDLES = 1 << 16;
+  // Bytes of responses waiting for a client beyond which its requests are no longer read
+  private static final int MAX_QUEUED = 1 << 22;
+
+  private final ServerSocket socket;
+  private final ExpressionCache cache;
+  private final ThreadPoolExecutor executor;
+  private final Semaphore pending;
+  private final ConcurrentHashMap<Expression, Batch> batches = new ConcurrentHashMap<Expression, Batch>();
+  private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+  private final CopyOnWriteArrayList<Expression> defined = new CopyOnWriteArrayList<Expression>();
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final Thread acceptor;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder evaluations = new LongAdder();
+  private volatile boolean closed;
+
+  /**
+   * Starts a server on the loopback address.
+   * @param port The port, 0 for any free port
+   * @param threads The number of threads evaluating expressions
+   * @param maxPending The largest number of requests accepted and not yet answered
+   * @throws IOException If the port can not be bound
+   */
+  public EvaluationServer(int port, int threads, int maxPending) throws IOException
+  {
+    this(port, threads, maxPending, Expression.getCache());
+  }
+
+  /**
+   * Starts a server on the loopback address, parsing texts through the given cache.
+   * @see #EvaluationServer(int, int, int)
+   */
+  public EvaluationServer(int port, int threads, int maxPending, ExpressionCache cache) throws IOException
+  {
+    if (threads < 1) throw new IllegalArgumentException("Illegal thread count " + threads);
+    if (maxPending < 1) throw new IllegalArgumentException("Illegal pending count " + maxPending);
+    this.cache = cache;
+    this.pending = new Semaphore(maxPending);
+    // a batch is queued only when a request is added to it and is not queued again until it has run out of
+    // requests, so every queued batch holds a pending request and the queue never rejects a task
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(maxPending + threads), daemon("cal-evaluator"));
+    this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.acceptor = daemon("cal-acceptor").newThread(this::accept);
+    acceptor.start();
+    logger.debug("Listening on port {}", getPort());
+  }
+
+  /**
+   * @return The port the server listens on
+   */
+  public int getPort()
+  {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * @return The number of requests answered
+   */
+  public long getRequestCount()
+  {
+    return requests.sum();
+  }
+
+  /**
+   * @return The number of batches evaluated; less than the number of evaluation requests when requests were joined
+   */
+  public long getBatchCount()
+  {
+    return evaluations.sum();
+  }
+
+  /**
+   * Stops accepting connections, closes the open ones and stops the evaluation threads.
+   * Requests not yet answered are dropped.
+   */
+  public void close() throws IOException
+  {
+    closed = true;
+    socket.close();
+    for (Connection connection : connections) connection.close();
+    executor.shutdownNow();
+  }
+
+  private void accept()
+  {
+    while (!closed)
+    {
+      try
+      {
+        Connection connection = new Connection(socket.accept());
+        connections.add(connection);
+        daemon("cal-connection").newThread(connection).start();
+        daemon("cal-writer").newThread(connection::send).start();
+      }
+      catch (IOException ex)
+      {
+        if (!closed) logger.warn("Accept failed", ex);
+      }
+    }
+  }
+
+  private static ThreadFactory daemon(String name)
+  {
+    AtomicInteger count = new AtomicInteger();
+    return task ->
+    {
+      Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private int define(String text) throws Exception
+  {
+    Expression expression = cache.get(text);
+    String key = expression.toString();
+    Integer handle = handles.get(key);
+    if (handle != null) return handle;
+    synchronized (defined)
+    {
+      handle = handles.get(key);
+      if (handle != null) return handle;
+      if (defined.size() == MAX_HANDLES) throw new Exception("Too many expressions defined");
+      defined.add(expression);
+      handles.put(key, defined.size() - 1);
+      return defined.size() - 1;
+    }
+  }
+
+  // Called once a request is answered and its response queued
+  private void done()
+  {
+    pending.release();
+  }
+
+  // Adds the request to the batch of its expression, and schedules the batch if it is not already scheduled.
+  private void submit(Request request)
+  {
+    while (true)
+    {
+      Batch batch = batches.computeIfAbsent(request.expression, Batch::new);
+      synchronized (batch)
+      {
+        if (batch.removed) continue;
+        batch.requests.add(request);
+        if (batch.scheduled) return;
+        batch.scheduled = true;
+      }
+      executor.execute(batch);
+      return;
+    }
+  }
+
+  /**
+   * An evaluation request, its arguments row after row.
+   */
+  private static final class Request
+  {
+    final Connection connection;
+    final int id;
+    final Expression expression;
+    final int rows;
+    final int columns;
+    final double[] values;
+
+    Request(Connection connection, int id, Expression expression, int rows, int columns, double[] values)
+    {
+      this.connection = connection;
+      this.id = id;
+      this.expression = expression;
+      this.rows = rows;
+      this.columns = columns;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The requests waiting for one expression. A run evaluates the requests queued so far in one call, and again
+   * for those that arrived meanwhile, until none is left; the batch is then removed from the map, and a request
+   * arriving after that starts a new batch.
+   */
+  private final class Batch implements Runnable
+  {
+    final Expression expression;
+    final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+    boolean scheduled;
+    boolean removed;
+
+    Batch(Expression expression)
+    {
+      this.expression = expression;
+    }
+
+    public void run()
+    {
+      while (!closed)
+      {
+        List<Request> taken = new ArrayList<Request>();
+        int rows = 0;
+        synchronized (this)
+        {
+          while (!requests.isEmpty() && (taken.isEmpty() || rows + requests.peek().rows <= MAX_BATCH))
+          {
+            rows += requests.peek().rows;
+            taken.add(requests.poll());
+          }
+          if (taken.isEmpty())
+          {
+            scheduled = false;
+            removed = true;
+            batches.remove(expression, this);
+            return;
+          }
+        }
+        evaluate(taken, rows);
+      }
+    }
+
+    private void evaluate(List<Request> taken, int rows)
+    {
+      int vars = expression.getProgram().vars;
+      double[][] columns = new double[vars][rows];
+      int row = 0;
+      for (Request request : taken)
+      {
+        for (int r = 0; r < request.rows; ++r, ++row)
+          for (int v = 0; v < vars; ++v) columns[v][row] = request.values[r * request.columns + v];
+      }
+      double[] out = new double[rows];
+      try
+      {
+        expression.evaluate(columns, out, 0, rows);
+      }
+      catch (RuntimeException ex)
+      {
+        logger.warn("Evaluation of " + expression + " failed", ex);
+        for (Request request : taken) request.connection.error(request.id, "Evaluation error");
+        return;
+      }
+      evaluations.increment();
+      row = 0;
+      for (Request request : taken)
+      {
+        request.connection.respond(request.id, out, row, request.rows);
+        row += request.rows;
+      }
+    }
+  }
+
+  /**
+   * A client connection. Its thread reads the requests, and the thread running send writes the responses
+   * queued by whichever thread completes them.
+   */
+  private final class Connection implements Runnable
+  {
+    private final Socket socket;
+    private final OutputStream out;
+    private final byte[] bytes = new byte[8192];
+    // the responses not yet written, and their bytes; guarded by responses
+    private final ArrayDeque<byte[]> responses = new ArrayDeque<byte[]>();
+    private long queued;
+    private boolean stopped;
+
+    Connection(Socket socket) throws IOException
+    {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+    }
+
+    public void run()
+    {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)))
+      {
+        while (true)
+        {
+          int id;
+          try
+          {
+            id = in.readInt();
+          }
+          catch (EOFException ex)
+          {
+            break;
+          }
+          byte op = in.readByte();
+          synchronized (responses)
+          {
+            while (queued > MAX_QUEUED)
+            {
+              if (stopped) return;
+              responses.wait();
+            }
+          }
+          while (!pending.tryAcquire(100, TimeUnit.MILLISECONDS))
+            if (closed) return;
+          try
+          {
+            read(in, id, op);
+          }
+          catch (IOException ex)
+          {
+            // the request was neither answered nor handed over, and the connection is closed
+            done();
+            throw ex;
+          }
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch (IOException | RejectedExecutionException ex)
+      {
+        if (!closed && !socket.isClosed()) logger.debug("Connection failed", ex);
+      }
+      finally
+      {
+        close();
+      }
+    }
+
+    // Reads the rest of a request, and answers it or hands it over for evaluation; a malformed or truncated
+    // request throws before either
+    private void read(DataInputStream in, int id, byte op) throws IOException
+    {
+      if (op == DEFINE)
+      {
+        String text = in.readUTF();
+        try
+        {
+          respond(id, define(text));
+        }
+        catch (Exception ex)
+        {
+          error(id, ex.getMessage());
+        }
+        return;
+      }
+      Expression expression = null;
+      String error = null;
+      if (op == EVALUATE)
+      {
+        int handle = in.readInt();
+        if (handle >= 0 && handle < defined.size()) expression = defined.get(handle);
+        else error = "Unknown handle " + handle;
+      }
+      else if (op == EVALUATE_TEXT)
+      {
+        String text = in.readUTF();
+        try
+        {
+          expression = cache.get(text);
+        }
+        catch (Exception ex)
+        {
+          error = ex.getMessage();
+        }
+      }
+      else throw new IOException("Unknown request " + op);
+      int rows = in.readInt();
+      int columns = in.readInt();
+      if (rows < 0 || columns < 0 || (long)rows * columns > MAX_VALUES)
+        throw new IOException("Illegal size " + rows + " x " + columns);
+      double[] values = readDoubles(in, rows * columns);
+      if (error == null && columns < expression.getProgram().vars) error = "Missing argument column";
+      if (error != null) error(id, error);
+      else if (rows == 0) respond(id, values, 0, 0);
+      else submit(new Request(this, id, expression, rows, columns, values));
+    }
+
+    private double[] readDoubles(DataInputStream in, int n) throws IOException
+    {
+      double[] values = new double[n];
+      for (int i = 0; i < n; )
+      {
+        int m = Math.min(n - i, bytes.length / 8);
+        in.readFully(bytes, 0, 8 * m);
+        ByteBuffer.wrap(bytes, 0, 8 * m).asDoubleBuffer().get(values, i, m);
+        i += m;
+      }
+      return values;
+    }
+
+    private void respond(int id, int handle)
+    {
+      queue(ByteBuffer.allocate(9).putInt(id).put(OK).putInt(handle).array());
+    }
+
+    void respond(int id, double[] values, int from, int n)
+    {
+      ByteBuffer buffer = ByteBuffer.allocate(9 + 8 * n).putInt(id).put(OK).putInt(n);
+      buffer.asDoubleBuffer().put(values, from, n);
+      queue(buffer.array());
+    }
+
+    void error(int id, String message)
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream data = new DataOutputStream(bytes))
+      {
+        data.writeInt(id);
+        data.writeByte(ERROR);
+        data.writeUTF(String.valueOf(message));
+      }
+      catch (IOException ex)
+      {
+        // not thrown by a byte array
+      }
+      queue(bytes.toByteArray());
+    }
+
+    // Hands a response to the writer; the request is answered
+    private void queue(byte[] response)
+    {
+      requests.increment();
+      synchronized (responses)
+      {
+        if (!stopped)
+        {
+          responses.add(response);
+          queued += response.length;
+          responses.notifyAll();
+        }
+      }
+      done();
+    }
+
+    // Writes the queued responses until the connection is closed, flushing whenever the queue is empty
+    void send()
+    {
+      try
+      {
+        while (true)
+        {
+          byte[] response;
+          boolean last;
+          synchronized (responses)
+          {
+            while (responses.isEmpty() && !stopped) responses.wait();
+            if (stopped) return;
+            response = responses.poll();
+            queued -= response.length;
+            last = responses.isEmpty();
+            // the reader may be waiting for room
+            responses.notifyAll();
+          }
+          out.write(response);
+          if (last) out.flush();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch (IOException ex)
+      {
+        if (!closed && !socket.isClosed()) logger.debug("Connection failed", ex);
+      }
+      finally
+      {
+        close();
+      }
+    }
+
+    void close()
+    {
+      connections.remove(this);
+      synchronized (responses)
+      {
+        stopped = true;
+        responses.clear();
+        queued = 0;
+        responses.notifyAll();
+      }
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ex)
+      {
+      }
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package com.project.cal.model;
+
+/**
+ * A compiled expression, see {@link Expression#compile()}.
+ * Where {@link Expression#getValue(double...)} raises an exception because a function gets an illegal
+ * argument, an evaluator returns NaN. Evaluators hold no mutable state and may be shared between threads.
+ */
+@FunctionalInterface
+public interface Evaluator
+{
+  /**
+   * @param args The expression's arguments, indexed by variable number
+   * @return Value of the expression
+   */
+  double eval(double[] args);
+}
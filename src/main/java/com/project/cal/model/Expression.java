@@ -1,7 +1,10 @@
 package com.project.cal.model;
 
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,40 +14,130 @@ import org.slf4j.LoggerFactory;
 /**
  * Type representing a mathematical expression.
  * An expression specified as a string on ordinary infix form and must be built up of the four arithmetic
+ * <p>
+ * Expressions are immutable: the parser state lives in a Parser used only during construction, and every
+ * field is final and refers to arrays that are never changed after construction. An expression may therefore
+ * be published to and evaluated by any number of threads, platform or virtual, without synchronization.
+ * Evaluation takes no locks and writes no shared memory: getValue works on a stack private to the calling
+ * thread, batch evaluation on a work area private to the calling thread, and compiled evaluators on local variables only.
  */ 
-public class Expression
+public final class Expression
 {
+  /**
+   * Optional rewrites of the expression. Without options the expression is simplified by constant folding
+   * and identities such as x * 1 = x only, which give bit-identical results.
+   */
+  public enum Option
+  {
+    /** Rewrites Exp(Ln(x)) to x, which differs from the original for x <= 0 */
+    EXP_LN,
+    /** Allows rewrites that change rounding or the sign of zero, such as x + 0 = x and (x * 2) * 3 = x * 6 */
+    RELAXED
+  }
 	
-	private static Logger logger = LoggerFactory.getLogger(Expression.class);
+	private static final Logger logger = LoggerFactory.getLogger(Expression.class);
 	
-  private static final String split = "+-*/(),";                // Separation characters for dividing an expression in items
-  private String text;                                         
-  private ArrayList<Item> list = new ArrayList<Item>();       
-  private int args;                                           
-  private int itemCounter;                                     
+  private static final ExpressionCache cache = new ExpressionCache(10000);
+  private final String text;                                         
+  private final Program program;
+  private final int args;                                           
+  private final VariableLayout layout;
+  private final int parsedSize;
+  private final int shared;
   
 
   public Expression(String text) throws Exception
+  {
+    this(text, EnumSet.noneOf(Option.class));
+  }
+
+  /**
+   * Creates an expression, simplified with the given options.
+   * @param text The expression on infix form
+   * @param options Rewrites allowed in addition to those giving bit-identical results
+   * @throws Exception If the text is not a legal expression
+   */
+  public Expression(String text, Set<Option> options) throws Exception
+  {
+    this(text, options, null);
+  }
+
+  // An expression whose program and layout are shared with those of other expressions, when an interner is given
+  Expression(String text, Set<Option> options, Interner interner) throws Exception
   {
     try
     {
-    	// scanning, which divides the string into items
-      ArrayList<Item> items = toItems(text);     
-      logger.info(items.toString());
-      toText(items);                               
-      logger.info(text);
-   // parsing, which controls the expression for the syntax errors
-      syntaxCheck(items);                          
-      toPostform(items);   
-      // counts the number of different variables
-      countArgs();                                 
+      // scanning and parsing in one pass, which controls the syntax and gives the postfix form
+      Parser parser = new Parser(text);
+      if (!parser.parse())
+        throw new Exception(Parser.describe(parser.getError()) + " at position " + parser.getErrorPosition());
+      this.text = parser.getText();
+      logger.debug(this.text);
+      ArrayList<Item> list = parser.getPostfix();
+      // numbers the variables by slot, and places the named ones after the X variables
+      VariableLayout layout = VariableLayout.of(list);
+      this.layout = interner != null ? interner.intern(layout) : layout;
+      args = layout.size();
+      for (int i = 0; i < list.size(); ++i)
+        if (list.get(i) instanceof NameItem) list.set(i, VarItem.of(layout.positionOf(((NameItem)list.get(i)).getName())));
+      // simplification and translation to an executable program
+      parsedSize = list.size();
+      Optimizer optimizer = new Optimizer(options);
+      Program program = Program.compile(optimizer.build(list));
+      this.program = interner != null ? interner.intern(program) : program;
+      shared = optimizer.getShared();
+      logger.debug("{} items, {} after optimization, {} shared", parsedSize, program.code.length, shared);
     }
     catch (Exception ex)
     {
-      throw new Exception("Parse error");
+      throw new Exception("Parse error: " + ex.getMessage());
     }
   }
 
+  // An expression already compiled, as loaded from an ExpressionStore
+  Expression(String text, Program program, int args, int parsedSize, int shared)
+  {
+    this.text = text;
+    this.program = program;
+    this.args = args;
+    this.layout = VariableLayout.scan(text);
+    this.parsedSize = parsedSize;
+    this.shared = shared;
+  }
+
+  /**
+   * Checks the syntax of a text without building the expression, much faster than catching the exception
+   * of the constructor: no exception is created, and no program is built.
+   * @param text The expression on infix form
+   * @return {@link Validation#VALID} if the constructor accepts the text, and otherwise the code and position
+   *   of the first error
+   * @see BulkValidator
+   */
+  public static Validation validate(CharSequence text)
+  {
+    return Validation.of(text);
+  }
+
+  /**
+   * Returns the expression for a text from a cache shared by the application, so the text is only parsed
+   * the first time. Texts differing only in case and whitespace give the same expression.
+   * @param text The expression on infix form
+   * @return The parsed expression
+   * @throws Exception If the text is not a legal expression
+   */
+  public static Expression of(String text) throws Exception
+  {
+    return cache.get(text);
+  }
+
+  /**
+   * @return The cache used by {@link #of(String)}, with its statistics
+   */
+  public static ExpressionCache getCache()
+  {
+    return cache;
+  }
+
   /**
    * @return The number of different variables
    */
@@ -53,14 +146,53 @@ public class Expression
     return args;
   }
 
+  /**
+   * @return The slots and positions of the variables
+   */
+  public VariableLayout getLayout()
+  {
+    return layout;
+  }
+
+  /**
+   * @return The number of items in the expression on postfix form, before it is simplified
+   */
+  public int getParsedSize()
+  {
+    return parsedSize;
+  }
+
+  /**
+   * @return The number of operations evaluated, after the expression is simplified
+   */
+  public int getSize()
+  {
+    return program.code.length;
+  }
+
+  /**
+   * @return The number of operations saved because identical subexpressions are computed only once
+   */
+  public int getShared()
+  {
+    return shared;
+  }
+
   public String toString()
   {
     return text;
   }
+
+  // The compiled form, for the evaluators in this package
+  Program getProgram()
+  {
+    return program;
+  }
   
   /**
    * Method that evaluates an expression. If the expression can not be evaluated the method raises an Exception.
-   * @param arg The expression's arguments if it needs arguments
+   * @param arg The expression's arguments if it needs arguments: Xi at index i, and named variables
+   *   at their positions in the layout, after the X variables
    * @return Value of the expression
    * @throws Exception If the expression can not be evaluated with the current arguments
    */
@@ -68,49 +200,7 @@ public class Expression
   {
     try
     {
-      Deque<Item> stack = new ArrayDeque<Item>();
-      for (Item item : list)
-      {
-        if (item instanceof ArgItem) stack.push(item);
-        else if (item instanceof FuncItem)
-        {
-          FuncItem func = (FuncItem)item;
-          double[] x = new double[func.getCount()];
-          for (int n = 0; n < x.length; ++n) x[n] = popValue(stack, arg);
-          double y = func.getValue(x);
-          stack.push(new ConstItem(y));
-        }
-        else if (item instanceof AddItem)
-        {
-          double x1 = popValue(stack, arg);
-          double x2 = popValue(stack, arg);
-          stack.push(new ConstItem(x2 + x1));
-        }
-        else if (item instanceof SubItem)
-        {
-          double x1 = popValue(stack, arg);
-          double x2 = popValue(stack, arg);
-          stack.push(new ConstItem(x2 - x1));
-        }
-        else if (item instanceof MulItem)
-        {
-          double x1 = popValue(stack, arg);
-          double x2 = popValue(stack, arg);
-          stack.push(new ConstItem(x2 * x1));
-        }
-        else if (item instanceof DivItem)
-        {
-          double x1 = popValue(stack, arg);
-          double x2 = popValue(stack, arg);
-          stack.push(new ConstItem(x2 / x1));
-        }
-        else if (item instanceof SignItem)
-        {
-          double x = popValue(stack, arg);
-          stack.push(new ConstItem(-x));
-        }
-      }
-      return popValue(stack, arg);
+      if (arg.length >= program.vars) return program.run(arg);
     }
     catch (Exception ex)
     {
@@ -118,219 +208,230 @@ public class Expression
     throw new Exception("Evaluation error");
   }
 
-  // Pops an argument from the stack - either an operator or a function.
-  // If the argument is a constant, the method returns only the value.
-  // If the argument is a variable that returns the function's argument corresponding to the variable index.
-  private double popValue(Deque<Item> stack, double[] arg) throws Exception
+  /**
+   * Evaluates the expression for the values bound in a frame, which must be of the layout of this expression.
+   * Nothing is looked up or allocated.
+   * @param frame The values of the variables by slot
+   * @return Value of the expression
+   * @throws Exception If the expression can not be evaluated with the values of the frame
+   */
+  public double getValue(VariableLayout.Frame frame) throws Exception
   {
-    Item item = stack.pop();
-    if (item instanceof ConstItem) return ((ConstItem)item).getValue();
-    if (item instanceof VarItem) return arg[((VarItem)item).getId()];
-    throw new Exception("Illegal calculation...");
+    if (frame.getLayout() != layout && !frame.getLayout().equals(layout))
+      throw new IllegalArgumentException("Frame of " + frame.getLayout() + " for variables " + layout);
+    return getValue(frame.values());
   }
 
-  private void toPostform(ArrayList<Item> items)
+  /**
+   * Method that evaluates the expression for many rows of arguments at once.
+   * The program runs one operation at a time across blocks of rows, so the work per operation
+   * is a simple loop over arrays. Rows where a function gets an illegal argument get the value NaN.
+   * @param columns The values of variable Xi in columns[i], one value for each row
+   * @param out Receives the value of row i at index i
+   * @param from First row
+   * @param to Row after the last row
+   */
+  public void evaluate(double[][] columns, double[] out, int from, int to)
   {
-	;
-    Deque<Item> stack = new ArrayDeque<Item>();
-    for (Item item : items)
-    {
-    	
-      if (item instanceof SignItem) stack.push(item);
-      else if (item instanceof FuncItem) stack.push(item);
-      else if (item instanceof OprItem) 
-      {
-        while (stack.size() > 0 && stack.peek().getPriority() <= item.getPriority()) list.add(stack.pop());
-        stack.push(item);
-      }
-      else if (item instanceof LeftItem) stack.push(item);
-      else if (item instanceof RightItem)
-      {
-        while (stack.size() > 0 && !(stack.peek() instanceof LeftItem)) list.add(stack.pop());
-        if (stack.size() > 0) stack.pop();
-      }
-      else if (!(item instanceof SepItem)) stack.push(item);
-    }
-    while (stack.size() > 0) list.add(stack.pop());
+    checkRows(columns, out, from, to);
+    program.run(columns, out, from, to);
   }
 
-  private ArrayList<Item> toItems(String text) throws Exception
+  /**
+   * Method that evaluates the expression for many rows in parallel.
+   * The rows are split into fork/join tasks of at least grain rows, each writing its own slice of out.
+   * @param columns The values of variable Xi in columns[i], one value for each row
+   * @param out Receives the value of row i at index i
+   * @param from First row
+   * @param to Row after the last row
+   * @param pool The pool running the tasks
+   * @param grain Minimum number of rows for a task
+   */
+  public void evaluate(double[][] columns, double[] out, int from, int to, ForkJoinPool pool, int grain)
   {
-    ArrayList<Item> items = new ArrayList<Item>();
-    Item lastItem = null;
-    StringTokenizer tk = new StringTokenizer(text, split, true);
-    while (tk.hasMoreTokens())
-    {
-    	
-      String elem = tk.nextToken().trim().toLowerCase();
-      if (elem.length() > 0)
-      {
-        Item item = Items.toItem(elem, lastItem);
-        if (!(item instanceof SkipItem)) items.add(item);
-        lastItem = item;
-      }
-    }
-    return items;
+    if (grain < 1) throw new IllegalArgumentException("Illegal grain size " + grain);
+    checkRows(columns, out, from, to);
+    if (to - from <= grain) program.run(columns, out, from, to);
+    else pool.invoke(new BatchTask(program, columns, out, from, to, grain));
   }
 
-  private void syntaxCheck(ArrayList<Item> items) throws Exception
+  /**
+   * Method that evaluates the expression for many rows in parallel in the common fork/join pool.
+   * @see #evaluate(double[][], double[], int, int, ForkJoinPool, int)
+   */
+  public void evaluateParallel(double[][] columns, double[] out, int from, int to)
   {
-    itemCounter = 0;
-    boolean error = false;
-    try
-    {
-      error = !isExpression(items);
-    }
-    catch (Exception ex)
-    {
-      error = true;
-    }
-    if (error || itemCounter < items.size()) throw new Exception("Error. There are errors in one of you expressions");
+    int tasks = 4 * ForkJoinPool.getCommonPoolParallelism();
+    evaluate(columns, out, from, to, ForkJoinPool.commonPool(), Math.max(BatchTask.MIN_GRAIN, (to - from) / tasks));
   }
 
-  private boolean isExpression(ArrayList<Item> items)
+  /**
+   * Evaluates the expression for n rows of values read where they are, such as in direct or memory-mapped
+   * buffers, without copying them to arrays first. The values go through a block of a few hundred rows at a time
+   * in the work area of the calling thread, and the results are written straight into out.
+   * The positions and limits of the buffers are not changed, so several threads may read the same buffers.
+   * Rows where a function gets an illegal argument get the value NaN.
+   * @param buffers The buffer holding the values of variable Xi in buffers[i]; several variables may share one
+   * @param offsets The index in buffers[i] of the value of Xi in row 0
+   * @param strides The distance between the values of Xi in consecutive rows: the number of values in a row
+   *   for row-major data, 1 for columnar data
+   * @param out Receives the value of row i at index out.position() + i
+   * @param n The number of rows
+   */
+  public void evaluate(DoubleBuffer[] buffers, int[] offsets, int[] strides, DoubleBuffer out, int n)
   {
-    if (itemCounter >= items.size()) return false;
-    if (!isArgument(items)) return false;
-    if (isOperator(items)) return isExpression(items);
-    return true;
+    if (n > out.remaining()) throw new IndexOutOfBoundsException(n + " rows for " + out.remaining() + " values");
+    checkBuffers(buffers, offsets, strides, n);
+    program.run(Columns.of(buffers, offsets, strides), 0, out, out.position(), n);
   }
 
-  private boolean isArgument(ArrayList<Item> items)
+  /**
+   * Evaluates the expression for every row of the values between the position and the limit of a buffer.
+   * @param in The values, a whole number of rows of columns values
+   * @param columns The number of values in a row, at least the number of variables
+   * @param layout The order of the values: row after row, or column after column
+   * @param out Receives the value of row i at index out.position() + i
+   * @return The number of rows
+   * @see #evaluate(DoubleBuffer[], int[], int[], DoubleBuffer, int)
+   */
+  public int evaluate(DoubleBuffer in, int columns, StreamEvaluator.Layout layout, DoubleBuffer out)
   {
-    while (isSign(items)) ;
-    if (isConst(items)) return true;
-    if (isVar(items)) return true;
-    if (isFunction(items)) return true;
-    if (isLeft(items))
+    if (columns < program.vars) throw new IllegalArgumentException("Missing argument column");
+    if (in.remaining() % columns != 0)
+      throw new IllegalArgumentException(in.remaining() + " values is not a whole number of rows of " + columns);
+    int rows = in.remaining() / columns;
+    DoubleBuffer[] buffers = new DoubleBuffer[program.vars];
+    int[] offsets = new int[program.vars];
+    int[] strides = new int[program.vars];
+    for (int i = 0; i < buffers.length; ++i)
     {
-      if (!isExpression(items)) return false;
-      return isRight(items);
+      buffers[i] = in;
+      offsets[i] = in.position() + (layout == StreamEvaluator.Layout.ROW_MAJOR ? i : i * rows);
+      strides[i] = layout == StreamEvaluator.Layout.ROW_MAJOR ? columns : 1;
     }
-    return false;
-  }
-
-  private boolean isFunction(ArrayList<Item> items)
-  {
-    if (!isFunc(items)) return false;
-    if (!isLeft(items)) return true;
-    if (!isArgumentList(items)) return false;
-    return isRight(items);
+    evaluate(buffers, offsets, strides, out, rows);
+    return rows;
   }
 
-  private boolean isArgumentList(ArrayList<Item> items)
-  {
-    if (!isExpression(items)) return false;
-    if (isKomma(items)) return isArgumentList(items);
-    return true;
-  }
-
-  private boolean isOperator(ArrayList<Item> items)
+  /**
+   * Evaluates the expression for every row of the doubles between the position and the limit of a byte buffer,
+   * in the byte order of the buffer. The doubles are read and written through views, never copied.
+   * @param out Receives the value of row i at byte index out.position() + 8 * i, in the byte order of out
+   * @return The number of rows
+   * @see #evaluate(DoubleBuffer, int, StreamEvaluator.Layout, DoubleBuffer)
+   */
+  public int evaluate(ByteBuffer in, int columns, StreamEvaluator.Layout layout, ByteBuffer out)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof OprItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    if (in.remaining() % 8 != 0) throw new IllegalArgumentException(in.remaining() + " bytes is not a whole number of doubles");
+    return evaluate(in.duplicate().order(in.order()).asDoubleBuffer(), columns, layout,
+      out.duplicate().order(out.order()).asDoubleBuffer());
   }
 
-  private boolean isSign(ArrayList<Item> items)
+  /**
+   * Summarizes the values of the expression for many rows without storing them: each block of values
+   * is added to the summary as soon as it is computed, so the memory used does not grow with the rows.
+   * Rows where a function gets an illegal argument count as NaN values.
+   * @param columns The values of variable Xi in columns[i], one value for each row
+   * @param from First row
+   * @param to Row after the last row
+   * @return The summary of the values of the rows
+   */
+  public Summary summarize(double[][] columns, int from, int to)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof SignItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    checkColumns(columns, from, to);
+    Summary summary = new Summary();
+    program.run(Columns.of(columns), from, summary, to - from);
+    return summary;
   }
 
-  private boolean isConst(ArrayList<Item> items)
+  /**
+   * Summarizes the values of the expression for many rows in parallel. The rows are split into fork/join
+   * tasks of at least grain rows, each with its own summary, and the summaries are combined.
+   * @see #summarize(double[][], int, int)
+   */
+  public Summary summarize(double[][] columns, int from, int to, ForkJoinPool pool, int grain)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof ConstItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    if (grain < 1) throw new IllegalArgumentException("Illegal grain size " + grain);
+    checkColumns(columns, from, to);
+    return pool.invoke(new SummaryTask(program, columns, from, to, grain));
   }
 
-  private boolean isVar(ArrayList<Item> items)
+  /**
+   * Summarizes the values of the expression for many rows in parallel in the common fork/join pool.
+   * @see #summarize(double[][], int, int, ForkJoinPool, int)
+   */
+  public Summary summarizeParallel(double[][] columns, int from, int to)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof VarItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    int tasks = 4 * ForkJoinPool.getCommonPoolParallelism();
+    return summarize(columns, from, to, ForkJoinPool.commonPool(), Math.max(BatchTask.MIN_GRAIN, (to - from) / tasks));
   }
 
-  private boolean isLeft(ArrayList<Item> items)
+  /**
+   * Summarizes the values of the expression for n rows of values read where they are in buffers.
+   * @see #evaluate(DoubleBuffer[], int[], int[], DoubleBuffer, int)
+   * @see #summarize(double[][], int, int)
+   */
+  public Summary summarize(DoubleBuffer[] buffers, int[] offsets, int[] strides, int n)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof LeftItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    checkBuffers(buffers, offsets, strides, n);
+    Summary summary = new Summary();
+    program.run(Columns.of(buffers, offsets, strides), 0, summary, n);
+    return summary;
   }
 
-  private boolean isRight(ArrayList<Item> items)
+  /**
+   * Compiles the expression to a JVM class, so the JIT can inline it into the caller.
+   * Each call generates a new class, which is unloaded when the returned evaluator is no longer referenced.
+   * Expressions too large for the JIT are not compiled, but interpreted behind the same interface.
+   * @return Evaluator for the expression
+   */
+  public Evaluator compile()
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof RightItem)
+    Evaluator evaluator = BytecodeCompiler.compile(program);
+    if (evaluator != null) return evaluator;
+    Program program = this.program;
+    return args ->
     {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+      try
+      {
+        return program.run(args);
+      }
+      catch (RuntimeException ex)
+      {
+        throw ex;
+      }
+      catch (Exception ex)
+      {
+        return Double.NaN;
+      }
+    };
   }
 
-  private boolean isFunc(ArrayList<Item> items)
+  private void checkRows(double[][] columns, double[] out, int from, int to)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof FuncItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    if (to > out.length) throw new IndexOutOfBoundsException("Rows " + from + " to " + to);
+    checkColumns(columns, from, to);
   }
 
-  private boolean isKomma(ArrayList<Item> items)
+  private void checkColumns(double[][] columns, int from, int to)
   {
-    if (itemCounter < items.size() && items.get(itemCounter) instanceof SepItem)
-    {
-      ++itemCounter;
-      return true;
-    }
-    return false;
+    if (columns.length < program.vars) throw new IllegalArgumentException("Missing argument column");
+    if (from < 0 || from > to) throw new IndexOutOfBoundsException("Rows " + from + " to " + to);
+    for (int i = 0; i < program.vars; ++i)
+      if (columns[i].length < to) throw new IndexOutOfBoundsException("Column " + i + " has " + columns[i].length + " rows");
   }
 
-  private void toText(ArrayList<Item> list)
+  private void checkBuffers(DoubleBuffer[] buffers, int[] offsets, int[] strides, int n)
   {
-    if (list.size() == 0) text = "";
-    else
+    int vars = program.vars;
+    if (buffers.length < vars || offsets.length < vars || strides.length < vars)
+      throw new IllegalArgumentException("Missing argument column");
+    if (n < 0) throw new IndexOutOfBoundsException(n + " rows");
+    for (int i = 0; i < vars && n > 0; ++i)
     {
-      StringBuilder builder = new StringBuilder(list.get(0).toString());
-      for (int i = 1; i < list.size(); ++i)
-      {
-        builder.append(' ');
-        builder.append(list.get(i).toString());
-      }
-      text = builder.toString();
+      long last = offsets[i] + (long)(n - 1) * strides[i];
+      if (Math.min(offsets[i], last) < 0 || Math.max(offsets[i], last) >= buffers[i].limit())
+        throw new IndexOutOfBoundsException("Column " + i + " has no value for row " + (offsets[i] < 0 ? 0 : n - 1));
     }
   }
-
-  // Method, which counts the number of variables.
-  private void countArgs()
-  {
-    ArrayList<VarItem> vars = new ArrayList();
-    for (Item t : list) 
-      if (t instanceof VarItem)
-      {
-        VarItem item = (VarItem)t;
-        if (!vars.contains(item)) vars.add(item);
-      }
-    args = vars.size();
-  }
 }
-
@@ -0,0 +1,231 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent, size-bounded cache of parsed expressions, keyed on the normalized text.
+ * The text is normalized to lower case with insignificant whitespace removed, so "Sqr( X0 )" and "sqr(x0)"
+ * share one entry. The cache is divided into segments, each an LRU list guarded by its own lock,
+ * so threads looking up different texts rarely wait for each other. Parsing is done outside the locks.
+ * Expressions are immutable, so a cached expression can be used by any number of threads.
+ */
+public final class ExpressionCache
+{
+  private static final String split = "+-*/(),<>=!";
+  // a space between two of these separates two operators, as in "< =", and is kept
+  private static final String comparison = "<>=!";
+
+  private final Segment[] segments;
+  private final long ttl;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache without expiry.
+   * @param maximumSize The maximum number of expressions in the cache
+   */
+  public ExpressionCache(int maximumSize)
+  {
+    this(maximumSize, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Creates a cache whose entries expire a fixed time after they are added.
+   * @param maximumSize The maximum number of expressions in the cache
+   * @param ttl Time to live for an entry, 0 for no expiry
+   * @param unit Unit of ttl
+   */
+  public ExpressionCache(int maximumSize, long ttl, TimeUnit unit)
+  {
+    if (maximumSize < 1) throw new IllegalArgumentException("Illegal size " + maximumSize);
+    if (ttl < 0) throw new IllegalArgumentException("Illegal time to live " + ttl);
+    int count = 1;
+    while (count < 16 && count * 32 <= maximumSize) count *= 2;
+    segments = new Segment[count];
+    for (int i = 0; i < count; ++i) segments[i] = new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0));
+    this.ttl = unit.toNanos(ttl);
+  }
+
+  /**
+   * Returns the cached expression for the text, parsing and adding it if it is not in the cache.
+   * @param text The expression on infix form
+   * @return The parsed expression
+   * @throws Exception If the text is not a legal expression; illegal texts are not cached
+   */
+  public Expression get(String text) throws Exception
+  {
+    String key = normalize(text);
+    Segment segment = segments[(key.hashCode() * 0x9E3779B9 >>> 16) & (segments.length - 1)];
+    Expression expression = segment.get(key, System.nanoTime());
+    if (expression != null)
+    {
+      hits.increment();
+      return expression;
+    }
+    misses.increment();
+    expression = new Expression(key);
+    return segment.put(key, expression, System.nanoTime() + ttl);
+  }
+
+  /**
+   * Removes all expressions from the cache. The statistics are not reset.
+   */
+  public void clear()
+  {
+    for (Segment segment : segments) segment.clear();
+  }
+
+  /**
+   * @return The number of expressions in the cache, including expired ones not yet removed
+   */
+  public int size()
+  {
+    int size = 0;
+    for (Segment segment : segments) size += segment.size();
+    return size;
+  }
+
+  /**
+   * @return The number of lookups that found the expression in the cache
+   */
+  public long getHitCount()
+  {
+    return hits.sum();
+  }
+
+  /**
+   * @return The number of lookups that had to parse the text
+   */
+  public long getMissCount()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * @return The number of expressions removed because the cache was full or they had expired
+   */
+  public long getEvictionCount()
+  {
+    return evictions.sum();
+  }
+
+  /**
+   * @return Hits divided by lookups, 1 if there has been no lookups
+   */
+  public double getHitRate()
+  {
+    long hits = getHitCount();
+    long lookups = hits + getMissCount();
+    return lookups == 0 ? 1 : (double)hits / lookups;
+  }
+
+  public String toString()
+  {
+    return "ExpressionCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+      + ", evictions=" + getEvictionCount() + "]";
+  }
+
+  /**
+   * Normalizes an expression text: ASCII letters in lower case, whitespace around separators and at the ends removed,
+   * and other runs of whitespace replaced by one space. Texts with the same normal form give the same expression.
+   */
+  static String normalize(String text)
+  {
+    StringBuilder builder = new StringBuilder(text.length());
+    boolean space = false;
+    for (int i = 0; i < text.length(); ++i)
+    {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) space = builder.length() > 0;
+      else
+      {
+        char last = space ? builder.charAt(builder.length() - 1) : 0;
+        if (space && (split.indexOf(c) < 0 && split.indexOf(last) < 0 || comparison.indexOf(c) >= 0 && comparison.indexOf(last) >= 0
+          || isOpenExponent(builder)))
+          builder.append(' ');
+        // ASCII only, as the lexer: other letters are illegal and must stay so, not become i or k
+        builder.append(c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c);
+        space = false;
+      }
+    }
+    return builder.toString();
+  }
+
+  // true if the text ends with a number followed by e, e+ or e-, which is illegal: "2e - 3" must not become 2e-3
+  private static boolean isOpenExponent(StringBuilder text)
+  {
+    int i = text.length() - 1;
+    if (i >= 0 && (text.charAt(i) == '+' || text.charAt(i) == '-')) --i;
+    if (i < 1 || text.charAt(i) != 'e') return false;
+    int end = i;
+    while (i > 0 && (Character.isDigit(text.charAt(i - 1)) || text.charAt(i - 1) == '.')) --i;
+    // the digits start the number, not the end of a name such as x2
+    return i < end && (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)) && text.charAt(i - 1) != '_');
+  }
+
+  private static final class Entry
+  {
+    final Expression expression;
+    final long expires;
+
+    Entry(Expression expression, long expires)
+    {
+      this.expression = expression;
+      this.expires = expires;
+    }
+  }
+
+  // A part of the cache: an access ordered map, which removes its least recently used entry when full.
+  private final class Segment extends LinkedHashMap<String, Entry>
+  {
+    private final int capacity;
+
+    Segment(int capacity)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    synchronized Expression get(String key, long now)
+    {
+      Entry entry = super.get(key);
+      if (entry == null) return null;
+      if (ttl == 0 || entry.expires - now >= 0) return entry.expression;
+      remove(key);
+      evictions.increment();
+      return null;
+    }
+
+    // Adds the expression unless another thread added one for the key meanwhile, returns the one kept.
+    synchronized Expression put(String key, Expression expression, long expires)
+    {
+      Entry entry = super.get(key);
+      if (entry != null && (ttl == 0 || entry.expires - System.nanoTime() >= 0)) return entry.expression;
+      super.put(key, new Entry(expression, expires));
+      return expression;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+      super.clear();
+    }
+
+    @Override
+    public synchronized int size()
+    {
+      return super.size();
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+    {
+      if (size() <= capacity) return false;
+      evictions.increment();
+      return true;
+    }
+  }
+}
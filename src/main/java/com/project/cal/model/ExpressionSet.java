@@ -0,0 +1,167 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+/**
+ * Several expressions compiled into one program, evaluated together over the same arguments.
+ * The graphs of the expressions are merged, so a subexpression common to several of them is computed once,
+ * and each variable is read once per evaluation. The value of expression i is written to output i.
+ * A named variable is the same in all the expressions, and the set has its own layout of their variables together.
+ * The set is immutable and may be evaluated by several threads at once.
+ */
+public final class ExpressionSet
+{
+  private final Expression[] expressions;
+  private final VariableLayout layout;
+  private final Program program;
+  private final int shared;
+
+  /**
+   * @param expressions The expressions, in the order of the outputs
+   */
+  public ExpressionSet(Expression ... expressions)
+  {
+    this(Arrays.asList(expressions));
+  }
+
+  /**
+   * @param expressions The expressions, in the order of the outputs
+   */
+  public ExpressionSet(List<Expression> expressions)
+  {
+    this.expressions = expressions.toArray(new Expression[expressions.size()]);
+    Optimizer optimizer = new Optimizer(EnumSet.noneOf(Expression.Option.class));
+    List<VariableLayout> layouts = new ArrayList<VariableLayout>();
+    for (Expression expression : this.expressions) layouts.add(expression.getLayout());
+    layout = VariableLayout.union(layouts);
+    Node[] roots = new Node[this.expressions.length];
+    for (int i = 0; i < roots.length; ++i)
+    {
+      // the variables move from their positions in the expression to those in the set
+      VariableLayout own = layouts.get(i);
+      int[] positions = new int[own.getArgumentCount()];
+      for (int slot = 0; slot < own.size(); ++slot)
+        positions[own.getPosition(slot)] = layout.getPosition(layout.slotOf(own.getName(slot)));
+      roots[i] = optimizer.build(this.expressions[i].getProgram(), positions);
+    }
+    program = Program.compileAll(roots);
+    shared = optimizer.getShared();
+  }
+
+  /**
+   * @return The number of expressions
+   */
+  public int size()
+  {
+    return expressions.length;
+  }
+
+  /**
+   * @return Expression i of the set
+   */
+  public Expression get(int i)
+  {
+    return expressions[i];
+  }
+
+  /**
+   * @return The slots and positions of the variables of all the expressions
+   */
+  public VariableLayout getLayout()
+  {
+    return layout;
+  }
+
+  /**
+   * @return The number of positional arguments needed, one more than the highest position used
+   */
+  public int getVars()
+  {
+    return program.vars;
+  }
+
+  /**
+   * @return The number of operations evaluated for all the expressions together
+   */
+  public int getSize()
+  {
+    return program.code.length;
+  }
+
+  /**
+   * @return The number of operations saved because they are common to several expressions
+   */
+  public int getShared()
+  {
+    return shared;
+  }
+
+  /**
+   * Evaluates all the expressions for one row of arguments. Nothing is allocated.
+   * @param arg The arguments
+   * @param out Receives the value of expression i at index i
+   * @throws Exception If an expression can not be evaluated with the current arguments
+   */
+  public void getValues(double[] arg, double[] out) throws Exception
+  {
+    if (out.length < expressions.length) throw new IllegalArgumentException("Output for " + out.length + " values");
+    try
+    {
+      if (arg.length >= program.vars)
+      {
+        program.run(arg, Program.stack(program.size), out);
+        return;
+      }
+    }
+    catch (Exception ex)
+    {
+    }
+    throw new Exception("Evaluation error");
+  }
+
+  /**
+   * Evaluates all the expressions for the values bound in a frame of the layout of the set. Nothing is allocated.
+   * @param frame The values of the variables by slot
+   * @param out Receives the value of expression i at index i
+   * @throws Exception If an expression can not be evaluated with the values of the frame
+   */
+  public void getValues(VariableLayout.Frame frame, double[] out) throws Exception
+  {
+    if (frame.getLayout() != layout && !frame.getLayout().equals(layout))
+      throw new IllegalArgumentException("Frame of " + frame.getLayout() + " for variables " + layout);
+    getValues(frame.values(), out);
+  }
+
+  /**
+   * Evaluates all the expressions for one row of arguments.
+   * @param arg The arguments
+   * @return The value of expression i at index i
+   * @throws Exception If an expression can not be evaluated with the current arguments
+   */
+  public double[] getValues(double ... arg) throws Exception
+  {
+    double[] out = new double[expressions.length];
+    getValues(arg, out);
+    return out;
+  }
+
+  /**
+   * Evaluates all the expressions for many rows, a block of rows at a time.
+   * Rows where a function gets an illegal argument get the value NaN.
+   * @param columns The values of variable Xi in columns[i], one value for each row
+   * @param out Receives the value of expression j for row i at out[j][i]
+   * @param from First row
+   * @param to Row after the last row
+   */
+  public void evaluate(double[][] columns, double[][] out, int from, int to)
+  {
+    if (columns.length < program.vars) throw new IllegalArgumentException("Missing argument column");
+    if (out.length < expressions.length) throw new IllegalArgumentException("Missing output column");
+    if (from < 0 || from > to) throw new IndexOutOfBoundsException("Rows " + from + " to " + to);
+    for (int i = 0; i < program.vars; ++i)
+      if (columns[i].length < to) throw new IndexOutOfBoundsException("Column " + i + " has " + columns[i].length + " rows");
+    for (int j = 0; j < expressions.length; ++j)
+      if (out[j].length < to) throw new IndexOutOfBoundsException("Output " + j + " has " + out[j].length + " rows");
+    program.run(Columns.of(columns), from, out, from, to - from);
+  }
+}
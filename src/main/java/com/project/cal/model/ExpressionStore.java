@@ -0,0 +1,269 @@
+package com.project.cal.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * File of compiled expressions, loaded without parsing the texts again.
+ * The file is memory-mapped when opened and each expression is decoded the first time it is asked for,
+ * so opening a store is fast however many expressions it holds. The store may be used by several threads.
+ * <p>
+ * The format, big-endian, version 3:
+ * <pre>
+ * header  int magic "CALX", int version, int count, int offset of the text area
+ * index   count * int offset of the record
+ * record  int text offset, int text length (UTF-8 bytes in the text area), int args, int parsed size,
+ *         int shared, int max stack, int slots, int vars, int code length, int constant count,
+ *         the code as ints, the constant pool as doubles, the bodies
+ * bodies  int count, and for each body of a sum or an integral: int bound variable, int max stack, int slots,
+ *         int vars, int code length, int constant count, the code, the constant pool, the bodies
+ * texts   the UTF-8 texts of all expressions
+ * </pre>
+ */
+public final class ExpressionStore
+{
+  static final int MAGIC = 0x43414C58;
+  // version 2 adds the comparison and conditional opcodes, version 3 sums and integrals with their bodies;
+  // stores of earlier versions are read as well
+  static final int VERSION = 3;
+  private static final int HEADER = 16;
+  private static final int RECORD = 40;
+  private static final int BODY = 24;
+
+  private final ByteBuffer buffer;
+  private final int version;
+  private final int count;
+  private final int texts;
+  private final AtomicReferenceArray<Expression> expressions;
+
+  private ExpressionStore(ByteBuffer buffer) throws IOException
+  {
+    this.buffer = buffer;
+    if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC) throw new IOException("Not an expression store");
+    version = buffer.getInt(4);
+    if (version < 1 || version > VERSION) throw new IOException("Unknown version " + version);
+    count = buffer.getInt(8);
+    texts = buffer.getInt(12);
+    if (count < 0 || texts < HEADER + 4L * count || texts > buffer.limit()) throw new IOException("Corrupt header");
+    expressions = new AtomicReferenceArray<Expression>(count);
+  }
+
+  /**
+   * Maps a store file into memory. No expression is decoded until it is asked for.
+   * @param path The file written by write
+   * @return The store
+   * @throws IOException If the file can not be read or is not an expression store
+   */
+  public static ExpressionStore open(Path path) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(path))
+    {
+      if (channel.size() > Integer.MAX_VALUE) throw new IOException("Store larger than 2 GB");
+      return new ExpressionStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Writes the compiled form of the expressions to a file, in order.
+   * @param expressions The expressions to store
+   * @param path The file, created or replaced
+   * @throws IOException If the file can not be written or the store would be larger than 2 GB
+   */
+  public static void write(List<Expression> expressions, Path path) throws IOException
+  {
+    int count = expressions.size();
+    byte[][] text = new byte[count][];
+    long offset = HEADER + 4L * count;
+    for (int i = 0; i < count; ++i)
+    {
+      Program program = expressions.get(i).getProgram();
+      text[i] = expressions.get(i).toString().getBytes(StandardCharsets.UTF_8);
+      offset += RECORD + 4L * program.code.length + 8L * program.consts.length + size(program.bodies);
+    }
+    long texts = offset;
+    for (byte[] bytes : text) offset += bytes.length;
+    if (offset > Integer.MAX_VALUE) throw new IOException("Store larger than 2 GB");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(count);
+      out.writeInt((int)texts);
+      offset = HEADER + 4L * count;
+      for (Expression expression : expressions)
+      {
+        out.writeInt((int)offset);
+        Program program = expression.getProgram();
+        offset += RECORD + 4L * program.code.length + 8L * program.consts.length + size(program.bodies);
+      }
+      int textOffset = 0;
+      for (int i = 0; i < count; ++i)
+      {
+        Expression expression = expressions.get(i);
+        Program program = expression.getProgram();
+        out.writeInt(textOffset);
+        out.writeInt(text[i].length);
+        textOffset += text[i].length;
+        out.writeInt(expression.getArgs());
+        out.writeInt(expression.getParsedSize());
+        out.writeInt(expression.getShared());
+        out.writeInt(program.maxStack);
+        out.writeInt(program.slots);
+        out.writeInt(program.vars);
+        out.writeInt(program.code.length);
+        out.writeInt(program.consts.length);
+        for (int ins : program.code) out.writeInt(ins);
+        for (double value : program.consts) out.writeDouble(value);
+        write(program, out);
+      }
+      for (byte[] bytes : text) out.write(bytes);
+    }
+  }
+
+  // Bytes of the bodies of a program
+  private static long size(Program[] bodies)
+  {
+    long size = 4;
+    for (Program body : bodies) size += BODY + 4L * body.code.length + 8L * body.consts.length + size(body.bodies);
+    return size;
+  }
+
+  private static void write(Program program, DataOutputStream out) throws IOException
+  {
+    out.writeInt(program.bodies.length);
+    for (int i = 0; i < program.bodies.length; ++i)
+    {
+      Program body = program.bodies[i];
+      out.writeInt(program.variables[i]);
+      out.writeInt(body.maxStack);
+      out.writeInt(body.slots);
+      out.writeInt(body.vars);
+      out.writeInt(body.code.length);
+      out.writeInt(body.consts.length);
+      for (int ins : body.code) out.writeInt(ins);
+      for (double value : body.consts) out.writeDouble(value);
+      write(body, out);
+    }
+  }
+
+  /**
+   * @return The number of expressions in the store
+   */
+  public int size()
+  {
+    return count;
+  }
+
+  /**
+   * Returns an expression, decoding it the first time. Later calls return the same expression.
+   * @param index Position of the expression in the list written
+   * @return The expression
+   * @throws IOException If the stored expression is corrupt
+   */
+  public Expression get(int index) throws IOException
+  {
+    Expression expression = expressions.get(index);
+    if (expression == null)
+    {
+      expression = decode(index);
+      if (!expressions.compareAndSet(index, null, expression)) expression = expressions.get(index);
+    }
+    return expression;
+  }
+
+  /**
+   * @return The text of an expression, without decoding its program
+   * @throws IOException If the stored expression is corrupt
+   */
+  public String getText(int index) throws IOException
+  {
+    return text(record(index));
+  }
+
+  private int record(int index) throws IOException
+  {
+    if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Expression " + index);
+    int record = buffer.getInt(HEADER + 4 * index);
+    if (record < HEADER + 4L * count || (long)record + RECORD > texts) throw new IOException("Corrupt index " + index);
+    return record;
+  }
+
+  private String text(int record) throws IOException
+  {
+    int offset = buffer.getInt(record);
+    int length = buffer.getInt(record + 4);
+    if (offset < 0 || length < 0 || (long)texts + offset + length > buffer.limit()) throw new IOException("Corrupt text");
+    byte[] bytes = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(texts + offset);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private Expression decode(int index) throws IOException
+  {
+    int record = record(index);
+    int codeLength = buffer.getInt(record + 32);
+    int constCount = buffer.getInt(record + 36);
+    if (codeLength < 0 || constCount < 0 || record + RECORD + 4L * codeLength + 8L * constCount > texts)
+      throw new IOException("Corrupt expression " + index);
+    int[] code = new int[codeLength];
+    double[] consts = new double[constCount];
+    int position = record + RECORD;
+    for (int i = 0; i < codeLength; ++i, position += 4) code[i] = buffer.getInt(position);
+    for (int i = 0; i < constCount; ++i, position += 8) consts[i] = buffer.getDouble(position);
+    int maxStack = buffer.getInt(record + 20);
+    int slots = buffer.getInt(record + 24);
+    int vars = buffer.getInt(record + 28);
+    if (maxStack < 0 || maxStack > codeLength || slots < 0 || slots > codeLength || vars < 0)
+      throw new IOException("Corrupt expression " + index);
+    Program program = new Program(code, consts, maxStack, slots, vars);
+    if (version >= 3)
+    {
+      ByteBuffer view = buffer.duplicate();
+      view.limit(texts).position(position);
+      program = read(view, code, consts, maxStack, slots, vars, index);
+    }
+    if (!program.verify()) throw new IOException("Corrupt expression " + index);
+    return new Expression(text(record), program, buffer.getInt(record + 8), buffer.getInt(record + 12),
+      buffer.getInt(record + 16));
+  }
+
+  // The program with the bodies that follow it in the view, read and checked in depth first order
+  private static Program read(ByteBuffer view, int[] code, double[] consts, int maxStack, int slots, int vars, int index)
+    throws IOException
+  {
+    if (view.remaining() < 4) throw new IOException("Corrupt expression " + index);
+    int count = view.getInt();
+    if (count < 0 || count > view.remaining() / BODY) throw new IOException("Corrupt expression " + index);
+    Program[] bodies = new Program[count];
+    int[] variables = new int[count];
+    for (int i = 0; i < count; ++i)
+    {
+      if (view.remaining() < BODY) throw new IOException("Corrupt expression " + index);
+      variables[i] = view.getInt();
+      int bodyStack = view.getInt();
+      int bodySlots = view.getInt();
+      int bodyVars = view.getInt();
+      int codeLength = view.getInt();
+      int constCount = view.getInt();
+      if (codeLength < 0 || constCount < 0 || 4L * codeLength + 8L * constCount > view.remaining())
+        throw new IOException("Corrupt expression " + index);
+      if (bodyStack < 0 || bodyStack > codeLength || bodySlots < 0 || bodySlots > codeLength || bodyVars < 0)
+        throw new IOException("Corrupt expression " + index);
+      int[] bodyCode = new int[codeLength];
+      double[] bodyConsts = new double[constCount];
+      for (int j = 0; j < codeLength; ++j) bodyCode[j] = view.getInt();
+      for (int j = 0; j < constCount; ++j) bodyConsts[j] = view.getDouble();
+      bodies[i] = read(view, bodyCode, bodyConsts, bodyStack, bodySlots, bodyVars, index);
+    }
+    return count == 0 ? new Program(code, consts, maxStack, slots, vars)
+      : new Program(code, consts, maxStack, slots, vars, bodies, variables);
+  }
+}
@@ -0,0 +1,141 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Canonical instances of the immutable parts of expressions parsed together, so equal parts are kept once.
+ * Programs are interned bottom-up: the bodies of sums and integrals first, then the code and the constant pool,
+ * which are shared by programs equal in them alone, such as those of "x0 * 2 + 1" and "x0 * 3 + 5", and then
+ * the program itself, shared by expressions differing only in spelling or in the names of their variables.
+ * Layouts of the same variables are shared as well. An interner is thread-safe.
+ */
+final class Interner
+{
+  private final ConcurrentHashMap<Object, Object> parts = new ConcurrentHashMap<Object, Object>();
+  private final ConcurrentHashMap<VariableLayout, VariableLayout> layouts = new ConcurrentHashMap<VariableLayout, VariableLayout>();
+  private final LongAdder programs = new LongAdder();
+  private final LongAdder arrays = new LongAdder();
+
+  /**
+   * @return The program equal to the given one interned before, or the program itself, rebuilt on the interned
+   *   parts if some of them were there already
+   */
+  Program intern(Program program)
+  {
+    Program[] bodies = program.bodies;
+    for (int i = 0; i < bodies.length; ++i)
+    {
+      Program body = intern(bodies[i]);
+      if (body == bodies[i]) continue;
+      if (bodies == program.bodies) bodies = bodies.clone();
+      bodies[i] = body;
+    }
+    int[] code = (int[])intern(new ArrayKey(program.code, null));
+    double[] consts = (double[])intern(new ArrayKey(null, program.consts));
+    if (code != program.code || consts != program.consts || bodies != program.bodies)
+      program = new Program(code, consts, program.maxStack, program.slots, program.vars, bodies, program.variables);
+    ProgramKey key = new ProgramKey(program);
+    ProgramKey existing = (ProgramKey)parts.putIfAbsent(key, key);
+    if (existing == null) return program;
+    programs.increment();
+    return existing.program;
+  }
+
+  /**
+   * @return The layout equal to the given one interned before, or the layout itself
+   */
+  VariableLayout intern(VariableLayout layout)
+  {
+    VariableLayout existing = layouts.putIfAbsent(layout, layout);
+    return existing != null ? existing : layout;
+  }
+
+  /**
+   * @return The number of programs that were equal to one interned before
+   */
+  long getSharedPrograms()
+  {
+    return programs.sum();
+  }
+
+  /**
+   * @return The number of code arrays and constant pools, of programs not shared, that were equal to one interned before
+   */
+  long getSharedArrays()
+  {
+    return arrays.sum();
+  }
+
+  private Object intern(ArrayKey key)
+  {
+    ArrayKey existing = (ArrayKey)parts.putIfAbsent(key, key);
+    if (existing == null) return key.array();
+    arrays.increment();
+    return existing.array();
+  }
+
+  // An int or a double array compared by content; the doubles by their bits, as the constant pool of a program
+  private static final class ArrayKey
+  {
+    final int[] ints;
+    final double[] doubles;
+    final int hash;
+
+    ArrayKey(int[] ints, double[] doubles)
+    {
+      this.ints = ints;
+      this.doubles = doubles;
+      hash = ints != null ? Arrays.hashCode(ints) : ~Arrays.hashCode(doubles);
+    }
+
+    Object array()
+    {
+      return ints != null ? ints : doubles;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof ArrayKey)) return false;
+      ArrayKey key = (ArrayKey)obj;
+      return hash == key.hash && (ints != null ? Arrays.equals(ints, key.ints) : Arrays.equals(doubles, key.doubles));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+
+  // A program whose code, constant pool and bodies are interned, so they are compared by identity
+  private static final class ProgramKey
+  {
+    final Program program;
+    final int hash;
+
+    ProgramKey(Program program)
+    {
+      this.program = program;
+      hash = ((System.identityHashCode(program.code) * 31 + System.identityHashCode(program.consts)) * 31
+        + Arrays.hashCode(program.bodies)) * 31 + program.vars;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof ProgramKey)) return false;
+      Program a = program, b = ((ProgramKey)obj).program;
+      return a.code == b.code && a.consts == b.consts && a.maxStack == b.maxStack && a.slots == b.slots
+        && a.vars == b.vars && Arrays.equals(a.bodies, b.bodies) && Arrays.equals(a.variables, b.variables);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+  }
+}
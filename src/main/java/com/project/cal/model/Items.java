@@ -1,95 +1,60 @@
 package com.project.cal.model;
 
-import java.text.*;
 
 
 
 public class Items {
 
+	/*
+	 * The items without state are shared, so parsing allocates only constants
+	 * and variables outside the small values kept by ConstItem and VarItem.
+	 */
+	static final SkipItem SKIP = new SkipItem();
+	static final AddItem ADD = new AddItem();
+	static final SubItem SUB = new SubItem();
+	static final MulItem MUL = new MulItem();
+	static final DivItem DIV = new DivItem();
+	static final SignItem SIGN = new SignItem();
+	static final LeftItem LEFT = new LeftItem();
+	static final RightItem RIGHT = new RightItem();
+	static final SepItem SEP = new SepItem();
+	static final PiItem PI = new PiItem();
+	static final EItem E = new EItem();
+	static final LnItem LN = new LnItem();
+	static final ExpItem EXP = new ExpItem();
+	static final LogItem LOG = new LogItem();
+	static final SqrItem SQR = new SqrItem();
+	static final SqrtToken SQRT = new SqrtToken();
+	static final AbsItem ABS = new AbsItem();
+	static final PowItem POW = new PowItem();
+	static final FactorialItem FACTORIAL = new FactorialItem();
+	static final LessItem LESS = new LessItem();
+	static final LessEqualItem LESS_EQUAL = new LessEqualItem();
+	static final GreaterItem GREATER = new GreaterItem();
+	static final GreaterEqualItem GREATER_EQUAL = new GreaterEqualItem();
+	static final EqualItem EQUAL = new EqualItem();
+	static final NotEqualItem NOT_EQUAL = new NotEqualItem();
+	static final AndItem AND = new AndItem();
+	static final OrItem OR = new OrItem();
+	static final IfItem IF = new IfItem();
+	static final MinItem MIN = new MinItem();
+	static final MaxItem MAX = new MaxItem();
+	static final ClampItem CLAMP = new ClampItem();
+	static final IntegrateItem INTEGRATE = new IntegrateItem();
+	static final SumItem SUM = new SumItem();
+
 	/*
 	 * selected to type item is
 	 * 
 	 */
 	public static Item toItem(String text, Item last) throws Exception {
-		String elem = text.trim().toLowerCase();
-		switch (elem) {
-		case "+":
-			if (!isSign(last))
-				return new AddItem();
-			else
-				return new SkipItem();
-		case "-":
-			if (!isSign(last))
-				return new SubItem();
-			else
-				return new SignItem();
-		case "*":
-			return new MulItem();
-		case "/":
-			return new DivItem();
-		case "(":
-			return new LeftItem();
-		case ")":
-			return new RightItem();
-		case ",":
-			return new SepItem();
-		case "pi":
-			return new PiItem();
-		case "e":
-			return new EItem();
-		case "ln":
-			return new LnItem();
-		case "exp":
-			return new ExpItem();
-		case "log":
-			return new LogItem();
-		case "sqr":
-			return new SqrItem();
-		case "sqrt":
-			return new SqrtToken();
-		case "pow":
-			return new PowItem();
-		case "abs":
-			return new AbsItem();
-		case "factorial":
-			return new FactorialItem();
-		default:
-			if (elem.length() > 0) {
-				// elementet er en variabel
-				if (elem.charAt(0) == 'x') {
-					int id = 0;
-					if (elem.length() > 1) {
-						try {
-							id = Integer.parseInt(elem.substring(1));
-							return new VarItem(id);
-						} catch (Exception ex) {
-						}
-					}
-				} else {
-					try {
-						double value = Double.parseDouble(formatNumber(elem));
-						return new ConstItem(value);
-					} catch (Exception ex) {
-					}
-				}
-			}
-			break;
-		}
-		throw new Exception("Illegal Item");
+		// a lone comma is the argument separator, not a decimal comma without digits
+		Lexer lexer = new Lexer(text, !text.trim().equals(","), last);
+		Item item = lexer.next();
+		if (item == null || lexer.next() != null)
+			throw new Exception("Illegal Item");
+		return item;
 	}
-	
-	
-	 private static String formatNumber(String text)
-	  {
-	    DecimalFormat format = new DecimalFormat();
-	    DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
-	    return text.replace(symbols.getDecimalSeparator(), '.');
-	  }
-	 
-	 private static boolean isSign(Item item) 
-	  {
-	    return (item == null) || (item instanceof OprItem) || (item instanceof LeftToken) || (item instanceof SignItem) || (item instanceof SkipItem);
-	  }
 	}
 
 	/*
@@ -100,6 +65,9 @@ public class Items {
 	 * 2 a function 
 	 * 3 multiplication, division
 	 * 4 addition, subtraction 
+	 * 5 comparisons
+	 * 6 and
+	 * 7 or
 	 * 9 left parenthesis 
 	 * 99 right parenthesis, comma
 	 */
@@ -215,88 +183,234 @@ public class Items {
 	  }
 	}
 
-	// Sign
-	class SignItem implements Item
+	// The less than operator, 1 if true and 0 if not
+	class LessItem implements OprItem
 	{
 	  public int getPriority()
 	  {
-	    return 1;
+	    return 5;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return arg1 < arg2 ? 1 : 0;
 	  }
 
 	  public String toString()
 	  {
-	    return "-";
+	    return "<";
 	  }
 	}
 
-	// Constant, that is a number that is a double.
-	class ConstItem extends ArgItem
+	// The less than or equal operator
+	class LessEqualItem implements OprItem
 	{
-	  private double value;
+	  public int getPriority()
+	  {
+	    return 5;
+	  }
 
-	  public ConstItem(double value)
+	  public double value(double arg1, double arg2)
 	  {
-	    this.value = value;
+	    return arg1 <= arg2 ? 1 : 0;
 	  }
 
-	  public double getValue()
+	  public String toString()
 	  {
-	    return value;
+	    return "<=";
+	  }
+	}
+
+	// The greater than operator
+	class GreaterItem implements OprItem
+	{
+	  public int getPriority()
+	  {
+	    return 5;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return arg1 > arg2 ? 1 : 0;
 	  }
 
 	  public String toString()
 	  {
-	    return "" + value;
+	    return ">";
 	  }
 	}
-	
-	// Left parenthesis
-	class LeftToken implements Item
+
+	// The greater than or equal operator
+	class GreaterEqualItem implements OprItem
 	{
 	  public int getPriority()
 	  {
-	    return 9;
+	    return 5;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return arg1 >= arg2 ? 1 : 0;
 	  }
 
 	  public String toString()
 	  {
-	    return "(";
+	    return ">=";
 	  }
 	}
-	
-	
-	class RightToken implements Item
+
+	// The equality operator
+	class EqualItem implements OprItem
 	{
 	  public int getPriority()
 	  {
-	    return 99;
+	    return 5;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return arg1 == arg2 ? 1 : 0;
 	  }
 
 	  public String toString()
 	  {
-	    return ")";
+	    return "==";
 	  }
 	}
 
+	// The inequality operator, true for NaN as in Java
+	class NotEqualItem implements OprItem
+	{
+	  public int getPriority()
+	  {
+	    return 5;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return arg1 != arg2 ? 1 : 0;
+	  }
 
+	  public String toString()
+	  {
+	    return "!=";
+	  }
+	}
+
+	// Logical and, evaluated lazily by programs: a value is true if it is neither 0 nor NaN
+	class AndItem implements OprItem
+	{
+	  public int getPriority()
+	  {
+	    return 6;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return Program.isTrue(arg1) && Program.isTrue(arg2) ? 1 : 0;
+	  }
+
+	  public String toString()
+	  {
+	    return "and";
+	  }
+	}
+
+	// Logical or, evaluated lazily by programs
+	class OrItem implements OprItem
+	{
+	  public int getPriority()
+	  {
+	    return 7;
+	  }
+
+	  public double value(double arg1, double arg2)
+	  {
+	    return Program.isTrue(arg1) || Program.isTrue(arg2) ? 1 : 0;
+	  }
+
+	  public String toString()
+	  {
+	    return "or";
+	  }
+	}
+
+	// Sign
+	class SignItem implements Item
+	{
+	  public int getPriority()
+	  {
+	    return 1;
+	  }
+
+	  public String toString()
+	  {
+	    return "-";
+	  }
+	}
+
+	// Constant, that is a number that is a double.
+	class ConstItem extends ArgItem
+	{
+	  private static final ConstItem[] small = new ConstItem[256];
+
+	  static
+	  {
+	    for (int i = 0; i < small.length; ++i) small[i] = new ConstItem(i);
+	  }
+
+	  private final double value;
+
+	  public ConstItem(double value)
+	  {
+	    this.value = value;
+	  }
+
+	  // The constant with the value, shared for the integers 0 to 255
+	  static ConstItem of(double value)
+	  {
+	    int i = (int)value;
+	    if (i == value && i >= 0 && i < small.length && Double.doubleToRawLongBits(value) != Long.MIN_VALUE) return small[i];
+	    return new ConstItem(value);
+	  }
+
+	  public double getValue()
+	  {
+	    return value;
+	  }
+
+	  public String toString()
+	  {
+	    return "" + value;
+	  }
+	}
+	
 	// Variable that is identified by an index.
 	class VarItem extends ArgItem implements Comparable<VarItem>
 	{
-	  private int id;
+	  private static final VarItem[] small = new VarItem[64];
+
+	  static
+	  {
+	    for (int i = 0; i < small.length; ++i) small[i] = new VarItem(i);
+	  }
+
+	  private final int id;
 
 	  public VarItem(int id)
 	  {
 	    this.id = id;
 	  }
 
-	  public int getId()
+	  // The variable with the index, shared for X0 to X63
+	  static VarItem of(int id)
 	  {
-	    return id;
+	    return id >= 0 && id < small.length ? small[id] : new VarItem(id);
 	  }
 
-	  public void setId(int id)
+	  public int getId()
 	  {
-	    this.id = id;
+	    return id;
 	  }
 
 	  public int compareTo(VarItem Item)
@@ -311,12 +425,50 @@ public class Items {
 	    return false;
 	  }
 
+	  public int hashCode()
+	  {
+	    return id;
+	  }
+
 	  public String toString()
 	  {
 	    return "X" + id;
 	  }
 	}
 
+	// Variable that is identified by a name, in lower case.
+	class NameItem extends ArgItem
+	{
+	  private final String name;
+
+	  public NameItem(String name)
+	  {
+	    this.name = name;
+	  }
+
+	  public String getName()
+	  {
+	    return name;
+	  }
+
+	  public boolean equals(Object obj)
+	  {
+	    if (obj == null) return false;
+	    if (obj.getClass() == getClass()) return ((NameItem)obj).name.equals(name);
+	    return false;
+	  }
+
+	  public int hashCode()
+	  {
+	    return name.hashCode();
+	  }
+
+	  public String toString()
+	  {
+	    return name;
+	  }
+	}
+
 	// Comma used as a separator in functions with several arguments.
 	class SepItem implements Item
 	{
@@ -552,8 +704,9 @@ public class Items {
 	  public double getValue(double ... x) throws Exception
 	  {
 	    if (x.length != getCount() || x[0] < 0) throw new Exception("Factorial(x), x >= 0: Illegal argument...");
+	    if (x[0] >= Program.MAX_FACTORIAL + 1) return Double.POSITIVE_INFINITY;
 	    int n = (int)x[0];
-	    long u = 1;
+	    double u = 1;
 	    for (int i = 2; i <= n; ++i) u *= i;
 	    return u;
 	  }
@@ -562,5 +715,123 @@ public class Items {
 	  {
 	    return "Factorial";
 	  }
+	}
+
+	// Integrate(f, x, a, b) is the integral of f over the variable x from a to b; f is evaluated by the program
+	// at the points chosen by adaptive Gauss-Kronrod quadrature, so the value can not be computed from the arguments
+	class IntegrateItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 4;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    throw new Exception("Integrate(f, x, a, b): evaluated by programs only");
+	  }
+
+	  public String toString()
+	  {
+	    return "Integrate";
+	  }
+	}
+
+	// Sum(f, i, from, to) is the sum of f for the variable i = from, from + 1, ... up to to
+	class SumItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 4;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    throw new Exception("Sum(f, i, from, to): evaluated by programs only");
+	  }
+
+	  public String toString()
+	  {
+	    return "Sum";
+	  }
+	}
+
+	// Conditional, If(c, a, b) is a if c is true and b otherwise; programs evaluate only the branch taken
+	class IfItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 3;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    if (x.length != getCount()) throw new Exception("If(c, a, b): Illegal argument...");
+	    return Program.isTrue(x[0]) ? x[1] : x[2];
+	  }
+
+	  public String toString()
+	  {
+	    return "If";
+	  }
+	}
+
+	// The smaller of two values, as Math.min
+	class MinItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 2;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    if (x.length != getCount()) throw new Exception("Min(x1, x2): Illegal argument...");
+	    return Math.min(x[0], x[1]);
+	  }
+
+	  public String toString()
+	  {
+	    return "Min";
+	  }
+	}
 
-}
+	// The larger of two values, as Math.max
+	class MaxItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 2;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    if (x.length != getCount()) throw new Exception("Max(x1, x2): Illegal argument...");
+	    return Math.max(x[0], x[1]);
+	  }
+
+	  public String toString()
+	  {
+	    return "Max";
+	  }
+	}
+
+	// Clamp(x, low, high) is Min(Max(x, low), high)
+	class ClampItem extends FuncItem
+	{
+	  public int getCount()
+	  {
+	    return 3;
+	  }
+
+	  public double getValue(double ... x) throws Exception
+	  {
+	    if (x.length != getCount()) throw new Exception("Clamp(x, low, high): Illegal argument...");
+	    return Math.min(Math.max(x[0], x[1]), x[2]);
+	  }
+
+	  public String toString()
+	  {
+	    return "Clamp";
+	  }
+	}
@@ -0,0 +1,87 @@
+package com.project.cal.model;
+
+/**
+ * The loops of batch evaluation for the operations that map directly to SIMD instructions, each applied
+ * to the first n values of a block. This class runs them as plain loops, which the JIT may vectorize;
+ * on Java 17 and later the multi-release jar holds VectorKernels, which runs them over DoubleVector lanes
+ * of the widest width the processor has. Every operation here is exactly rounded, so both give bit-identical results.
+ * <p>
+ * The vector kernels are used when the module jdk.incubator.vector is present, which takes
+ * --add-modules jdk.incubator.vector on the command line, unless the system property
+ * com.project.cal.vector is false. Otherwise, and on Java 11, these scalar loops are used.
+ */
+class Kernels
+{
+  static final Kernels INSTANCE = load();
+
+  Kernels()
+  {
+  }
+
+  private static Kernels load()
+  {
+    if (!Boolean.parseBoolean(System.getProperty("com.project.cal.vector", "true"))) return new Kernels();
+    try
+    {
+      return (Kernels)Class.forName(Kernels.class.getName().replace("Kernels", "VectorKernels"))
+        .getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException | LinkageError ex)
+    {
+      // not on the class path, compiled for a later Java version, or the vector module is missing
+      return new Kernels();
+    }
+  }
+
+  /**
+   * @return true if the operations run over vector lanes
+   */
+  boolean isVector()
+  {
+    return false;
+  }
+
+  // x[i] += y[i]
+  void add(double[] x, double[] y, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] += y[i];
+  }
+
+  // x[i] -= y[i]
+  void sub(double[] x, double[] y, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] -= y[i];
+  }
+
+  // x[i] *= y[i]
+  void mul(double[] x, double[] y, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] *= y[i];
+  }
+
+  // x[i] /= y[i]
+  void div(double[] x, double[] y, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] /= y[i];
+  }
+
+  void neg(double[] x, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] = -x[i];
+  }
+
+  void sqr(double[] x, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] *= x[i];
+  }
+
+  void sqrt(double[] x, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] = Math.sqrt(x[i]);
+  }
+
+  void abs(double[] x, int n)
+  {
+    for (int i = 0; i < n; ++i) x[i] = Math.abs(x[i]);
+  }
+}
@@ -0,0 +1,329 @@
+package com.project.cal.model;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Scanner dividing an expression into items in a single pass over the characters.
+ * Numbers are converted and names looked up directly in the text, without intermediate strings.
+ * Errors are reported by an error code and the position of the offending character,
+ * so scanning never throws an exception.
+ */
+final class Lexer
+{
+  static final int OK = 0;
+  static final int ILLEGAL_CHARACTER = 1;
+  static final int ILLEGAL_NUMBER = 2;
+  static final int UNKNOWN_NAME = 3;
+
+  // The decimal separator of the default locale, accepted in numbers in addition to '.'
+  private static final char separator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+  private static final double[] powers = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+  private static final Trie names = new Trie();
+
+  static
+  {
+    String[] keywords = { "pi", "e", "ln", "exp", "log", "sqr", "sqrt", "pow", "abs", "factorial", "if", "min", "max",
+      "clamp", "and", "or", "integrate", "sum" };
+    for (int i = 0; i < keywords.length; ++i) names.add(keywords[i], i);
+  }
+
+  private final CharSequence text;
+  private final boolean comma;
+  private int pos;
+  private int start;
+  private Item last;
+  private int error;
+  private int errorPosition;
+
+  /**
+   * @param text The characters to scan
+   * @param comma true if the locale's decimal separator may be a comma, which is only unambiguous in a single number
+   * @param last The item before the text, null at the start of an expression
+   */
+  Lexer(CharSequence text, boolean comma, Item last)
+  {
+    this.text = text;
+    this.comma = comma;
+    this.last = last;
+  }
+
+  Lexer(CharSequence text)
+  {
+    this(text, false, null);
+  }
+
+  /**
+   * @return The code of the error stopping the scan, OK if there is none
+   */
+  int getError()
+  {
+    return error;
+  }
+
+  /**
+   * @return The position of the character causing the error
+   */
+  int getErrorPosition()
+  {
+    return errorPosition;
+  }
+
+  /**
+   * @return The position of the first character of the last item scanned
+   */
+  int getStart()
+  {
+    return start;
+  }
+
+  /**
+   * @return The position after the last item scanned
+   */
+  int getPosition()
+  {
+    return pos;
+  }
+
+  /**
+   * Scans the next item. A plus used as a sign gives a SkipItem.
+   * @return The next item, or null at the end of the text or at an error
+   */
+  Item next()
+  {
+    int length = text.length();
+    while (pos < length)
+    {
+      char c = text.charAt(pos);
+      if (Character.isWhitespace(c))
+      {
+        ++pos;
+        continue;
+      }
+      start = pos;
+      Item item;
+      if (isDigit(c) || isSeparator(c)) item = number();
+      else if (isLetter(c)) item = name();
+      else
+      {
+        item = operator(c);
+        if (item != null) ++pos;
+        else fail(ILLEGAL_CHARACTER, pos);
+      }
+      last = item;
+      return item;
+    }
+    return null;
+  }
+
+  private Item operator(char c)
+  {
+    switch (c)
+    {
+      case '+': return isSign(last) ? Items.SKIP : Items.ADD;
+      case '-': return isSign(last) ? Items.SIGN : Items.SUB;
+      case '*': return Items.MUL;
+      case '/': return Items.DIV;
+      case '(': return Items.LEFT;
+      case ')': return Items.RIGHT;
+      case ',': return Items.SEP;
+      // the second character of a two character operator is skipped here, the first by the caller
+      case '<': return followedByEquals() ? Items.LESS_EQUAL : Items.LESS;
+      case '>': return followedByEquals() ? Items.GREATER_EQUAL : Items.GREATER;
+      case '=': return followedByEquals() ? Items.EQUAL : null;
+      case '!': return followedByEquals() ? Items.NOT_EQUAL : null;
+      default: return null;
+    }
+  }
+
+  // true, and skips it, if the character after the current one is =
+  private boolean followedByEquals()
+  {
+    if (pos + 1 >= text.length() || text.charAt(pos + 1) != '=') return false;
+    ++pos;
+    return true;
+  }
+
+  // A + or - is a sign at the start of an expression, an argument or a parenthesis, and after an operator or sign.
+  private static boolean isSign(Item item)
+  {
+    return (item == null) || (item instanceof OprItem) || (item instanceof LeftItem) || (item instanceof SepItem)
+      || (item instanceof SignItem) || (item instanceof SkipItem);
+  }
+
+  // digits [separator digits] [e [sign] digits], converted exactly when the value fits the fast path
+  private Item number()
+  {
+    int start = pos;
+    int length = text.length();
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    boolean point = false;
+    for (; pos < length; ++pos)
+    {
+      char c = text.charAt(pos);
+      if (isDigit(c))
+      {
+        if (digits < 18)
+        {
+          mantissa = 10 * mantissa + (c - '0');
+          if (mantissa > 0) ++digits;
+          if (point) --scale;
+        }
+        else if (!point) ++scale;
+      }
+      else if (isSeparator(c) && !point) point = true;
+      else break;
+    }
+    if (pos == start + 1 && point) return fail(ILLEGAL_NUMBER, start);
+    int exponent = 0;
+    if (pos + 1 < length && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E'))
+    {
+      int e = pos + 1;
+      boolean negative = text.charAt(e) == '-';
+      if (negative || text.charAt(e) == '+') ++e;
+      if (e < length && isDigit(text.charAt(e)))
+      {
+        for (pos = e; pos < length && isDigit(text.charAt(pos)); ++pos)
+          if (exponent < 10000) exponent = 10 * exponent + (text.charAt(pos) - '0');
+        if (negative) exponent = -exponent;
+      }
+    }
+    if (pos < length && isLetter(text.charAt(pos))) return fail(ILLEGAL_NUMBER, pos);
+    scale += exponent;
+    // both the mantissa and the power of ten are exact doubles, so one operation rounds correctly
+    if (digits <= 15 && scale >= -22 && scale <= 22)
+      return ConstItem.of(scale < 0 ? mantissa / powers[-scale] : mantissa * powers[scale]);
+    return ConstItem.of(Double.parseDouble(text.subSequence(start, pos).toString().replace(separator, '.')));
+  }
+
+  // A function, a named constant, a variable X<index> or a named variable: a letter followed by letters, digits and _
+  private Item name()
+  {
+    int start = pos;
+    int length = text.length();
+    int node = 0;
+    while (pos < length && isLetter(text.charAt(pos)))
+    {
+      if (node >= 0) node = names.next(node, text.charAt(pos));
+      ++pos;
+    }
+    int end = pos;
+    while (pos < length && isDigit(text.charAt(pos))) ++pos;
+    int digits = pos;
+    while (pos < length && (isLetter(text.charAt(pos)) || isDigit(text.charAt(pos)) || text.charAt(pos) == '_')) ++pos;
+    if (pos == end && node >= 0)
+    {
+      int keyword = names.value(node);
+      if (keyword >= 0) return keyword(keyword);
+    }
+    if (end == start + 1 && pos == digits && pos > end && (text.charAt(start) == 'x' || text.charAt(start) == 'X'))
+    {
+      int id = 0;
+      for (int i = end; i < pos; ++i)
+      {
+        id = 10 * id + (text.charAt(i) - '0');
+        if (id > 0xFFFFFF) return fail(UNKNOWN_NAME, start);
+      }
+      return VarItem.of(id);
+    }
+    // a name followed by a parenthesis is an unknown function rather than a variable
+    int next = pos;
+    while (next < length && Character.isWhitespace(text.charAt(next))) ++next;
+    if (next < length && text.charAt(next) == '(') return fail(UNKNOWN_NAME, start);
+    return new NameItem(text.subSequence(start, pos).toString().toLowerCase(Locale.ROOT));
+  }
+
+  private static Item keyword(int keyword)
+  {
+    switch (keyword)
+    {
+      case 0: return Items.PI;
+      case 1: return Items.E;
+      case 2: return Items.LN;
+      case 3: return Items.EXP;
+      case 4: return Items.LOG;
+      case 5: return Items.SQR;
+      case 6: return Items.SQRT;
+      case 7: return Items.POW;
+      case 8: return Items.ABS;
+      case 9: return Items.FACTORIAL;
+      case 10: return Items.IF;
+      case 11: return Items.MIN;
+      case 12: return Items.MAX;
+      case 13: return Items.CLAMP;
+      case 14: return Items.AND;
+      case 15: return Items.OR;
+      case 16: return Items.INTEGRATE;
+      default: return Items.SUM;
+    }
+  }
+
+  private Item fail(int code, int position)
+  {
+    error = code;
+    errorPosition = position;
+    return null;
+  }
+
+  private boolean isSeparator(char c)
+  {
+    return c == '.' || c == separator && (comma || c != ',');
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  /**
+   * Case insensitive trie of the names, stored in arrays: for node n and letter c,
+   * next[26 * n + c - 'a'] is the following node, and value[n] the keyword ending at n or -1.
+   */
+  private static final class Trie
+  {
+    private int[] next = new int[26];
+    private int[] value = { -1 };
+    private int size = 1;
+
+    void add(String name, int keyword)
+    {
+      int node = 0;
+      for (int i = 0; i < name.length(); ++i)
+      {
+        int index = 26 * node + name.charAt(i) - 'a';
+        if (next[index] == 0)
+        {
+          if (size == value.length)
+          {
+            value = java.util.Arrays.copyOf(value, 2 * size);
+            java.util.Arrays.fill(value, size, 2 * size, -1);
+            next = java.util.Arrays.copyOf(next, 26 * 2 * size);
+          }
+          next[index] = size++;
+        }
+        node = next[index];
+      }
+      value[node] = keyword;
+    }
+
+    // The node following node by the letter c, -1 if there is none
+    int next(int node, char c)
+    {
+      int child = next[26 * node + (c | 0x20) - 'a'];
+      return child == 0 ? -1 : child;
+    }
+
+    int value(int node)
+    {
+      return value[node];
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.project.cal.model;
+
+/**
+ * Node in the graph of an expression, built from the postfix item list.
+ * The operation is one of the program's opcodes; constants carry their value and variables their index.
+ * Two nodes are equal if they have the same operation, value and index and identical arguments,
+ * so when the arguments are interned, equal nodes represent the same subexpression.
+ * A sum or an integral also has a body, the graph of the expression summed or integrated, evaluated apart
+ * from the rest of the graph with the bound variable in its index.
+ */
+final class Node
+{
+  private static final Node[] none = new Node[0];
+
+  final int op;
+  final double value;
+  final int index;
+  final Node[] args;
+  final Node body;
+  private final int hash;
+
+  private Node(int op, double value, int index, Node body, Node[] args)
+  {
+    this.op = op;
+    this.value = value;
+    this.index = index;
+    this.body = body;
+    this.args = args;
+    int h = 31 * (31 * (31 * op + Double.hashCode(value)) + index) + System.identityHashCode(body);
+    for (Node arg : args) h = 31 * h + System.identityHashCode(arg);
+    hash = h;
+  }
+
+  static Node constant(double value)
+  {
+    return new Node(Program.CONST, value, 0, null, none);
+  }
+
+  static Node variable(int index)
+  {
+    return new Node(Program.VAR, 0, index, null, none);
+  }
+
+  static Node operation(int op, Node ... args)
+  {
+    return new Node(op, 0, 0, null, args);
+  }
+
+  // Sum or Integrate of body over the variable at position variable, from the value of from to that of to
+  static Node reduction(int op, Node body, int variable, Node from, Node to)
+  {
+    return new Node(op, 0, variable, body, new Node[] { from, to });
+  }
+
+  boolean isConst()
+  {
+    return op == Program.CONST;
+  }
+
+  // true if the node is the constant with exactly this value, sign of zero included
+  boolean is(double constant)
+  {
+    return op == Program.CONST && Double.doubleToLongBits(value) == Double.doubleToLongBits(constant);
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (obj == this) return true;
+    if (!(obj instanceof Node)) return false;
+    Node node = (Node)obj;
+    if (node.hash != hash || node.op != op || node.index != index || node.body != body) return false;
+    if (node.args.length != args.length) return false;
+    if (Double.doubleToLongBits(node.value) != Double.doubleToLongBits(value)) return false;
+    for (int i = 0; i < args.length; ++i)
+      if (node.args[i] != args[i]) return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+}
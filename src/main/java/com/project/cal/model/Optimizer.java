@@ -0,0 +1,368 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+/**
+ * Builds the graph of an expression from its postfix item list and simplifies it on the way.
+ * Every node is simplified as soon as its arguments are known, so the work is done bottom-up in one pass:
+ * operations on constants only are folded to a constant and neutral operands are removed.
+ * By default every rewrite gives bit-identical results; rewrites that do not are enabled by options.
+ * Operations are also strength reduced: powers with small constant exponents become multiplications
+ * and division by a constant becomes multiplication by its reciprocal.
+ * Nodes are hash-consed, so structurally identical subexpressions become one shared node.
+ * The logical operators become conditionals, a and b being If(a, Bool(b), 0) and a or b If(a, 1, Bool(b)),
+ * so b is evaluated only when needed; a conditional with a constant condition is its branch.
+ * The body of a sum or an integral is simplified as any graph, but the sum or integral itself is never folded.
+ */
+final class Optimizer
+{
+  // The largest integer exponent expanded to multiplications
+  private static final int MAX_POWER = 64;
+  // Items built from other operations, numbered after the opcodes
+  private static final int AND = 256;
+  private static final int OR = 257;
+  private static final int CLAMP = 258;
+
+  private final Set<Expression.Option> options;
+  private final HashMap<Node, Node> nodes = new HashMap<Node, Node>();
+  private int shared;
+
+  Optimizer(Set<Expression.Option> options)
+  {
+    this.options = options;
+  }
+
+  /**
+   * @return The simplified graph of the postfix item list
+   * @throws Exception If the list does not describe a single value
+   */
+  Node build(List<Item> postfix) throws Exception
+  {
+    Deque<Node> stack = new ArrayDeque<Node>();
+    for (Item item : postfix)
+    {
+      if (item instanceof ConstItem) stack.push(constant(((ConstItem)item).getValue()));
+      else if (item instanceof VarItem) stack.push(intern(Node.variable(((VarItem)item).getId())));
+      else if (item instanceof PiItem) stack.push(constant(Math.PI));
+      else if (item instanceof EItem) stack.push(constant(Math.E));
+      else
+      {
+        int op = opcode(item);
+        Node[] args = new Node[op == Program.INTEGRATE || op == Program.SUM ? 4
+          : op == Program.IF || op == CLAMP ? 3 : op == AND || op == OR ? 2 : Program.arity(op)];
+        if (stack.size() < args.length) throw new Exception("Missing argument for " + item);
+        for (int i = args.length - 1; i >= 0; --i) args[i] = stack.pop();
+        switch (op)
+        {
+          case AND:
+            stack.push(simplify(Program.IF, new Node[] { args[0], simplify(Program.BOOL, new Node[] { args[1] }), constant(0.0) }));
+            break;
+          case OR:
+            stack.push(simplify(Program.IF, new Node[] { args[0], constant(1.0), simplify(Program.BOOL, new Node[] { args[1] }) }));
+            break;
+          case CLAMP:
+            stack.push(simplify(Program.MIN, new Node[] { simplify(Program.MAX, new Node[] { args[0], args[1] }), args[2] }));
+            break;
+          case Program.INTEGRATE:
+          case Program.SUM:
+            if (args[1].op != Program.VAR) throw new Exception(item + "(f, x, a, b): x must be a variable");
+            stack.push(reduction(op, args[0], args[1].index, args[2], args[3]));
+            break;
+          default:
+            stack.push(simplify(op, args));
+        }
+      }
+    }
+    if (stack.size() != 1) throw new Exception("Illegal expression");
+    return stack.pop();
+  }
+
+  /**
+   * Rebuilds the graph of a compiled program, interning its nodes with those already built,
+   * so subexpressions common to several programs become shared nodes.
+   * @param positions The position in the graph of each variable position of the program
+   * @return The graph of the program
+   */
+  Node build(Program program, int[] positions)
+  {
+    Node[] stack = new Node[program.maxStack];
+    Node[] slots = new Node[program.slots];
+    int sp = -1;
+    // the open conditionals, innermost last: condition, first branch and end
+    Node[] conditions = new Node[4];
+    Node[] firsts = new Node[4];
+    int[] ends = new int[4];
+    int open = 0;
+    for (int pc = 0; pc <= program.code.length; ++pc)
+    {
+      while (open > 0 && ends[open - 1] == pc)
+      {
+        --open;
+        stack[sp] = operation(Program.IF, conditions[open], firsts[open], stack[sp]);
+      }
+      if (pc == program.code.length) break;
+      int ins = program.code[pc];
+      int op = Program.opcode(ins);
+      int operand = Program.operand(ins);
+      switch (op)
+      {
+        case Program.JUMP_FALSE:
+          if (open == conditions.length)
+          {
+            conditions = Arrays.copyOf(conditions, 2 * open);
+            firsts = Arrays.copyOf(firsts, 2 * open);
+            ends = Arrays.copyOf(ends, 2 * open);
+          }
+          conditions[open] = stack[sp--];
+          ends[open++] = -1;
+          break;
+        case Program.JUMP:
+          firsts[open - 1] = stack[sp--];
+          ends[open - 1] = operand;
+          break;
+        case Program.CONST: stack[++sp] = constant(program.consts[operand]); break;
+        case Program.VAR: stack[++sp] = intern(Node.variable(positions[operand])); break;
+        case Program.STORE: slots[operand] = stack[sp]; break;
+        case Program.LOAD: stack[++sp] = slots[operand]; break;
+        case Program.INTEGRATE:
+        case Program.SUM:
+          --sp;
+          stack[sp] = reduction(op, build(program.bodies[operand], positions), positions[program.variables[operand]],
+            stack[sp], stack[sp + 1]);
+          break;
+        default:
+          Node[] args = new Node[Program.arity(op)];
+          sp -= args.length;
+          System.arraycopy(stack, sp + 1, args, 0, args.length);
+          stack[++sp] = operation(op, args);
+      }
+    }
+    return stack[sp];
+  }
+
+  /**
+   * @return The number of operations built so far that were identical to an existing one
+   */
+  int getShared()
+  {
+    return shared;
+  }
+
+  private Node constant(double value)
+  {
+    return intern(Node.constant(value));
+  }
+
+  private Node operation(int op, Node ... args)
+  {
+    Node node = intern(Node.operation(op, args));
+    if (node.args != args) ++shared;
+    return node;
+  }
+
+  private Node reduction(int op, Node body, int variable, Node from, Node to)
+  {
+    Node reduction = Node.reduction(op, body, variable, from, to);
+    Node node = intern(reduction);
+    if (node != reduction) ++shared;
+    return node;
+  }
+
+  private Node intern(Node node)
+  {
+    Node existing = nodes.putIfAbsent(node, node);
+    return existing != null ? existing : node;
+  }
+
+  private static int opcode(Item item) throws Exception
+  {
+    if (item instanceof AddItem) return Program.ADD;
+    if (item instanceof SubItem) return Program.SUB;
+    if (item instanceof MulItem) return Program.MUL;
+    if (item instanceof DivItem) return Program.DIV;
+    if (item instanceof SignItem) return Program.NEG;
+    if (item instanceof LnItem) return Program.LN;
+    if (item instanceof ExpItem) return Program.EXP;
+    if (item instanceof LogItem) return Program.LOG;
+    if (item instanceof SqrItem) return Program.SQR;
+    if (item instanceof SqrtToken) return Program.SQRT;
+    if (item instanceof AbsItem) return Program.ABS;
+    if (item instanceof PowItem) return Program.POW;
+    if (item instanceof FactorialItem) return Program.FACT;
+    if (item instanceof LessItem) return Program.LT;
+    if (item instanceof LessEqualItem) return Program.LE;
+    if (item instanceof GreaterItem) return Program.GT;
+    if (item instanceof GreaterEqualItem) return Program.GE;
+    if (item instanceof EqualItem) return Program.EQ;
+    if (item instanceof NotEqualItem) return Program.NE;
+    if (item instanceof MinItem) return Program.MIN;
+    if (item instanceof MaxItem) return Program.MAX;
+    if (item instanceof IfItem) return Program.IF;
+    if (item instanceof AndItem) return AND;
+    if (item instanceof OrItem) return OR;
+    if (item instanceof ClampItem) return CLAMP;
+    if (item instanceof IntegrateItem) return Program.INTEGRATE;
+    if (item instanceof SumItem) return Program.SUM;
+    throw new Exception("Illegal item " + item);
+  }
+
+  private Node simplify(int op, Node[] args)
+  {
+    if (op == Program.IF)
+    {
+      // only the branch taken is evaluated, so a constant condition picks it whatever the other branch is
+      if (args[0].isConst()) return Program.isTrue(args[0].value) ? args[1] : args[2];
+      if (args[0].op == Program.BOOL) return simplify(op, new Node[] { args[0].args[0], args[1], args[2] });
+      if (args[1] == args[2]) return args[1];
+      return operation(op, args);
+    }
+    if (isConst(args))
+    {
+      double value = fold(op, args);
+      if (!Double.isNaN(value) || op != Program.FACT) return constant(value);
+    }
+    boolean relaxed = options.contains(Expression.Option.RELAXED);
+    Node x = args[0];
+    Node y = args.length > 1 ? args[1] : null;
+    switch (op)
+    {
+      case Program.ADD:
+        // constants to the right, where reassociation can find them
+        if (x.isConst() && !y.isConst()) return simplify(op, new Node[] { y, x });
+        if (y.is(-0.0) || relaxed && y.is(0.0)) return x;
+        if (relaxed && y.isConst()) return reassociate(op, x, y.value);
+        break;
+      case Program.SUB:
+        if (y.is(0.0) || relaxed && y.is(-0.0)) return x;
+        if (relaxed && x.is(0.0)) return simplify(Program.NEG, new Node[] { y });
+        if (relaxed && y.isConst()) return reassociate(op, x, y.value);
+        break;
+      case Program.MUL:
+        if (x.isConst() && !y.isConst()) return simplify(op, new Node[] { y, x });
+        if (y.is(1.0)) return x;
+        if (y.is(-1.0)) return simplify(Program.NEG, new Node[] { x });
+        if (relaxed && y.isConst()) return reassociate(op, x, y.value);
+        break;
+      case Program.DIV:
+        if (y.is(1.0)) return x;
+        if (y.is(-1.0)) return simplify(Program.NEG, new Node[] { x });
+        // x / 2^k = x * 2^-k exactly, since both round the same real number
+        if (y.isConst() && (isPowerOfTwo(y.value) || relaxed && isFinite(1 / y.value) && 1 / y.value != 0))
+          return simplify(Program.MUL, new Node[] { x, constant(1 / y.value) });
+        if (relaxed && y.isConst()) return reassociate(op, x, y.value);
+        break;
+      case Program.POW:
+        if (y.isConst()) return power(x, y.value, relaxed);
+        break;
+      case Program.NEG:
+        if (x.op == Program.NEG) return x.args[0];
+        break;
+      case Program.EXP:
+        if (x.op == Program.LN && options.contains(Expression.Option.EXP_LN)) return x.args[0];
+        break;
+      case Program.BOOL:
+        // comparisons and Bool are already 0 or 1
+        if (x.op == Program.BOOL || x.op >= Program.LT && x.op <= Program.NE) return x;
+        break;
+    }
+    return operation(op, args);
+  }
+
+  // x to the constant power n: Math.pow gives exactly 1, x and x * x for n = 0, 1 and 2,
+  // other integers are computed by repeated squaring and 0.5 as a square root when relaxed.
+  private Node power(Node x, double n, boolean relaxed)
+  {
+    if (n == 0) return constant(1.0);
+    if (n == 1) return x;
+    if (n == 2) return simplify(Program.SQR, new Node[] { x });
+    if (relaxed && n == 0.5) return simplify(Program.SQRT, new Node[] { x });
+    if (relaxed && n == (int)n && Math.abs(n) <= MAX_POWER)
+    {
+      int m = Math.abs((int)n);
+      Node result = null;
+      for (Node square = x; ; square = simplify(Program.SQR, new Node[] { square }))
+      {
+        if ((m & 1) != 0) result = result == null ? square : simplify(Program.MUL, new Node[] { result, square });
+        m >>= 1;
+        if (m == 0) break;
+      }
+      return n > 0 ? result : simplify(Program.DIV, new Node[] { constant(1.0), result });
+    }
+    return operation(Program.POW, x, constant(n));
+  }
+
+  // Combines the constant c with a constant operand of x: (a + c1) - c2 = a + (c1 - c2) and so on.
+  private Node reassociate(int op, Node x, double c)
+  {
+    if (x.args.length == 2 && x.args[1].isConst())
+    {
+      Node a = x.args[0];
+      double c1 = x.args[1].value;
+      switch (op * 32 + x.op)
+      {
+        case Program.ADD * 32 + Program.ADD: return simplify(Program.ADD, new Node[] { a, constant(c1 + c) });
+        case Program.ADD * 32 + Program.SUB: return simplify(Program.ADD, new Node[] { a, constant(c - c1) });
+        case Program.SUB * 32 + Program.ADD: return simplify(Program.ADD, new Node[] { a, constant(c1 - c) });
+        case Program.SUB * 32 + Program.SUB: return simplify(Program.SUB, new Node[] { a, constant(c1 + c) });
+        case Program.MUL * 32 + Program.MUL: return simplify(Program.MUL, new Node[] { a, constant(c1 * c) });
+        case Program.MUL * 32 + Program.DIV: return simplify(Program.MUL, new Node[] { a, constant(c / c1) });
+        case Program.DIV * 32 + Program.MUL: return simplify(Program.MUL, new Node[] { a, constant(c1 / c) });
+        case Program.DIV * 32 + Program.DIV: return simplify(Program.DIV, new Node[] { a, constant(c1 * c) });
+      }
+    }
+    return operation(op, x, constant(c));
+  }
+
+  // true if c is 2^k with 2^-k a double as well
+  private static boolean isPowerOfTwo(double c)
+  {
+    int exponent = Math.getExponent(c);
+    return exponent >= Double.MIN_EXPONENT && exponent <= Double.MAX_EXPONENT
+      && (Double.doubleToRawLongBits(c) & 0x000FFFFFFFFFFFFFL) == 0;
+  }
+
+  private static boolean isFinite(double x)
+  {
+    return x - x == 0;
+  }
+
+  private static boolean isConst(Node[] args)
+  {
+    for (Node arg : args)
+      if (!arg.isConst()) return false;
+    return true;
+  }
+
+  // Value of an operation on constant arguments, computed exactly as the program would.
+  private static double fold(int op, Node[] args)
+  {
+    double x = args[0].value;
+    double y = args.length > 1 ? args[1].value : 0;
+    switch (op)
+    {
+      case Program.ADD: return x + y;
+      case Program.SUB: return x - y;
+      case Program.MUL: return x * y;
+      case Program.DIV: return x / y;
+      case Program.NEG: return -x;
+      case Program.LN: return Math.log(x);
+      case Program.EXP: return Math.exp(x);
+      case Program.LOG: return Math.log10(x);
+      case Program.SQR: return x * x;
+      case Program.SQRT: return Math.sqrt(x);
+      case Program.ABS: return Math.abs(x);
+      case Program.POW: return Math.pow(x, y);
+      case Program.FACT: return Program.factorial(x);
+      case Program.LT: return x < y ? 1 : 0;
+      case Program.LE: return x <= y ? 1 : 0;
+      case Program.GT: return x > y ? 1 : 0;
+      case Program.GE: return x >= y ? 1 : 0;
+      case Program.EQ: return x == y ? 1 : 0;
+      case Program.NE: return x != y ? 1 : 0;
+      case Program.MIN: return Math.min(x, y);
+      case Program.MAX: return Math.max(x, y);
+      case Program.BOOL: return Program.isTrue(x) ? 1 : 0;
+      default: throw new IllegalStateException("Illegal operation " + op);
+    }
+  }
+}
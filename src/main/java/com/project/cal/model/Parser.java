@@ -0,0 +1,260 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+/**
+ * Operator-precedence parser checking the syntax of an expression and converting it to postfix form
+ * in one pass over the items (shunting-yard with validation).
+ * The parser is a small state machine expecting either an operand or an operator; pending operators
+ * and open parentheses are kept on explicit stacks, so the work is linear in the length of the text
+ * and the depth of the Java stack is constant however long or deeply nested the expression is.
+ * Errors are reported by an error code and the position of the offending character, as by the Lexer,
+ * never by exceptions, so checking many illegal texts costs no more than checking legal ones.
+ */
+final class Parser
+{
+  static final int OK = Lexer.OK;
+  /** An operator, comma or parenthesis where it is not allowed */
+  static final int UNEXPECTED_ITEM = 4;
+  /** The text ends where an operand is expected */
+  static final int UNEXPECTED_END = 5;
+  /** A right parenthesis without a left one, or the other way around */
+  static final int UNBALANCED_PARENTHESIS = 6;
+  /** A function with the wrong number of arguments */
+  static final int ARGUMENT_COUNT = 7;
+  /** Integrate or Sum whose second argument is not a single variable */
+  static final int BOUND_VARIABLE = 8;
+
+  private final CharSequence source;
+  private final ArrayList<Item> postfix = new ArrayList<Item>();
+  // null when only the syntax is checked
+  private final StringBuilder text;
+  // pending signs, operators and left parentheses
+  private Item[] operators = new Item[16];
+  private int operatorCount;
+  // for each open parenthesis: the function called, or null, the arguments seen and the position
+  private FuncItem[] calls = new FuncItem[16];
+  private int[] counts = new int[16];
+  private int[] positions = new int[16];
+  // for each open parenthesis, the size of the postfix list at the start of the current argument
+  private int[] marks = new int[16];
+  private int depth;
+  private int error;
+  private int errorPosition;
+
+  /**
+   * @param source The expression on infix form
+   */
+  Parser(CharSequence source)
+  {
+    this(source, true);
+  }
+
+  /**
+   * @param source The expression on infix form
+   * @param text false to check the syntax only, without building the text of getText
+   */
+  Parser(CharSequence source, boolean text)
+  {
+    this.source = source;
+    this.text = text ? new StringBuilder() : null;
+  }
+
+  /**
+   * Parses the expression.
+   * @return true if the expression is legal
+   */
+  boolean parse()
+  {
+    Lexer lexer = new Lexer(source);
+    boolean operand = true;
+    // a function waiting to see if an argument list follows
+    FuncItem call = null;
+    int callPosition = 0;
+    for (Item item = lexer.next(); item != null; item = lexer.next())
+    {
+      if (item instanceof SkipItem) continue;
+      int position = lexer.getStart();
+      append(item);
+      if (call != null)
+      {
+        if (item instanceof LeftItem)
+        {
+          open(call, callPosition);
+          call = null;
+          operand = true;
+          continue;
+        }
+        if (call.getCount() > 0) return fail(ARGUMENT_COUNT, callPosition);
+        postfix.add(call);
+        call = null;
+      }
+      if (operand)
+      {
+        if (item instanceof SignItem) push(item);
+        else if (item instanceof ArgItem)
+        {
+          postfix.add(item);
+          operand = false;
+        }
+        else if (item instanceof FuncItem)
+        {
+          call = (FuncItem)item;
+          callPosition = position;
+          operand = false;
+        }
+        else if (item instanceof LeftItem) open(null, position);
+        else return fail(UNEXPECTED_ITEM, position);
+      }
+      else if (item instanceof OprItem)
+      {
+        flush(item.getPriority());
+        push(item);
+        operand = true;
+      }
+      else if (item instanceof SepItem)
+      {
+        flush(Integer.MAX_VALUE);
+        if (depth == 0 || calls[depth - 1] == null) return fail(UNEXPECTED_ITEM, position);
+        // the argument after the body of a sum or an integral is the variable it binds
+        FuncItem function = calls[depth - 1];
+        if (counts[depth - 1] == 1 && (function instanceof IntegrateItem || function instanceof SumItem)
+          && !isVariable(marks[depth - 1])) return fail(BOUND_VARIABLE, positions[depth - 1]);
+        ++counts[depth - 1];
+        marks[depth - 1] = postfix.size();
+        operand = true;
+      }
+      else if (item instanceof RightItem)
+      {
+        flush(Integer.MAX_VALUE);
+        if (depth == 0) return fail(UNBALANCED_PARENTHESIS, position);
+        --operatorCount;
+        FuncItem function = calls[--depth];
+        if (function != null)
+        {
+          if (counts[depth] + 1 != function.getCount()) return fail(ARGUMENT_COUNT, positions[depth]);
+          postfix.add(function);
+        }
+      }
+      else return fail(UNEXPECTED_ITEM, position);
+    }
+    if (lexer.getError() != Lexer.OK) return fail(lexer.getError(), lexer.getErrorPosition());
+    if (call != null)
+    {
+      if (call.getCount() > 0) return fail(ARGUMENT_COUNT, callPosition);
+      postfix.add(call);
+    }
+    if (operand) return fail(UNEXPECTED_END, source.length());
+    flush(Integer.MAX_VALUE);
+    if (depth > 0) return fail(UNBALANCED_PARENTHESIS, positions[depth - 1]);
+    return true;
+  }
+
+  /**
+   * @return The expression on postfix form, complete if parse returned true
+   */
+  ArrayList<Item> getPostfix()
+  {
+    return postfix;
+  }
+
+  /**
+   * @return The items of the expression separated by single spaces, null if only the syntax is checked
+   */
+  String getText()
+  {
+    return text == null ? null : text.toString();
+  }
+
+  /**
+   * @return The code of the error found by parse, OK if there is none
+   */
+  int getError()
+  {
+    return error;
+  }
+
+  /**
+   * @return The position of the character causing the error
+   */
+  int getErrorPosition()
+  {
+    return errorPosition;
+  }
+
+  /**
+   * @return A short description of an error code
+   */
+  static String describe(int code)
+  {
+    switch (code)
+    {
+      case OK: return "No error";
+      case Lexer.ILLEGAL_CHARACTER: return "Illegal character";
+      case Lexer.ILLEGAL_NUMBER: return "Illegal number";
+      case Lexer.UNKNOWN_NAME: return "Unknown name";
+      case UNEXPECTED_ITEM: return "Unexpected item";
+      case UNEXPECTED_END: return "Unexpected end";
+      case UNBALANCED_PARENTHESIS: return "Unbalanced parenthesis";
+      case ARGUMENT_COUNT: return "Wrong number of arguments";
+      case BOUND_VARIABLE: return "Variable expected";
+      default: return "Error " + code;
+    }
+  }
+
+  // true if the items from mark are a single variable
+  private boolean isVariable(int mark)
+  {
+    if (postfix.size() != mark + 1) return false;
+    Item item = postfix.get(mark);
+    return item instanceof VarItem || item instanceof NameItem;
+  }
+
+  private void append(Item item)
+  {
+    if (text == null) return;
+    if (text.length() > 0) text.append(' ');
+    text.append(item.toString());
+  }
+
+  private void push(Item item)
+  {
+    if (operatorCount == operators.length) operators = Arrays.copyOf(operators, 2 * operatorCount);
+    operators[operatorCount++] = item;
+  }
+
+  // Outputs the pending operators binding at least as tight as the priority, back to the innermost parenthesis.
+  private void flush(int priority)
+  {
+    while (operatorCount > 0)
+    {
+      Item top = operators[operatorCount - 1];
+      if (top instanceof LeftItem || top.getPriority() > priority) break;
+      postfix.add(top);
+      --operatorCount;
+    }
+  }
+
+  private void open(FuncItem call, int position)
+  {
+    push(Items.LEFT);
+    if (depth == calls.length)
+    {
+      calls = Arrays.copyOf(calls, 2 * depth);
+      counts = Arrays.copyOf(counts, 2 * depth);
+      positions = Arrays.copyOf(positions, 2 * depth);
+      marks = Arrays.copyOf(marks, 2 * depth);
+    }
+    calls[depth] = call;
+    counts[depth] = 0;
+    marks[depth] = postfix.size();
+    positions[depth++] = position;
+  }
+
+  private boolean fail(int code, int position)
+  {
+    error = code;
+    errorPosition = position;
+    return false;
+  }
+}
@@ -0,0 +1,833 @@
+package com.project.cal.model;
+
+import java.nio.DoubleBuffer;
+import java.util.*;
+
+/**
+ * Compact, executable form of an expression's postfix item list.
+ * Each instruction is a single int holding the opcode in the low 8 bits and an operand
+ * (constant pool index, variable index or slot) in the remaining bits.
+ * Values of shared subexpressions are kept in slots: STORE copies the top of the stack to a slot
+ * and LOAD pushes it again. The slots follow the stack in the work area.
+ * A program computing several expressions at once pops the value of each into an output with OUT.
+ * Conditionals are compiled to forward jumps: the condition, JUMP_FALSE to the second branch, the first branch,
+ * JUMP past the second branch, and the second branch, so a single row evaluates only the branch taken.
+ * Batch evaluation skips a branch when no row of the block takes it, and otherwise evaluates both
+ * and keeps the value of the branch taken by each row.
+ * The body of a sum or an integral is a program of its own, in bodies, run by {@link Reductions} with the bound
+ * variable in variables; INTEGRATE and SUM replace the limits on the stack by the value.
+ * Running a program for a single row allocates nothing: values live on a primitive double stack.
+ */
+final class Program
+{
+  static final int CONST = 0;
+  static final int VAR = 1;
+  static final int ADD = 2;
+  static final int SUB = 3;
+  static final int MUL = 4;
+  static final int DIV = 5;
+  static final int NEG = 6;
+  static final int LN = 7;
+  static final int EXP = 8;
+  static final int LOG = 9;
+  static final int SQR = 10;
+  static final int SQRT = 11;
+  static final int ABS = 12;
+  static final int POW = 13;
+  static final int FACT = 14;
+  static final int STORE = 15;
+  static final int LOAD = 16;
+  static final int OUT = 17;
+  static final int LT = 18;
+  static final int LE = 19;
+  static final int GT = 20;
+  static final int GE = 21;
+  static final int EQ = 22;
+  static final int NE = 23;
+  static final int MIN = 24;
+  static final int MAX = 25;
+  // 1 if the value is true, 0 otherwise
+  static final int BOOL = 26;
+  // jumps to the instruction in the operand
+  static final int JUMP = 27;
+  // pops a value and jumps to the instruction in the operand if it is false
+  static final int JUMP_FALSE = 28;
+  // If(c, a, b) in a graph; compiled to jumps, never an instruction
+  static final int IF = 29;
+  // Integrate(f, x, a, b) and Sum(f, i, from, to) with the body f in the operand
+  static final int INTEGRATE = 30;
+  static final int SUM = 31;
+
+  // Rows per block in batch evaluation; a block of every stack level stays in the L1/L2 cache.
+  static final int BLOCK = 256;
+  // Doubles in the work area of batch evaluation; deep programs use shorter blocks to stay within it.
+  private static final int WORK = 1 << 17;
+
+  private static final double[] none = new double[0];
+  private static final Program[] noBodies = new Program[0];
+  private static final int[] noVariables = new int[0];
+
+  // Stack shared by all programs evaluated on a thread, grown on demand. A virtual thread gets its own,
+  // so evaluation never contends on it; an evaluation runs to completion before the thread can start another.
+  private static final ThreadLocal<double[]> stacks = ThreadLocal.withInitial(() -> new double[16]);
+  // The work area of batch evaluation of each thread, kept from one call to the next
+  private static final ThreadLocal<Work> works = new ThreadLocal<Work>();
+
+  final int[] code;
+  final double[] consts;
+  final int maxStack;
+  final int slots;
+  final int vars;
+  final Program[] bodies;
+  // the position of the bound variable of each body
+  final int[] variables;
+  // doubles of the work area of run: the stack, the slots, and the frame and work area of a body
+  final int size;
+  // the largest frame of a body
+  private final int frames;
+
+  Program(int[] code, double[] consts, int maxStack, int slots, int vars)
+  {
+    this(code, consts, maxStack, slots, vars, noBodies, noVariables);
+  }
+
+  Program(int[] code, double[] consts, int maxStack, int slots, int vars, Program[] bodies, int[] variables)
+  {
+    this.code = code;
+    this.consts = consts;
+    this.maxStack = maxStack;
+    this.slots = slots;
+    this.vars = vars;
+    this.bodies = bodies;
+    this.variables = variables;
+    int frames = 0, work = 0;
+    for (Program body : bodies)
+    {
+      frames = Math.max(frames, body.vars);
+      work = Math.max(work, body.vars + body.size + Reductions.SCRATCH);
+    }
+    this.frames = frames;
+    size = maxStack + slots + work;
+  }
+
+  /**
+   * @return true if the value is neither 0 nor NaN, the truth of a condition
+   */
+  static boolean isTrue(double x)
+  {
+    return x > 0 || x < 0;
+  }
+
+  static int opcode(int instruction)
+  {
+    return instruction & 0xFF;
+  }
+
+  static int operand(int instruction)
+  {
+    return instruction >>> 8;
+  }
+
+  static int instruction(int opcode, int operand)
+  {
+    return opcode | (operand << 8);
+  }
+
+  /**
+   * @return A stack of at least the given size, reused by every evaluation on the calling thread
+   */
+  static double[] stack(int size)
+  {
+    double[] stack = stacks.get();
+    if (stack.length < size)
+    {
+      stack = new double[Math.max(size, 2 * stack.length)];
+      stacks.set(stack);
+    }
+    return stack;
+  }
+
+  /**
+   * Runs the program on the stack of the calling thread.
+   * @param arg The variables, at least vars of them
+   * @return Value of the expression
+   * @throws Exception If a function is called with an illegal argument
+   */
+  double run(double[] arg) throws Exception
+  {
+    return run(arg, stack(size));
+  }
+
+  /**
+   * Runs the program.
+   * @param arg The variables, at least vars of them
+   * @param stack Work area of at least size elements
+   * @return Value of the expression
+   * @throws Exception If a function is called with an illegal argument
+   */
+  double run(double[] arg, double[] stack) throws Exception
+  {
+    return run(arg, stack, none);
+  }
+
+  /**
+   * Runs a program with outputs.
+   * @param arg The variables, at least vars of them
+   * @param stack Work area of at least size elements
+   * @param out Receives the value popped by OUT i at index i
+   * @return The value left on the stack, NaN if there is none
+   * @throws Exception If a function is called with an illegal argument
+   */
+  double run(double[] arg, double[] stack, double[] out) throws Exception
+  {
+    return run(arg, 0, stack, 0, out);
+  }
+
+  /**
+   * Runs the body of a sum or an integral on the frame the caller left in the stack.
+   * @param arg Holds the variables from arg[from]
+   * @param stack Work area of at least size elements from stack[base]
+   */
+  double run(double[] arg, int from, double[] stack, int base) throws Exception
+  {
+    return run(arg, from, stack, base, none);
+  }
+
+  private double run(double[] arg, int from, double[] stack, int base, double[] out) throws Exception
+  {
+    int[] code = this.code;
+    int slot = base + maxStack;
+    int sp = base - 1;
+    for (int pc = 0; pc < code.length; ++pc)
+    {
+      int ins = code[pc];
+      switch (ins & 0xFF)
+      {
+        case CONST: stack[++sp] = consts[ins >>> 8]; break;
+        case STORE: stack[slot + (ins >>> 8)] = stack[sp]; break;
+        case LOAD: stack[++sp] = stack[slot + (ins >>> 8)]; break;
+        case VAR: stack[++sp] = arg[from + (ins >>> 8)]; break;
+        case OUT: out[ins >>> 8] = stack[sp--]; break;
+        case ADD: --sp; stack[sp] += stack[sp + 1]; break;
+        case SUB: --sp; stack[sp] -= stack[sp + 1]; break;
+        case MUL: --sp; stack[sp] *= stack[sp + 1]; break;
+        case DIV: --sp; stack[sp] /= stack[sp + 1]; break;
+        case NEG: stack[sp] = -stack[sp]; break;
+        case LN: stack[sp] = Math.log(stack[sp]); break;
+        case EXP: stack[sp] = Math.exp(stack[sp]); break;
+        case LOG: stack[sp] = Math.log10(stack[sp]); break;
+        case SQR: stack[sp] *= stack[sp]; break;
+        case SQRT: stack[sp] = Math.sqrt(stack[sp]); break;
+        case ABS: stack[sp] = Math.abs(stack[sp]); break;
+        case POW: --sp; stack[sp] = Math.pow(stack[sp], stack[sp + 1]); break;
+        case FACT:
+          if (stack[sp] < 0) throw new Exception("Factorial(x), x >= 0: Illegal argument...");
+          stack[sp] = factorial(stack[sp]);
+          break;
+        case LT: --sp; stack[sp] = stack[sp] < stack[sp + 1] ? 1 : 0; break;
+        case LE: --sp; stack[sp] = stack[sp] <= stack[sp + 1] ? 1 : 0; break;
+        case GT: --sp; stack[sp] = stack[sp] > stack[sp + 1] ? 1 : 0; break;
+        case GE: --sp; stack[sp] = stack[sp] >= stack[sp + 1] ? 1 : 0; break;
+        case EQ: --sp; stack[sp] = stack[sp] == stack[sp + 1] ? 1 : 0; break;
+        case NE: --sp; stack[sp] = stack[sp] != stack[sp + 1] ? 1 : 0; break;
+        case MIN: --sp; stack[sp] = Math.min(stack[sp], stack[sp + 1]); break;
+        case MAX: --sp; stack[sp] = Math.max(stack[sp], stack[sp + 1]); break;
+        case BOOL: stack[sp] = isTrue(stack[sp]) ? 1 : 0; break;
+        case JUMP: pc = (ins >>> 8) - 1; break;
+        case JUMP_FALSE: if (!isTrue(stack[sp--])) pc = (ins >>> 8) - 1; break;
+        case INTEGRATE:
+        case SUM:
+        {
+          // the frame of the body after the slots: the variables of this program, the bound one replaced
+          --sp;
+          int frame = slot + slots;
+          Program body = bodies[ins >>> 8];
+          System.arraycopy(arg, from, stack, frame, Math.min(vars, body.vars));
+          stack[sp] = (ins & 0xFF) == SUM ? Reductions.sum(body, variables[ins >>> 8], stack, frame, stack[sp], stack[sp + 1])
+            : Reductions.integrate(body, variables[ins >>> 8], stack, frame, stack[sp], stack[sp + 1]);
+          break;
+        }
+        default: throw new Exception("Illegal instruction");
+      }
+    }
+    return sp < base ? Double.NaN : stack[sp];
+  }
+
+  /**
+   * Runs the program over rows from to to - 1, one instruction at a time across blocks of rows.
+   * Rows where a function gets an illegal argument get the value NaN.
+   * @param columns One array of values for each variable
+   * @param out Receives the value of row i at index i
+   */
+  void run(double[][] columns, double[] out, int from, int to)
+  {
+    run(Columns.of(columns), from, out, from, to - from);
+  }
+
+  /**
+   * Runs the program over n rows from row, one instruction at a time across blocks of rows.
+   * Rows where a function gets an illegal argument get the value NaN.
+   * @param columns Source of the variable values
+   * @param out Receives the value of row + i at index offset + i
+   */
+  void run(Columns columns, int row, double[] out, int offset, int n)
+  {
+    Work work = work();
+    double[][] stack = work.stack;
+    int block = stack[0].length;
+    for (int i = 0; i < n; i += block)
+    {
+      int rows = Math.min(block, n - i);
+      run(columns, row + i, rows, stack, work.branches, null, 0);
+      System.arraycopy(stack[0], 0, out, offset + i, rows);
+    }
+  }
+
+  /**
+   * Runs the program over n rows from row, writing the values straight into a buffer.
+   * @param columns Source of the variable values
+   * @param out Receives the value of row + i at index offset + i
+   */
+  void run(Columns columns, int row, DoubleBuffer out, int offset, int n)
+  {
+    Work work = work();
+    double[][] stack = work.stack;
+    int block = stack[0].length;
+    for (int i = 0; i < n; i += block)
+    {
+      int rows = Math.min(block, n - i);
+      run(columns, row + i, rows, stack, work.branches, null, 0);
+      double[] values = stack[0];
+      for (int j = 0, index = offset + i; j < rows; ++j, ++index) out.put(index, values[j]);
+    }
+  }
+
+  /**
+   * Runs the program over n rows from row, adding the values to a summary block by block
+   * instead of writing them out.
+   * @param columns Source of the variable values
+   */
+  void run(Columns columns, int row, Summary summary, int n)
+  {
+    Work work = work();
+    double[][] stack = work.stack;
+    int block = stack[0].length;
+    for (int i = 0; i < n; i += block)
+    {
+      int rows = Math.min(block, n - i);
+      run(columns, row + i, rows, stack, work.branches, null, 0);
+      summary.add(stack[0], 0, rows);
+    }
+  }
+
+  /**
+   * Runs a program with outputs over n rows from row.
+   * @param columns Source of the variable values
+   * @param outs Receives the value of output j for row + i at outs[j][offset + i]
+   */
+  void run(Columns columns, int row, double[][] outs, int offset, int n)
+  {
+    Work work = work();
+    int block = work.stack[0].length;
+    for (int i = 0; i < n; i += block)
+      run(columns, row + i, Math.min(block, n - i), work.stack, work.branches, outs, offset + i);
+  }
+
+  // The work area of batch evaluation of this thread, with shorter blocks for deep programs
+  private Work work()
+  {
+    int depth = Math.max(1, maxStack + slots + frames);
+    int block = Math.max(16, Math.min(BLOCK, WORK / depth));
+    Work work = works.get();
+    if (work == null || work.stack.length < depth || work.stack[0].length != block)
+    {
+      work = new Work(depth, block);
+      works.set(work);
+    }
+    return work;
+  }
+
+  // A block of values for each stack entry, slot and variable of a frame, and the state of the conditionals
+  private static final class Work
+  {
+    final double[][] stack;
+    final Branches branches;
+
+    Work(int depth, int block)
+    {
+      stack = new double[depth][block];
+      branches = new Branches(block);
+    }
+  }
+
+  // Runs the program for n rows starting at row, leaving the value in stack[0] or popping them to outs at offset.
+  private void run(Columns columns, int row, int n, double[][] stack, Branches branches, double[][] outs, int offset)
+  {
+    int[] code = this.code;
+    Kernels kernels = Kernels.INSTANCE;
+    int slot = maxStack;
+    int sp = -1;
+    branches.count = 0;
+    for (int pc = 0; pc < code.length; ++pc)
+    {
+      while (branches.count > 0 && branches.ends[branches.count - 1] == pc) branches.blend(stack, sp--, n);
+      int ins = code[pc];
+      switch (ins & 0xFF)
+      {
+        case CONST: Arrays.fill(stack[++sp], 0, n, consts[ins >>> 8]); break;
+        case STORE: System.arraycopy(stack[sp], 0, stack[slot + (ins >>> 8)], 0, n); break;
+        case LOAD: System.arraycopy(stack[slot + (ins >>> 8)], 0, stack[++sp], 0, n); break;
+        case VAR: columns.read(ins >>> 8, row, stack[++sp], n); break;
+        case OUT: System.arraycopy(stack[sp--], 0, outs[ins >>> 8], offset, n); break;
+        case ADD: --sp; kernels.add(stack[sp], stack[sp + 1], n); break;
+        case SUB: --sp; kernels.sub(stack[sp], stack[sp + 1], n); break;
+        case MUL: --sp; kernels.mul(stack[sp], stack[sp + 1], n); break;
+        case DIV: --sp; kernels.div(stack[sp], stack[sp + 1], n); break;
+        case NEG: kernels.neg(stack[sp], n); break;
+        case LN: { double[] x = stack[sp]; for (int i = 0; i < n; ++i) x[i] = Math.log(x[i]); break; }
+        case EXP: { double[] x = stack[sp]; for (int i = 0; i < n; ++i) x[i] = Math.exp(x[i]); break; }
+        case LOG: { double[] x = stack[sp]; for (int i = 0; i < n; ++i) x[i] = Math.log10(x[i]); break; }
+        case SQR: kernels.sqr(stack[sp], n); break;
+        case SQRT: kernels.sqrt(stack[sp], n); break;
+        case ABS: kernels.abs(stack[sp], n); break;
+        case POW: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = Math.pow(x[i], y[i]); break; }
+        case FACT: { double[] x = stack[sp]; for (int i = 0; i < n; ++i) x[i] = factorial(x[i]); break; }
+        case LT: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] < y[i] ? 1 : 0; break; }
+        case LE: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] <= y[i] ? 1 : 0; break; }
+        case GT: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] > y[i] ? 1 : 0; break; }
+        case GE: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] >= y[i] ? 1 : 0; break; }
+        case EQ: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] == y[i] ? 1 : 0; break; }
+        case NE: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = x[i] != y[i] ? 1 : 0; break; }
+        case MIN: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = Math.min(x[i], y[i]); break; }
+        case MAX: { double[] x = stack[--sp], y = stack[sp + 1]; for (int i = 0; i < n; ++i) x[i] = Math.max(x[i], y[i]); break; }
+        case BOOL: { double[] x = stack[sp]; for (int i = 0; i < n; ++i) x[i] = isTrue(x[i]) ? 1 : 0; break; }
+        case JUMP:
+          // the end of a first branch: rows going both ways go on into the second branch as well
+          if (branches.count > 0 && branches.elses[branches.count - 1] == pc + 1 && branches.ends[branches.count - 1] < 0)
+            branches.ends[branches.count - 1] = ins >>> 8;
+          else pc = (ins >>> 8) - 1;
+          break;
+        case JUMP_FALSE:
+        {
+          double[] x = stack[sp--];
+          int taken = 0;
+          for (int i = 0; i < n; ++i) if (isTrue(x[i])) ++taken;
+          if (taken == 0) pc = (ins >>> 8) - 1;
+          else if (taken < n) branches.open(x, ins >>> 8, n);
+          break;
+        }
+        case INTEGRATE:
+        case SUM:
+        {
+          // one row at a time: the variables of the block go to the blocks after the slots, and those of each row
+          // to a frame on the stack of the thread
+          double[] x = stack[--sp], y = stack[sp + 1];
+          Program body = bodies[ins >>> 8];
+          int variable = variables[ins >>> 8];
+          int frame = slot + slots;
+          int copied = Math.min(vars, body.vars);
+          for (int v = 0; v < copied; ++v) columns.read(v, row, stack[frame + v], n);
+          double[] scalar = stack(body.vars + body.size + Reductions.SCRATCH);
+          boolean sum = (ins & 0xFF) == SUM;
+          for (int i = 0; i < n; ++i)
+          {
+            for (int v = 0; v < copied; ++v) scalar[v] = stack[frame + v][i];
+            try
+            {
+              x[i] = sum ? Reductions.sum(body, variable, scalar, 0, x[i], y[i])
+                : Reductions.integrate(body, variable, scalar, 0, x[i], y[i]);
+            }
+            catch (Exception ex)
+            {
+              x[i] = Double.NaN;
+            }
+          }
+          break;
+        }
+        default: throw new IllegalStateException("Illegal instruction");
+      }
+    }
+    while (branches.count > 0) branches.blend(stack, sp--, n);
+  }
+
+  /**
+   * The conditionals of a batch whose rows go both ways, innermost last: which rows take the first branch,
+   * where the second branch starts and where the conditional ends, -1 until the first branch is done.
+   * Both branches leave their value on the stack, and blend keeps the one of the branch each row takes.
+   */
+  private static final class Branches
+  {
+    private final int block;
+    boolean[][] masks = new boolean[4][];
+    int[] elses = new int[4];
+    int[] ends = new int[4];
+    int count;
+
+    Branches(int block)
+    {
+      this.block = block;
+    }
+
+    void open(double[] condition, int second, int n)
+    {
+      if (count == masks.length)
+      {
+        masks = Arrays.copyOf(masks, 2 * count);
+        elses = Arrays.copyOf(elses, 2 * count);
+        ends = Arrays.copyOf(ends, 2 * count);
+      }
+      if (masks[count] == null) masks[count] = new boolean[block];
+      boolean[] mask = masks[count];
+      for (int i = 0; i < n; ++i) mask[i] = isTrue(condition[i]);
+      elses[count] = second;
+      ends[count++] = -1;
+    }
+
+    // Replaces the value of the first branch, below the top of the stack, by the second where it is not taken
+    void blend(double[][] stack, int sp, int n)
+    {
+      boolean[] mask = masks[--count];
+      double[] x = stack[sp - 1], y = stack[sp];
+      for (int i = 0; i < n; ++i) if (!mask[i]) x[i] = y[i];
+    }
+  }
+
+  // The largest argument of the factorial function below infinity; the loop never runs further
+  static final int MAX_FACTORIAL = 170;
+
+  // The factorial function, NaN for negative arguments and infinity beyond MAX_FACTORIAL. The product is
+  // accumulated in a double, exact up to 22! and within a few ulps of the exact value beyond.
+  static double factorial(double x)
+  {
+    if (x < 0) return Double.NaN;
+    if (x >= MAX_FACTORIAL + 1) return Double.POSITIVE_INFINITY;
+    int n = (int)x;
+    double u = 1;
+    for (int i = 2; i <= n; ++i) u *= i;
+    return u;
+  }
+
+  /**
+   * @return The number of arguments taken by the operation
+   */
+  static int arity(int op)
+  {
+    switch (op)
+    {
+      case CONST:
+      case VAR:
+        return 0;
+      case ADD:
+      case SUB:
+      case MUL:
+      case DIV:
+      case POW:
+      case LT:
+      case LE:
+      case GT:
+      case GE:
+      case EQ:
+      case NE:
+      case MIN:
+      case MAX:
+      case INTEGRATE:
+      case SUM:
+        return 2;
+      case IF:
+        return 3;
+      default:
+        return 1;
+    }
+  }
+
+  /**
+   * Checks that the program can run: every opcode is known, every operand is in range, slots are stored
+   * before they are loaded and the stack never underflows, stays within maxStack and ends with one value.
+   * Jumps must form conditionals as compiled: each branch leaves one value, the conditionals nest,
+   * and a slot stored in a branch is not loaded after it.
+   * The bodies must be well formed, with the bound variable in their frame and the others among the variables.
+   * @return true if the program is well formed
+   */
+  boolean verify()
+  {
+    if (bodies.length != variables.length) return false;
+    for (int i = 0; i < bodies.length; ++i)
+    {
+      if (!bodies[i].verify() || variables[i] < 0 || variables[i] >= bodies[i].vars) return false;
+      BitSet free = reads(bodies[i]);
+      free.clear(variables[i]);
+      if (free.length() > vars) return false;
+    }
+    boolean[] stored = new boolean[slots];
+    // the slots stored, in order
+    int[] order = new int[slots];
+    int count = 0;
+    // the open conditionals: second branch, end or -1, depth before the branches and slots stored before
+    int[] elses = new int[4];
+    int[] ends = new int[4];
+    int[] depths = new int[4];
+    int[] marks = new int[4];
+    int open = 0;
+    int seconds = 0;
+    int depth = 0;
+    for (int pc = 0; pc <= code.length; ++pc)
+    {
+      while (open > 0 && ends[open - 1] == pc)
+      {
+        if (depth != depths[--open] + 1) return false;
+        --seconds;
+        while (count > marks[open]) stored[order[--count]] = false;
+      }
+      if (pc == code.length) break;
+      // a first branch must end with the jump past the second
+      if (open > 0 && elses[open - 1] == pc && ends[open - 1] < 0) return false;
+      int op = opcode(code[pc]);
+      int operand = operand(code[pc]);
+      if (op == OUT || op == IF || op > SUM) return false;
+      if (op == CONST && operand >= consts.length || op == VAR && operand >= vars) return false;
+      if ((op == INTEGRATE || op == SUM) && operand >= bodies.length) return false;
+      if ((op == STORE || op == LOAD) && operand >= slots) return false;
+      if (op == JUMP_FALSE)
+      {
+        if (depth < 1 || operand <= pc + 1 || operand > code.length) return false;
+        if (open == elses.length)
+        {
+          elses = Arrays.copyOf(elses, 2 * open);
+          ends = Arrays.copyOf(ends, 2 * open);
+          depths = Arrays.copyOf(depths, 2 * open);
+          marks = Arrays.copyOf(marks, 2 * open);
+        }
+        elses[open] = operand;
+        ends[open] = -1;
+        depths[open] = --depth;
+        marks[open++] = count;
+        continue;
+      }
+      if (op == JUMP)
+      {
+        if (open == 0 || elses[open - 1] != pc + 1 || operand <= pc + 1 || depth != depths[open - 1] + 1) return false;
+        // within the branch of the enclosing conditional
+        if (open > 1 && operand > (ends[open - 2] < 0 ? elses[open - 2] - 1 : ends[open - 2])) return false;
+        ends[open - 1] = operand;
+        ++seconds;
+        depth = depths[open - 1];
+        while (count > marks[open - 1]) stored[order[--count]] = false;
+        continue;
+      }
+      if (op == STORE)
+      {
+        if (depth < 1) return false;
+        if (!stored[operand]) order[count++] = operand;
+        stored[operand] = true;
+        continue;
+      }
+      if (op == LOAD && !stored[operand]) return false;
+      if (op == LOAD) ++depth;
+      else depth += 1 - arity(op);
+      // batch evaluation keeps the value of each first branch while it runs the second
+      if (depth < 1 || depth + seconds > maxStack) return false;
+    }
+    return open == 0 && depth == 1;
+  }
+
+  /**
+   * Translates an expression graph into a program.
+   * Operations used by more than one node are computed once and then loaded from a slot.
+   * The graph is walked without recursion, so its depth is only limited by the heap.
+   */
+  static Program compile(Node root)
+  {
+    return compile(new Node[] { root }, false, 0);
+  }
+
+  /**
+   * Translates the graphs of several expressions into one program, which pops the value of roots[i]
+   * to output i. Subexpressions shared between the expressions are computed once.
+   */
+  static Program compileAll(Node[] roots)
+  {
+    return compile(roots, true, 0);
+  }
+
+  // The program of the roots, reading at least vars variables: the frame of a body holds its bound variable
+  private static Program compile(Node[] roots, boolean outputs, int vars)
+  {
+    IdentityHashMap<Node, Integer> uses = countUses(roots);
+    IdentityHashMap<Node, Integer> slotOf = new IdentityHashMap<Node, Integer>();
+    // the nodes in slots in the order they were stored, and where the branch of each open conditional starts
+    // in this list; a value stored in a branch is not there for the other branch nor after the conditional
+    ArrayList<Node> stored = new ArrayList<Node>();
+    int[] regions = new int[16];
+    int open = 0;
+    int slots = 0;
+    // the second branches entered, each holding the value of its first branch in batch evaluation
+    int seconds = 0;
+    int[] code = new int[16];
+    HashMap<Long, Integer> constIndex = new HashMap<Long, Integer>();
+    ArrayList<Double> consts = new ArrayList<Double>();
+    // the bodies of the sums and integrals, each compiled once for a body and bound variable
+    ArrayList<Program> bodies = new ArrayList<Program>();
+    ArrayList<Node> reductions = new ArrayList<Node>();
+    int depth = 0;
+    int maxStack = 0;
+    int pc = 0;
+    // depth first walk, next[i] is the next argument to visit of the node nodes[i],
+    // and jumps[i] the jump to patch when nodes[i] is a conditional
+    ArrayList<Node> nodes = new ArrayList<Node>();
+    int[] next = new int[16];
+    int[] jumps = new int[16];
+    for (int r = 0; r < roots.length; ++r)
+    {
+      nodes.add(roots[r]);
+      next[0] = 0;
+      while (nodes.size() > 0)
+      {
+        int top = nodes.size() - 1;
+        Node node = nodes.get(top);
+        Integer slot = slotOf.get(node);
+        if (next[top] < node.args.length && slot == null)
+        {
+          if (node.op == IF && next[top] > 0)
+          {
+            if (pc + 1 > code.length) code = Arrays.copyOf(code, 2 * code.length);
+            if (next[top] == 1)
+            {
+              jumps[top] = pc;
+              code[pc++] = instruction(JUMP_FALSE, 0);
+              if (open == regions.length) regions = Arrays.copyOf(regions, 2 * open);
+              regions[open++] = stored.size();
+            }
+            else
+            {
+              code[jumps[top]] = instruction(JUMP_FALSE, pc + 1);
+              jumps[top] = pc;
+              code[pc++] = instruction(JUMP, 0);
+              while (stored.size() > regions[open - 1]) slotOf.remove(stored.remove(stored.size() - 1));
+              ++seconds;
+            }
+            --depth;
+          }
+          if (nodes.size() == next.length)
+          {
+            next = Arrays.copyOf(next, 2 * next.length);
+            jumps = Arrays.copyOf(jumps, 2 * jumps.length);
+          }
+          nodes.add(node.args[next[top]++]);
+          next[top + 1] = 0;
+          continue;
+        }
+        nodes.remove(top);
+        if (pc + 2 > code.length) code = Arrays.copyOf(code, 2 * code.length);
+        if (slot != null) code[pc++] = instruction(LOAD, slot);
+        else if (node.op == IF)
+        {
+          // both branches leave their value where the condition was
+          code[jumps[top]] = instruction(JUMP, pc);
+          while (stored.size() > regions[open - 1]) slotOf.remove(stored.remove(stored.size() - 1));
+          --open;
+          --seconds;
+          --depth;
+          if (uses.get(node) > 1)
+          {
+            stored.add(node);
+            slotOf.put(node, slots);
+            code[pc++] = instruction(STORE, slots++);
+          }
+        }
+        else
+        {
+          int operand = 0;
+          if (node.op == CONST)
+          {
+            Integer index = constIndex.get(Double.doubleToLongBits(node.value));
+            if (index == null)
+            {
+              index = consts.size();
+              constIndex.put(Double.doubleToLongBits(node.value), index);
+              consts.add(node.value);
+            }
+            operand = index;
+          }
+          else if (node.op == VAR)
+          {
+            operand = node.index;
+            vars = Math.max(vars, operand + 1);
+          }
+          else if (node.body != null)
+          {
+            operand = 0;
+            while (operand < reductions.size()
+              && (reductions.get(operand).body != node.body || reductions.get(operand).index != node.index)) ++operand;
+            if (operand == reductions.size())
+            {
+              Program body = compile(new Node[] { node.body }, false, node.index + 1);
+              reductions.add(node);
+              bodies.add(body);
+              // the variables the body reads from the frame, the bound one apart
+              BitSet free = reads(body);
+              free.clear(node.index);
+              vars = Math.max(vars, free.length());
+            }
+          }
+          depth -= node.args.length;
+          code[pc++] = instruction(node.op, operand);
+          if (node.args.length > 0 && uses.get(node) > 1)
+          {
+            stored.add(node);
+            slotOf.put(node, slots);
+            code[pc++] = instruction(STORE, slots++);
+          }
+        }
+        maxStack = Math.max(maxStack, ++depth + seconds);
+      }
+      if (outputs)
+      {
+        if (pc + 1 > code.length) code = Arrays.copyOf(code, 2 * code.length);
+        code[pc++] = instruction(OUT, r);
+        --depth;
+      }
+    }
+    double[] pool = consts.isEmpty() ? none : new double[consts.size()];
+    for (int i = 0; i < pool.length; ++i) pool[i] = consts.get(i);
+    int[] variables = new int[reductions.size()];
+    for (int i = 0; i < variables.length; ++i) variables[i] = reductions.get(i).index;
+    return new Program(Arrays.copyOf(code, pc), pool, maxStack, slots, vars,
+      bodies.isEmpty() ? noBodies : bodies.toArray(new Program[bodies.size()]), variables);
+  }
+
+  // The positions of the variables read by a program, including those its bodies read from the frame
+  private static BitSet reads(Program program)
+  {
+    BitSet reads = new BitSet();
+    for (int ins : program.code)
+      if (opcode(ins) == VAR) reads.set(operand(ins));
+    for (int i = 0; i < program.bodies.length; ++i)
+    {
+      BitSet free = reads(program.bodies[i]);
+      free.clear(program.variables[i]);
+      reads.or(free);
+    }
+    return reads;
+  }
+
+  // Counts the references to every node of the graphs, 1 for each root.
+  private static IdentityHashMap<Node, Integer> countUses(Node[] roots)
+  {
+    IdentityHashMap<Node, Integer> uses = new IdentityHashMap<Node, Integer>();
+    Deque<Node> pending = new ArrayDeque<Node>();
+    for (Node root : roots)
+    {
+      Integer count = uses.get(root);
+      uses.put(root, count == null ? 1 : count + 1);
+      if (count == null) pending.push(root);
+    }
+    while (pending.size() > 0)
+      for (Node arg : pending.pop().args)
+      {
+        Integer count = uses.get(arg);
+        uses.put(arg, count == null ? 1 : count + 1);
+        if (count == null) pending.push(arg);
+      }
+    return uses;
+  }
+}
@@ -0,0 +1,302 @@
+package com.project.cal.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluation of Sum(f, i, from, to) and Integrate(f, x, a, b). The body f is a program of its own, run for every
+ * term or point in a frame holding the variables of the caller with the bound variable replaced. The frame, the work
+ * area of the body and the intervals still to integrate follow the work area of the caller in the same stack,
+ * so nothing is allocated per term or point.
+ * <p>
+ * Sums are compensated as in {@link Summary}. Integrals are computed by adaptive Gauss-Kronrod quadrature:
+ * the 15-point Kronrod rule and the 7-point Gauss rule embedded in it are applied to an interval, and the interval
+ * is halved while the difference of the two, an estimate of the error of the first, is larger than its share of
+ * the tolerance, TOLERANCE times the integral of |f| over the whole range. An interval is not halved further
+ * after MAX_DEPTH halvings, or when MAX_INTERVALS intervals have been integrated; the estimate is then less accurate.
+ * Limits that are not finite give NaN.
+ * <p>
+ * Sums of many terms, and integrals that need refining, are split into fork/join tasks when the pool has
+ * several threads and the caller is not running in a pool already, as parallel batch evaluation does, which keeps
+ * the cores busy with rows. Each task has its own copy of the frame and work area.
+ */
+final class Reductions
+{
+  // Relative tolerance of integrals
+  static final double TOLERANCE = 1e-10;
+  static final int MAX_DEPTH = 40;
+  static final int MAX_INTERVALS = 1 << 16;
+  // Doubles after the work area of the body: the estimates of an interval and the pending intervals
+  static final int SCRATCH = 3 + 3 * (MAX_DEPTH + 2);
+  // Terms of a sum worth splitting into tasks, and the levels of halving done by tasks in an integral
+  static final long PARALLEL_TERMS = 1 << 15;
+  private static final int PARALLEL_DEPTH = 3;
+  // Beyond 2^53 terms, from + k is not exact
+  private static final double MAX_TERMS = 0x1p53;
+
+  // The nodes of the Kronrod rule on [-1, 1], the last being 0, and its weights; the Gauss rule uses the odd nodes
+  // and 0, with the weights GAUSS
+  private static final double[] NODES = { 0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+    0.864864423359769072789712788640926, 0.741531185599394439863864773280788, 0.586087235467691130294144845693013,
+    0.405845151377397166906606412076961, 0.207784955007898467600689403773245, 0 };
+  private static final double[] KRONROD = { 0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+    0.104790010322250183839876322541518, 0.140653259715525918745189590510238, 0.169004726639267902826583426598550,
+    0.190350578064785409913256402421014, 0.204432940075298892414161999234649, 0.209482141084727828012999174891714 };
+  private static final double[] GAUSS = { 0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+    0.381830050505118944950369775488975, 0.417959183673469387755102040816327 };
+
+  // The pool running the tasks; tests replace it by one with several threads
+  static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private Reductions()
+  {
+  }
+
+  /**
+   * Sums the body for the variable from, from + 1, ... while it is at most to.
+   * @param stack Holds the frame, body.vars values, at stack[frame], followed by room for the work area of the body
+   * @return The sum, 0 if to is less than from, NaN if there are too many terms to count
+   * @throws Exception If a function of the body is called with an illegal argument
+   */
+  static double sum(Program body, int variable, double[] stack, int frame, double from, double to) throws Exception
+  {
+    double span = Math.floor(to - from);
+    if (span < 0) return 0;
+    if (!(span < MAX_TERMS)) return Double.NaN;
+    long terms = (long)span + 1;
+    ForkJoinPool pool = terms >= PARALLEL_TERMS ? parallel() : null;
+    if (pool == null) return sum(body, variable, stack, frame, from, 0, terms);
+    long grain = Math.max(PARALLEL_TERMS / 4, terms / (4 * pool.getParallelism()));
+    return invoke(pool, new SumTask(body, variable, Arrays.copyOfRange(stack, frame, frame + body.vars), from, 0, terms, grain));
+  }
+
+  /**
+   * Integrates the body over the variable from a to b.
+   * @param stack Holds the frame, body.vars values, at stack[frame], followed by room for the work area of the body
+   *   and SCRATCH doubles
+   * @return The integral, negative if b is less than a, NaN if a limit is not finite
+   * @throws Exception If a function of the body is called with an illegal argument
+   */
+  static double integrate(Program body, int variable, double[] stack, int frame, double a, double b) throws Exception
+  {
+    if (a == b) return 0;
+    if (!(Math.abs(b - a) < Double.POSITIVE_INFINITY)) return Double.NaN;
+    int scratch = frame + body.vars + body.size;
+    kronrod(body, variable, stack, frame, scratch, a, b);
+    double tolerance = TOLERANCE * stack[scratch + 2];
+    if (!(stack[scratch + 1] > tolerance)) return stack[scratch];
+    ForkJoinPool pool = parallel();
+    if (pool != null)
+      return invoke(pool, new IntegralTask(body, variable, Arrays.copyOfRange(stack, frame, frame + body.vars), a, b, tolerance, 0));
+    double middle = 0.5 * a + 0.5 * b;
+    return refine(body, variable, stack, frame, a, middle, tolerance / 2, 1)
+      + refine(body, variable, stack, frame, middle, b, tolerance / 2, 1);
+  }
+
+  // The pool to split a reduction into, null if it should run on the calling thread
+  private static ForkJoinPool parallel()
+  {
+    ForkJoinPool pool = Reductions.pool;
+    return pool.getParallelism() > 1 && !ForkJoinTask.inForkJoinPool() ? pool : null;
+  }
+
+  private static double invoke(ForkJoinPool pool, RecursiveTask<Double> task) throws Exception
+  {
+    try
+    {
+      return pool.invoke(task);
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new Exception(ex.getMessage());
+    }
+  }
+
+  // The compensated sum of the terms first to last - 1, the variable being from + k in term k
+  private static double sum(Program body, int variable, double[] stack, int frame, double from, long first, long last)
+    throws Exception
+  {
+    int base = frame + body.vars;
+    double s = 0, c = 0;
+    for (long k = first; k < last; ++k)
+    {
+      stack[frame + variable] = from + k;
+      double x = body.run(stack, frame, stack, base);
+      double t = s + x;
+      double z = t - s;
+      c += (s - (t - z)) + (x - z);
+      s = t;
+    }
+    double total = s + c;
+    // an infinite sum makes the compensation NaN
+    return total != total && Double.isInfinite(s) ? s : total;
+  }
+
+  // Integrates [a, b] at the given depth and tolerance, halving intervals depth first. The pending intervals,
+  // their limits and depth, are kept after the estimates in the scratch area; there are at most two per depth.
+  private static double refine(Program body, int variable, double[] stack, int frame, double a, double b,
+    double tolerance, int depth) throws Exception
+  {
+    int scratch = frame + body.vars + body.size;
+    int pending = scratch + 3;
+    int top = pending;
+    stack[top++] = a;
+    stack[top++] = b;
+    stack[top++] = depth;
+    double s = 0, c = 0;
+    for (int intervals = 0; top > pending; ++intervals)
+    {
+      int level = (int)stack[--top];
+      double y = stack[--top];
+      double x = stack[--top];
+      kronrod(body, variable, stack, frame, scratch, x, y);
+      double middle = 0.5 * x + 0.5 * y;
+      if (stack[scratch + 1] > Math.scalb(tolerance, depth - level) && level < MAX_DEPTH && intervals < MAX_INTERVALS
+        && middle != x && middle != y)
+      {
+        stack[top++] = middle;
+        stack[top++] = y;
+        stack[top++] = level + 1;
+        stack[top++] = x;
+        stack[top++] = middle;
+        stack[top++] = level + 1;
+        continue;
+      }
+      double v = stack[scratch];
+      double t = s + v;
+      double z = t - s;
+      c += (s - (t - z)) + (v - z);
+      s = t;
+    }
+    double total = s + c;
+    return total != total && Double.isInfinite(s) ? s : total;
+  }
+
+  // Applies both rules to [a, b], leaving the Kronrod estimate of the integral, its difference from the Gauss
+  // estimate and the Kronrod estimate of the integral of |f| at stack[scratch], scratch + 1 and scratch + 2.
+  private static void kronrod(Program body, int variable, double[] stack, int frame, int scratch, double a, double b)
+    throws Exception
+  {
+    int base = frame + body.vars;
+    int x = frame + variable;
+    double center = 0.5 * a + 0.5 * b;
+    double half = 0.5 * b - 0.5 * a;
+    stack[x] = center;
+    double f = body.run(stack, frame, stack, base);
+    double kronrod = KRONROD[7] * f, gauss = GAUSS[3] * f, absolute = KRONROD[7] * Math.abs(f);
+    for (int j = 0; j < 7; ++j)
+    {
+      double dx = half * NODES[j];
+      stack[x] = center - dx;
+      double f1 = body.run(stack, frame, stack, base);
+      stack[x] = center + dx;
+      double f2 = body.run(stack, frame, stack, base);
+      kronrod += KRONROD[j] * (f1 + f2);
+      absolute += KRONROD[j] * (Math.abs(f1) + Math.abs(f2));
+      if ((j & 1) != 0) gauss += GAUSS[j >> 1] * (f1 + f2);
+    }
+    stack[scratch] = kronrod * half;
+    stack[scratch + 1] = Math.abs((kronrod - gauss) * half);
+    stack[scratch + 2] = Math.abs(absolute * half);
+  }
+
+  // A work area for a task: the frame copied, then room for the body and the scratch area
+  private static double[] stack(Program body, double[] frame)
+  {
+    return Arrays.copyOf(frame, body.vars + body.size + SCRATCH);
+  }
+
+  /**
+   * Fork/join task summing the terms first to last - 1, split in halves down to grain terms.
+   */
+  private static final class SumTask extends RecursiveTask<Double>
+  {
+    private final Program body;
+    private final int variable;
+    private final double[] frame;
+    private final double from;
+    private final long first;
+    private final long last;
+    private final long grain;
+
+    SumTask(Program body, int variable, double[] frame, double from, long first, long last, long grain)
+    {
+      this.body = body;
+      this.variable = variable;
+      this.frame = frame;
+      this.from = from;
+      this.first = first;
+      this.last = last;
+      this.grain = grain;
+    }
+
+    @Override
+    protected Double compute()
+    {
+      if (last - first <= grain)
+      {
+        try
+        {
+          return sum(body, variable, stack(body, frame), 0, from, first, last);
+        }
+        catch (Exception ex)
+        {
+          throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+      }
+      long middle = first + (last - first) / 2;
+      SumTask left = new SumTask(body, variable, frame, from, first, middle, grain);
+      left.fork();
+      double right = new SumTask(body, variable, frame, from, middle, last, grain).compute();
+      return left.join() + right;
+    }
+  }
+
+  /**
+   * Fork/join task integrating [a, b] from the given depth: the first PARALLEL_DEPTH levels of halving are tasks.
+   */
+  private static final class IntegralTask extends RecursiveTask<Double>
+  {
+    private final Program body;
+    private final int variable;
+    private final double[] frame;
+    private final double a;
+    private final double b;
+    private final double tolerance;
+    private final int depth;
+
+    IntegralTask(Program body, int variable, double[] frame, double a, double b, double tolerance, int depth)
+    {
+      this.body = body;
+      this.variable = variable;
+      this.frame = frame;
+      this.a = a;
+      this.b = b;
+      this.tolerance = tolerance;
+      this.depth = depth;
+    }
+
+    @Override
+    protected Double compute()
+    {
+      if (depth == PARALLEL_DEPTH)
+      {
+        try
+        {
+          return refine(body, variable, stack(body, frame), 0, a, b, tolerance, depth);
+        }
+        catch (Exception ex)
+        {
+          throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+      }
+      double middle = 0.5 * a + 0.5 * b;
+      IntegralTask left = new IntegralTask(body, variable, frame, a, middle, tolerance / 2, depth + 1);
+      left.fork();
+      double right = new IntegralTask(body, variable, frame, middle, b, tolerance / 2, depth + 1).compute();
+      return left.join() + right;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Adaptive sampler of an expression in one variable, X0, for plotting.
+ * The interval is first sampled on a coarse grid, and every segment is halved until its midpoint lies within
+ * the tolerance, in pixels, of the straight line between its ends. Flat regions therefore get few points
+ * and curved ones many, and segments outside the view or where the function is undefined are not halved.
+ * Where the function becomes undefined or jumps by more than the height of the view
+ * over a segment narrower than a fraction of a pixel, the curve is broken.
+ * Points that lie on a straight line within the tolerance are then dropped, so a line is drawn from two points.
+ * Half the tolerance is allowed for the sampling and half for dropping points.
+ * The expression is compiled once, and a sampler may be used by several threads at once.
+ */
+public final class Sampler
+{
+  // Pixels between the points of the initial grid
+  private static final int GRID = 4;
+  // Narrowest segment halved, in pixels
+  private static final double RESOLUTION = 1.0 / 64;
+
+  private final Evaluator evaluator;
+  private final double tolerance;
+
+  /**
+   * @param expression An expression in X0 only
+   * @param tolerance The largest distance in pixels between the curve and the line drawn, greater than 0
+   */
+  public Sampler(Expression expression, double tolerance)
+  {
+    if (expression.getProgram().vars > 1) throw new IllegalArgumentException("Not a function of X0 only: " + expression);
+    if (!(tolerance > 0)) throw new IllegalArgumentException("Illegal tolerance " + tolerance);
+    this.evaluator = expression.compile();
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Samples the function over the interval from to to, drawn in a view of width by height pixels
+   * showing the values from bottom to top.
+   * @return The points of the curve
+   */
+  public Curve sample(double from, double to, double bottom, double top, int width, int height)
+  {
+    if (!(from < to) || !(bottom < top) || width < 1 || height < 1) throw new IllegalArgumentException("Illegal view");
+    double sx = width / (to - from);
+    double sy = height / (top - bottom);
+    double resolution = RESOLUTION / sx;
+    double[] arg = new double[1];
+    Curve curve = new Curve(0.5 * tolerance / sy);
+    // right ends of the segments still to draw, the nearest on top
+    int n = (width + GRID - 1) / GRID;
+    double[] xs = new double[n + 32];
+    double[] ys = new double[n + 32];
+    int size = 0;
+    for (int i = n; i > 0; --i, ++size)
+    {
+      xs[size] = i == n ? to : from + (to - from) * i / n;
+      ys[size] = eval(arg, xs[size], curve);
+    }
+    double x0 = from;
+    double y0 = eval(arg, x0, curve);
+    curve.add(x0, y0);
+    while (size > 0)
+    {
+      double x1 = xs[size - 1];
+      double y1 = ys[size - 1];
+      double xm = 0.5 * (x0 + x1);
+      double ym = eval(arg, xm, curve);
+      boolean narrow = x1 - x0 <= resolution;
+      boolean defined = isFinite(y0) && isFinite(ym) && isFinite(y1);
+      boolean undefined = !isFinite(y0) && !isFinite(ym) && !isFinite(y1);
+      boolean done = defined && (flat(y0, ym, y1, sy) || hidden(y0, ym, y1, bottom, top));
+      if (!narrow && !undefined && !done)
+      {
+        if (size == xs.length)
+        {
+          xs = Arrays.copyOf(xs, 2 * size);
+          ys = Arrays.copyOf(ys, 2 * size);
+        }
+        xs[size] = xm;
+        ys[size++] = ym;
+        continue;
+      }
+      --size;
+      if (narrow && defined && !done && Math.abs(y1 - y0) * sy > height) curve.add(xm, Double.NaN);
+      curve.add(x1, y1);
+      x0 = x1;
+      y0 = y1;
+    }
+    return curve;
+  }
+
+  /**
+   * Samples several functions concurrently over the same view.
+   * @return The curve of sampler i at index i
+   * @see #sample(double, double, double, double, int, int)
+   */
+  public static List<Curve> sampleAll(List<Sampler> samplers, double from, double to, double bottom, double top,
+    int width, int height)
+  {
+    return samplers.parallelStream().map(sampler -> sampler.sample(from, to, bottom, top, width, height))
+      .collect(Collectors.toList());
+  }
+
+  private double eval(double[] arg, double x, Curve curve)
+  {
+    arg[0] = x;
+    ++curve.evaluations;
+    return evaluator.eval(arg);
+  }
+
+  // true if the midpoint is within the tolerance of the line between the ends
+  private boolean flat(double y0, double ym, double y1, double sy)
+  {
+    return Math.abs(ym - 0.5 * (y0 + y1)) * sy <= 0.5 * tolerance;
+  }
+
+  // true if the segment is entirely above or entirely below the view
+  private static boolean hidden(double y0, double ym, double y1, double bottom, double top)
+  {
+    return y0 > top && ym > top && y1 > top || y0 < bottom && ym < bottom && y1 < bottom;
+  }
+
+  private static boolean isFinite(double y)
+  {
+    return y - y == 0;
+  }
+
+  /**
+   * Points of a sampled curve in increasing order of x. A point with the value NaN breaks the curve:
+   * the points on each side of it are not to be joined.
+   */
+  public static final class Curve
+  {
+    private double[] xs = new double[64];
+    private double[] ys = new double[64];
+    private int size;
+    private int evaluations;
+    // the largest vertical distance of a dropped point from the line drawn
+    private final double margin;
+    // the last point kept for good, and the range of slopes of lines from it passing near all points after it
+    private int anchor = -1;
+    private double low;
+    private double high;
+
+    private Curve(double margin)
+    {
+      this.margin = margin;
+    }
+
+    // Adds a point, replacing the last one if it lies on the line to the new one; undefined points become a break
+    private void add(double x, double y)
+    {
+      if (!isFinite(y))
+      {
+        anchor = -1;
+        if (size == 0 || Double.isNaN(ys[size - 1])) return;
+        y = Double.NaN;
+      }
+      else if (anchor < 0 || anchor == size)
+      {
+        anchor = size;
+        low = Double.NEGATIVE_INFINITY;
+        high = Double.POSITIVE_INFINITY;
+      }
+      else
+      {
+        double slope = (y - ys[anchor]) / (x - xs[anchor]);
+        if (anchor < size - 1 && slope >= low && slope <= high) --size;
+        else
+        {
+          anchor = size - 1;
+          low = Double.NEGATIVE_INFINITY;
+          high = Double.POSITIVE_INFINITY;
+          slope = (y - ys[anchor]) / (x - xs[anchor]);
+        }
+        double d = margin / (x - xs[anchor]);
+        low = Math.max(low, slope - d);
+        high = Math.min(high, slope + d);
+      }
+      if (size == xs.length)
+      {
+        xs = Arrays.copyOf(xs, 2 * size);
+        ys = Arrays.copyOf(ys, 2 * size);
+      }
+      xs[size] = x;
+      ys[size++] = y;
+    }
+
+    /**
+     * @return The number of points, breaks included
+     */
+    public int size()
+    {
+      return size;
+    }
+
+    public double getX(int i)
+    {
+      if (i >= size) throw new IndexOutOfBoundsException("Point " + i);
+      return xs[i];
+    }
+
+    /**
+     * @return The value at point i, NaN at a break
+     */
+    public double getY(int i)
+    {
+      if (i >= size) throw new IndexOutOfBoundsException("Point " + i);
+      return ys[i];
+    }
+
+    /**
+     * @return The number of times the function was evaluated
+     */
+    public int getEvaluations()
+    {
+      return evaluations;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package com.project.cal.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates an expression for every row of a binary file of little-endian doubles, writing one double
+ * per row to an output channel. The file is memory-mapped a window at a time and the values are read
+ * directly from the mapped buffers, so the heap used is bounded whatever the size of the file.
+ * Rows where a function gets an illegal argument get the value NaN, as in batch evaluation.
+ * The evaluator is immutable and may be used by several threads at once.
+ */
+public final class StreamEvaluator
+{
+  /**
+   * Order of the values in the file.
+   */
+  public enum Layout
+  {
+    /** All the columns of row 0, then all the columns of row 1 and so on */
+    ROW_MAJOR,
+    /** All the rows of column 0, then all the rows of column 1 and so on */
+    COLUMN_MAJOR
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(StreamEvaluator.class);
+
+  // Bytes mapped at a time
+  private static final int WINDOW = 32 << 20;
+  // Rows evaluated and written at a time
+  private static final int CHUNK = 1 << 14;
+
+  private final Program program;
+  private final int columns;
+  private final Layout layout;
+  private final int window;
+
+  /**
+   * @param expression The expression to evaluate
+   * @param columns The number of doubles in a row, at least the number of variables of the expression
+   * @param layout Order of the values in the files evaluated
+   */
+  public StreamEvaluator(Expression expression, int columns, Layout layout)
+  {
+    this(expression, columns, layout, WINDOW);
+  }
+
+  StreamEvaluator(Expression expression, int columns, Layout layout, int window)
+  {
+    if (columns < expression.getProgram().vars) throw new IllegalArgumentException("Missing argument column");
+    this.program = expression.getProgram();
+    this.columns = columns;
+    this.layout = layout;
+    this.window = window;
+  }
+
+  /**
+   * Evaluates the expression for every row of the input file.
+   * @param input File of rows of doubles
+   * @param output File receiving the values, created or truncated
+   * @return Statistics of the evaluation
+   * @throws IOException If a file can not be read or written, or the input is not a whole number of rows
+   */
+  public Statistics evaluate(Path input, Path output) throws IOException
+  {
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+           StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      return evaluate(in, out);
+    }
+  }
+
+  /**
+   * Evaluates the expression for every row of the input channel, from its start to its size.
+   * @param input Channel of rows of doubles
+   * @param output Channel receiving the values
+   * @return Statistics of the evaluation
+   * @throws IOException If a channel can not be read or written, or the input is not a whole number of rows
+   */
+  public Statistics evaluate(FileChannel input, WritableByteChannel output) throws IOException
+  {
+    long start = System.nanoTime();
+    long size = input.size();
+    long rowBytes = 8L * columns;
+    if (size % rowBytes != 0) throw new IOException(size + " bytes is not a whole number of rows of " + columns + " doubles");
+    long rows = size / rowBytes;
+    int windowRows = (int)Math.max(1, window / rowBytes);
+    double[] values = new double[Math.min(CHUNK, windowRows)];
+    ByteBuffer bytes = ByteBuffer.allocateDirect(8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+    DoubleBuffer doubles = bytes.asDoubleBuffer();
+    int vars = program.vars;
+    DoubleBuffer[] buffers = new DoubleBuffer[vars];
+    int[] offsets = new int[vars];
+    int[] strides = new int[vars];
+    Columns source = Columns.of(buffers, offsets, strides);
+    for (long row = 0; row < rows; row += windowRows)
+    {
+      int n = (int)Math.min(windowRows, rows - row);
+      if (layout == Layout.ROW_MAJOR)
+      {
+        DoubleBuffer mapped = vars > 0 ? map(input, row * rowBytes, n * rowBytes) : null;
+        for (int v = 0; v < vars; ++v)
+        {
+          buffers[v] = mapped;
+          offsets[v] = v;
+          strides[v] = columns;
+        }
+      }
+      else
+        for (int v = 0; v < vars; ++v)
+        {
+          buffers[v] = map(input, 8 * (v * rows + row), 8L * n);
+          strides[v] = 1;
+        }
+      for (int i = 0; i < n; i += values.length)
+      {
+        int m = Math.min(values.length, n - i);
+        program.run(source, i, values, 0, m);
+        doubles.clear();
+        doubles.put(values, 0, m);
+        bytes.clear().limit(8 * m);
+        while (bytes.hasRemaining()) output.write(bytes);
+      }
+    }
+    Statistics statistics = new Statistics(rows, size, 8 * rows, System.nanoTime() - start);
+    logger.debug("{}", statistics);
+    return statistics;
+  }
+
+  private static DoubleBuffer map(FileChannel channel, long position, long size) throws IOException
+  {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+  }
+
+  /**
+   * Rows and bytes processed by an evaluation, and the time it took.
+   */
+  public static final class Statistics
+  {
+    private final long rows;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long nanos;
+
+    Statistics(long rows, long bytesRead, long bytesWritten, long nanos)
+    {
+      this.rows = rows;
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.nanos = Math.max(1, nanos);
+    }
+
+    public long getRows()
+    {
+      return rows;
+    }
+
+    public long getBytesRead()
+    {
+      return bytesRead;
+    }
+
+    public long getBytesWritten()
+    {
+      return bytesWritten;
+    }
+
+    /**
+     * @return The time of the evaluation in nanoseconds
+     */
+    public long getNanos()
+    {
+      return nanos;
+    }
+
+    public double getRowsPerSecond()
+    {
+      return rows * 1e9 / nanos;
+    }
+
+    /**
+     * @return Megabytes (10^6 bytes) read and written per second
+     */
+    public double getMegabytesPerSecond()
+    {
+      return (bytesRead + bytesWritten) * 1e3 / nanos;
+    }
+
+    public String toString()
+    {
+      return String.format("%d rows in %.1f ms, %.0f rows/s, %.1f MB/s", rows, nanos / 1e6, getRowsPerSecond(),
+        getMegabytesPerSecond());
+    }
+  }
+}
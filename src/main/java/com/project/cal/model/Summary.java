@@ -0,0 +1,189 @@
+package com.project.cal.model;
+
+/**
+ * Running statistics of a sequence of values in constant space: the count, the sum, the mean, the minimum,
+ * the maximum and the variance of the values that are not NaN, and the number of NaN values, which batch
+ * evaluation gives rows where a function gets an illegal argument.
+ * <p>
+ * The sum is compensated: the rounding error of every addition is computed exactly (Knuth's two-sum, and
+ * Neumaier's variant of Kahan summation across blocks) and added back, so it is as accurate as if it were
+ * computed with twice the precision. The variance is accumulated as the sum of squared deviations from the mean,
+ * block by block with two passes over each block, and combined across blocks and summaries by the update
+ * of Chan et al., which avoids the cancellation of the textbook formula.
+ * <p>
+ * A summary is not thread-safe. Parallel reductions give each task its own summary and combine them.
+ */
+public final class Summary
+{
+  // the values that are not NaN
+  private long count;
+  private long nans;
+  private double sum;
+  private double compensation;
+  // mean and sum of squared deviations from it, of the values counted
+  private double mean;
+  private double m2;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Adds a value.
+   * @return This summary
+   */
+  public Summary add(double value)
+  {
+    if (value != value)
+    {
+      ++nans;
+      return this;
+    }
+    addToSum(value);
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    merge(1, value, 0);
+    return this;
+  }
+
+  /**
+   * Adds the values of an array from index from to index to - 1.
+   * @return This summary
+   */
+  public Summary add(double[] values, int from, int to)
+  {
+    // first pass: extremes, NaN count and the sum of the block with the exact error of each addition (two-sum)
+    long n = 0;
+    double s = 0, c = 0, lo = min, hi = max;
+    for (int i = from; i < to; ++i)
+    {
+      double x = values[i];
+      if (x != x) continue;
+      ++n;
+      double t = s + x;
+      double z = t - s;
+      c += (s - (t - z)) + (x - z);
+      s = t;
+      if (x < lo) lo = x;
+      if (x > hi) hi = x;
+    }
+    nans += to - from - n;
+    if (n == 0) return this;
+    addToSum(s);
+    compensation += c;
+    min = lo;
+    max = hi;
+    // second pass: squared deviations from the mean of the block
+    double blockMean = (s + c) / n, squares = 0;
+    for (int i = from; i < to; ++i)
+    {
+      double x = values[i];
+      if (x == x) squares += (x - blockMean) * (x - blockMean);
+    }
+    merge(n, blockMean, squares);
+    return this;
+  }
+
+  /**
+   * Adds the values summarized by another summary, as if they had been added to this one.
+   * @return This summary
+   */
+  public Summary combine(Summary other)
+  {
+    nans += other.nans;
+    if (other.count == 0) return this;
+    addToSum(other.sum);
+    addToSum(other.compensation);
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    merge(other.count, other.mean, other.m2);
+    return this;
+  }
+
+  private void addToSum(double x)
+  {
+    double t = sum + x;
+    compensation += Math.abs(sum) >= Math.abs(x) ? (sum - t) + x : (x - t) + sum;
+    sum = t;
+  }
+
+  // Adds n values of the given mean and sum of squared deviations to the count, mean and m2
+  private void merge(long n, double otherMean, double otherM2)
+  {
+    long total = count + n;
+    double delta = otherMean - mean;
+    mean += delta * n / total;
+    m2 += otherM2 + delta * delta * ((double)count * n / total);
+    count = total;
+  }
+
+  /**
+   * @return The number of values that are not NaN
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return The number of NaN values
+   */
+  public long getNaNCount()
+  {
+    return nans;
+  }
+
+  /**
+   * @return The compensated sum of the values that are not NaN, 0 if there are none
+   */
+  public double getSum()
+  {
+    double total = sum + compensation;
+    // an infinite sum makes the compensation NaN
+    return total != total && Double.isInfinite(sum) ? sum : total;
+  }
+
+  /**
+   * @return The mean of the values that are not NaN, NaN if there are none
+   */
+  public double getMean()
+  {
+    return count == 0 ? Double.NaN : getSum() / count;
+  }
+
+  /**
+   * @return The smallest value that is not NaN, NaN if there are none
+   */
+  public double getMin()
+  {
+    return count == 0 ? Double.NaN : min;
+  }
+
+  /**
+   * @return The largest value that is not NaN, NaN if there are none
+   */
+  public double getMax()
+  {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  /**
+   * @return The population variance of the values that are not NaN, NaN if there are none
+   */
+  public double getVariance()
+  {
+    return count == 0 ? Double.NaN : m2 / count;
+  }
+
+  /**
+   * @return The sample variance of the values that are not NaN, NaN if there are fewer than two
+   */
+  public double getSampleVariance()
+  {
+    return count < 2 ? Double.NaN : m2 / (count - 1);
+  }
+
+  public String toString()
+  {
+    return String.format("count=%d, NaN=%d, sum=%s, min=%s, mean=%s, max=%s, variance=%s", count, nans, getSum(),
+      getMin(), getMean(), getMax(), getVariance());
+  }
+}
@@ -0,0 +1,42 @@
+package com.project.cal.model;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join task summarizing the values of a program for a range of rows.
+ * The range is split as by {@link BatchTask}, and the summaries of the halves are combined.
+ */
+final class SummaryTask extends RecursiveTask<Summary>
+{
+  private final Program program;
+  private final double[][] columns;
+  private final int from;
+  private final int to;
+  private final int grain;
+
+  SummaryTask(Program program, double[][] columns, int from, int to, int grain)
+  {
+    this.program = program;
+    this.columns = columns;
+    this.from = from;
+    this.to = to;
+    this.grain = grain;
+  }
+
+  @Override
+  protected Summary compute()
+  {
+    int rows = to - from;
+    if (rows <= grain || rows <= Program.BLOCK)
+    {
+      Summary summary = new Summary();
+      program.run(Columns.of(columns), from, summary, rows);
+      return summary;
+    }
+    int middle = from + (rows / 2 + Program.BLOCK - 1) / Program.BLOCK * Program.BLOCK;
+    SummaryTask left = new SummaryTask(program, columns, from, middle, grain);
+    left.fork();
+    Summary right = new SummaryTask(program, columns, middle, to, grain).compute();
+    return left.join().combine(right);
+  }
+}
@@ -0,0 +1,100 @@
+package com.project.cal.model;
+
+/**
+ * The result of checking the text of an expression without building it: legal, or the code of the first error
+ * found and the position of the character causing it. Checking never throws nor creates an exception, and a legal
+ * text gives the shared instance VALID, so nothing is allocated for it. A validation is immutable.
+ */
+public final class Validation
+{
+  /** The text is a legal expression */
+  public static final int OK = Parser.OK;
+  /** A character that can not start an item */
+  public static final int ILLEGAL_CHARACTER = Lexer.ILLEGAL_CHARACTER;
+  /** A number that is not well formed, or followed by a letter */
+  public static final int ILLEGAL_NUMBER = Lexer.ILLEGAL_NUMBER;
+  /** A function that does not exist */
+  public static final int UNKNOWN_NAME = Lexer.UNKNOWN_NAME;
+  /** An operator, comma or parenthesis where it is not allowed */
+  public static final int UNEXPECTED_ITEM = Parser.UNEXPECTED_ITEM;
+  /** The text ends where an operand is expected */
+  public static final int UNEXPECTED_END = Parser.UNEXPECTED_END;
+  /** A right parenthesis without a left one, or the other way around */
+  public static final int UNBALANCED_PARENTHESIS = Parser.UNBALANCED_PARENTHESIS;
+  /** A function with the wrong number of arguments */
+  public static final int ARGUMENT_COUNT = Parser.ARGUMENT_COUNT;
+  /** Integrate or Sum whose second argument is not a single variable */
+  public static final int BOUND_VARIABLE = Parser.BOUND_VARIABLE;
+
+  /** The validation of every legal text */
+  public static final Validation VALID = new Validation(OK, -1);
+
+  private final int error;
+  private final int position;
+
+  private Validation(int error, int position)
+  {
+    this.error = error;
+    this.position = position;
+  }
+
+  /**
+   * Checks the syntax of an expression, as the constructor of {@link Expression} does before building it.
+   * A text is legal exactly when the constructor accepts it.
+   * @param text The expression on infix form
+   * @return VALID, or the first error
+   */
+  static Validation of(CharSequence text)
+  {
+    Parser parser = new Parser(text, false);
+    return parser.parse() ? VALID : new Validation(parser.getError(), parser.getErrorPosition());
+  }
+
+  public boolean isValid()
+  {
+    return error == OK;
+  }
+
+  /**
+   * @return The code of the error, OK for a legal text
+   */
+  public int getError()
+  {
+    return error;
+  }
+
+  /**
+   * @return The position of the character causing the error, -1 for a legal text
+   */
+  public int getPosition()
+  {
+    return position;
+  }
+
+  /**
+   * @return A short description of the error, as in the message of the exception of the Expression constructor
+   */
+  public String getMessage()
+  {
+    return error == OK ? Parser.describe(OK) : Parser.describe(error) + " at position " + position;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (!(obj instanceof Validation)) return false;
+    Validation validation = (Validation)obj;
+    return validation.error == error && validation.position == position;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 * error + position;
+  }
+
+  public String toString()
+  {
+    return getMessage();
+  }
+}
@@ -0,0 +1,252 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+/**
+ * The variables of an expression, numbered by dense slots: first the variables X0, X1, ... in increasing order
+ * of index, then the named variables in the order they first appear in the text. Names are case insensitive.
+ * A lone X5 thus has slot 0, and in "price * qty + X2" X2 has slot 0, price slot 1 and qty slot 2.
+ * <p>
+ * The positional methods, such as getValue(double...) and batch evaluation, take Xi at position i, and the
+ * named variables at the positions after the highest index, in the order of their slots. A {@link Frame}
+ * instead takes its values by slot, so names are resolved once, when the slot is looked up, and never while
+ * evaluating. A layout is immutable.
+ */
+public final class VariableLayout
+{
+  // X index of each slot, -1 for a name
+  private final int[] indexes;
+  // name of each slot, null for an X variable
+  private final String[] names;
+  // position of each slot among the positional arguments
+  private final int[] positions;
+  private final int arguments;
+  private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+  private VariableLayout(BitSet indexes, Collection<String> names)
+  {
+    int size = indexes.cardinality() + names.size();
+    this.indexes = new int[size];
+    this.names = new String[size];
+    this.positions = new int[size];
+    int slot = 0;
+    for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1), ++slot)
+    {
+      this.indexes[slot] = i;
+      positions[slot] = i;
+      slots.put("x" + i, slot);
+    }
+    int position = indexes.length();
+    for (String name : names)
+    {
+      this.indexes[slot] = -1;
+      this.names[slot] = name;
+      positions[slot] = position++;
+      slots.put(name, slot++);
+    }
+    arguments = position;
+  }
+
+  /**
+   * The layout of the variables of an expression, from its items in the order of the text or in postfix order,
+   * which keeps the order of the operands.
+   */
+  static VariableLayout of(Iterable<? extends Item> items)
+  {
+    BitSet indexes = new BitSet();
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    for (Item item : items)
+    {
+      if (item instanceof VarItem) indexes.set(((VarItem)item).getId());
+      else if (item instanceof NameItem) names.add(((NameItem)item).getName());
+    }
+    return new VariableLayout(indexes, names);
+  }
+
+  /**
+   * The layout of the variables of an expression text already known to be legal, found by scanning it only.
+   */
+  static VariableLayout scan(CharSequence text)
+  {
+    List<Item> items = new ArrayList<Item>();
+    Lexer lexer = new Lexer(text);
+    for (Item item = lexer.next(); item != null; item = lexer.next()) items.add(item);
+    return of(items);
+  }
+
+  /**
+   * The layout of the variables of several expressions together: every X variable used by one of them,
+   * then the names in the order of the layouts.
+   */
+  static VariableLayout union(List<VariableLayout> layouts)
+  {
+    BitSet indexes = new BitSet();
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    for (VariableLayout layout : layouts)
+      for (int slot = 0; slot < layout.size(); ++slot)
+      {
+        if (layout.names[slot] == null) indexes.set(layout.indexes[slot]);
+        else names.add(layout.names[slot]);
+      }
+    return new VariableLayout(indexes, names);
+  }
+
+  /**
+   * @return The number of variables, which is the number of slots
+   */
+  public int size()
+  {
+    return indexes.length;
+  }
+
+  /**
+   * Looks up the slot of a variable. This is the only place a name is hashed; keep the slot and bind by it.
+   * @param name A name, or X followed by an index; case insensitive
+   * @return The slot of the variable, -1 if the expression does not use it
+   */
+  public int slotOf(String name)
+  {
+    Integer slot = slots.get(key(name));
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * @return The name of the variable in the slot, X followed by the index for the variables given by index
+   */
+  public String getName(int slot)
+  {
+    return names[slot] == null ? "X" + indexes[slot] : names[slot];
+  }
+
+  /**
+   * @return The index i of the variable Xi in the slot, -1 for a named variable
+   */
+  public int getIndex(int slot)
+  {
+    return indexes[slot];
+  }
+
+  /**
+   * @return The position of the variable in the slot among the positional arguments
+   */
+  public int getPosition(int slot)
+  {
+    return positions[slot];
+  }
+
+  /**
+   * @return The number of positional arguments needed, one more than the highest position
+   */
+  public int getArgumentCount()
+  {
+    return arguments;
+  }
+
+  /**
+   * @return A new frame for values of the variables of this layout, all 0
+   */
+  public Frame newFrame()
+  {
+    return new Frame(this);
+  }
+
+  // The position of a named variable of the layout
+  int positionOf(String name)
+  {
+    return positions[slots.get(name)];
+  }
+
+  // "x" followed by the index without leading zeros for an X variable, the lower case name otherwise
+  private static String key(String name)
+  {
+    String key = name.toLowerCase(Locale.ROOT);
+    if (key.length() < 2 || key.charAt(0) != 'x') return key;
+    int index = 0;
+    for (int i = 1; i < key.length(); ++i)
+    {
+      char c = key.charAt(i);
+      if (c < '0' || c > '9' || index > 0xFFFFFF) return key;
+      index = 10 * index + (c - '0');
+    }
+    return "x" + index;
+  }
+
+  public boolean equals(Object obj)
+  {
+    if (obj == this) return true;
+    if (!(obj instanceof VariableLayout)) return false;
+    VariableLayout layout = (VariableLayout)obj;
+    return Arrays.equals(indexes, layout.indexes) && Arrays.equals(names, layout.names);
+  }
+
+  public int hashCode()
+  {
+    return 31 * Arrays.hashCode(indexes) + Arrays.hashCode(names);
+  }
+
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder("[");
+    for (int slot = 0; slot < size(); ++slot) builder.append(slot > 0 ? ", " : "").append(getName(slot));
+    return builder.append(']').toString();
+  }
+
+  /**
+   * Values of the variables of a layout, set by slot and reused from one evaluation to the next.
+   * Setting a value is a single array store, so a frame can be filled and evaluated in a loop without
+   * hashing or allocation. The values are kept in positional order, so an expression evaluates the frame directly.
+   * A frame is not thread-safe; use one per thread.
+   */
+  public static final class Frame
+  {
+    private final VariableLayout layout;
+    private final double[] values;
+
+    private Frame(VariableLayout layout)
+    {
+      this.layout = layout;
+      this.values = new double[layout.arguments];
+    }
+
+    /**
+     * Sets the value of the variable in a slot.
+     * @return This frame
+     */
+    public Frame set(int slot, double value)
+    {
+      values[layout.positions[slot]] = value;
+      return this;
+    }
+
+    /**
+     * Sets the value of a variable by name, which looks up its slot; set by slot in loops.
+     * @return This frame
+     * @throws IllegalArgumentException If the layout has no such variable
+     */
+    public Frame set(String name, double value)
+    {
+      int slot = layout.slotOf(name);
+      if (slot < 0) throw new IllegalArgumentException("Unknown variable " + name);
+      return set(slot, value);
+    }
+
+    /**
+     * @return The value of the variable in a slot
+     */
+    public double get(int slot)
+    {
+      return values[layout.positions[slot]];
+    }
+
+    public VariableLayout getLayout()
+    {
+      return layout;
+    }
+
+    // The values in positional order
+    double[] values()
+    {
+      return values;
+    }
+  }
+}
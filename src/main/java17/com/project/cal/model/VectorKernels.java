@@ -0,0 +1,86 @@
+package com.project.cal.model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The batch loops of {@link Kernels} over DoubleVector lanes of the preferred species, 4 doubles with AVX2
+ * and 8 with AVX-512, with a scalar loop for the remaining values. Loaded by Kernels on Java 17 and later.
+ */
+final class VectorKernels extends Kernels
+{
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  boolean isVector()
+  {
+    return true;
+  }
+
+  void add(double[] x, double[] y, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).add(DoubleVector.fromArray(SPECIES, y, i)).intoArray(x, i);
+    for (; i < n; ++i) x[i] += y[i];
+  }
+
+  void sub(double[] x, double[] y, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).sub(DoubleVector.fromArray(SPECIES, y, i)).intoArray(x, i);
+    for (; i < n; ++i) x[i] -= y[i];
+  }
+
+  void mul(double[] x, double[] y, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).mul(DoubleVector.fromArray(SPECIES, y, i)).intoArray(x, i);
+    for (; i < n; ++i) x[i] *= y[i];
+  }
+
+  void div(double[] x, double[] y, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).div(DoubleVector.fromArray(SPECIES, y, i)).intoArray(x, i);
+    for (; i < n; ++i) x[i] /= y[i];
+  }
+
+  void neg(double[] x, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).neg().intoArray(x, i);
+    for (; i < n; ++i) x[i] = -x[i];
+  }
+
+  void sqr(double[] x, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+    {
+      DoubleVector v = DoubleVector.fromArray(SPECIES, x, i);
+      v.mul(v).intoArray(x, i);
+    }
+    for (; i < n; ++i) x[i] *= x[i];
+  }
+
+  void sqrt(double[] x, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).lanewise(VectorOperators.SQRT).intoArray(x, i);
+    for (; i < n; ++i) x[i] = Math.sqrt(x[i]);
+  }
+
+  void abs(double[] x, int n)
+  {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+      DoubleVector.fromArray(SPECIES, x, i).abs().intoArray(x, i);
+    for (; i < n; ++i) x[i] = Math.abs(x[i]);
+  }
+}
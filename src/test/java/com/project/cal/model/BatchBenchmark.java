@@ -0,0 +1,62 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares columnar batch evaluation with one getValue call per row.
+ * Run main with the test classpath, or org.openjdk.jmh.Main BatchBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark
+{
+  @Param({ "(x0 + x1) * x2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1) - 2 * x0 * x1 + x2" })
+  public String text;
+
+  @Param({ "1000000" })
+  public int rows;
+
+  private Expression expression;
+  private double[][] columns;
+  private double[] out;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression(text);
+    Random random = new Random(42);
+    columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextDouble();
+    out = new double[rows];
+  }
+
+  @Benchmark
+  public double[] perRow() throws Exception
+  {
+    double[] x0 = columns[0], x1 = columns[1], x2 = columns[2];
+    for (int i = 0; i < rows; ++i) out[i] = expression.getValue(x0[i], x1[i], x2[i]);
+    return out;
+  }
+
+  @Benchmark
+  public double[] batch()
+  {
+    expression.evaluate(columns, out, 0, rows);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(BatchBenchmark.class.getSimpleName()).build()).run();
+  }
+}
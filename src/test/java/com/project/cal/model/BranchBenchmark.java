@@ -0,0 +1,87 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares a lazy If with the arithmetic emulation c * a + (1 - c) * b, which evaluates both branches,
+ * for a condition true with the given probability and an expensive first branch.
+ * Run main with the test classpath, or org.openjdk.jmh.Main BranchBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchBenchmark
+{
+  private static final String EXPENSIVE = "Pow(x1, x2) * Factorial(x1 * 20) + Exp(Sqrt(x2)) / Ln(x1 + 2)";
+  private static final String CHEAP = "x1 + x2";
+
+  @Param({ "0.001", "0.1", "0.5", "0.9" })
+  public double probability;
+
+  @Param({ "100000" })
+  public int rows;
+
+  private Expression emulated;
+  private Expression lazy;
+  private double[][] columns;
+  private double[] out;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    String condition = "(x0 < " + probability + ")";
+    emulated = new Expression(condition + " * (" + EXPENSIVE + ") + (1 - " + condition + ") * (" + CHEAP + ")");
+    lazy = new Expression("If(" + condition + ", " + EXPENSIVE + ", " + CHEAP + ")");
+    Random random = new Random(42);
+    columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextDouble();
+    out = new double[rows];
+  }
+
+  @Benchmark
+  public double[] emulatedPerRow() throws Exception
+  {
+    return perRow(emulated);
+  }
+
+  @Benchmark
+  public double[] lazyPerRow() throws Exception
+  {
+    return perRow(lazy);
+  }
+
+  @Benchmark
+  public double[] emulatedBatch()
+  {
+    emulated.evaluate(columns, out, 0, rows);
+    return out;
+  }
+
+  @Benchmark
+  public double[] lazyBatch()
+  {
+    lazy.evaluate(columns, out, 0, rows);
+    return out;
+  }
+
+  private double[] perRow(Expression expression) throws Exception
+  {
+    double[] x0 = columns[0], x1 = columns[1], x2 = columns[2];
+    for (int i = 0; i < rows; ++i) out[i] = expression.getValue(x0[i], x1[i], x2[i]);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(BranchBenchmark.class.getSimpleName()).build()).run();
+  }
+}
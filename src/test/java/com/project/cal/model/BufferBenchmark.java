@@ -0,0 +1,89 @@
+package com.project.cal.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares evaluation straight from and into direct buffers of row-major doubles with copying the rows
+ * to heap arrays first, one row at a time for getValue and all columns at once for batch evaluation.
+ * Run main with the test classpath, or org.openjdk.jmh.Main BufferBenchmark -prof gc for the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark
+{
+  private static final int COLUMNS = 4;
+
+  @Param({ "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1) - x3" })
+  public String text;
+
+  @Param({ "1000", "1000000" })
+  public int rows;
+
+  private Expression expression;
+  private ByteBuffer in;
+  private ByteBuffer out;
+  private DoubleBuffer inDoubles;
+  private DoubleBuffer outDoubles;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression(text);
+    Random random = new Random(42);
+    in = ByteBuffer.allocateDirect(8 * COLUMNS * rows).order(ByteOrder.nativeOrder());
+    for (int i = 0; i < COLUMNS * rows; ++i) in.putDouble(8 * i, random.nextDouble());
+    out = ByteBuffer.allocateDirect(8 * rows).order(ByteOrder.nativeOrder());
+    inDoubles = in.asDoubleBuffer();
+    outDoubles = out.asDoubleBuffer();
+  }
+
+  @Benchmark
+  public ByteBuffer copyRows() throws Exception
+  {
+    double[] row = new double[COLUMNS];
+    inDoubles.clear();
+    for (int r = 0; r < rows; ++r)
+    {
+      inDoubles.get(row);
+      outDoubles.put(r, expression.getValue(row));
+    }
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer copyColumns()
+  {
+    double[][] columns = new double[COLUMNS][rows];
+    for (int r = 0; r < rows; ++r)
+      for (int c = 0; c < COLUMNS; ++c) columns[c][r] = inDoubles.get(r * COLUMNS + c);
+    double[] values = new double[rows];
+    expression.evaluate(columns, values, 0, rows);
+    outDoubles.clear();
+    outDoubles.put(values);
+    return out;
+  }
+
+  @Benchmark
+  public ByteBuffer zeroCopy()
+  {
+    expression.evaluate(in, COLUMNS, StreamEvaluator.Layout.ROW_MAJOR, out);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(BufferBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+  }
+}
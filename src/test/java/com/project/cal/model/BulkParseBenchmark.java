@@ -0,0 +1,76 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares parsing a store of formulas, a quarter of them repeated, on one thread with new Expression and with
+ * the bulk parser on a single thread, where only interning differs, and on the common pool.
+ * The speedup over one thread is the ratio of the times of sequential and common; the bulk parser reports its own
+ * estimate in the debug log. Run main with the test classpath, or org.openjdk.jmh.Main BulkParseBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkParseBenchmark
+{
+  private static final String[] formulas = { "x0 * 1.5 + 2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)",
+    "Ln(Abs(x3) + 1) * Pow(x1, 2) + Factorial(4) * pi", "(price - cost) * qty - e", "Exp(-x0 * x0 / 2) / Sqrt(2 * pi)" };
+
+  @Param({ "100000" })
+  public int count;
+
+  private List<String> texts;
+  private BulkParser single;
+  private BulkParser common;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setUp()
+  {
+    texts = new ArrayList<String>(count);
+    for (int i = 0; i < count; ++i) texts.add(formulas[i % formulas.length] + " + " + (i % 4 == 0 ? 0 : i));
+    pool = new ForkJoinPool(1);
+    single = new BulkParser(pool, EnumSet.noneOf(Expression.Option.class));
+    common = new BulkParser();
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public Expression[] sequential() throws Exception
+  {
+    Expression[] expressions = new Expression[count];
+    for (int i = 0; i < count; ++i) expressions[i] = new Expression(texts.get(i));
+    return expressions;
+  }
+
+  @Benchmark
+  public BulkParser.Result single()
+  {
+    return single.parse(texts);
+  }
+
+  @Benchmark
+  public BulkParser.Result common()
+  {
+    return common.parse(texts);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(BulkParseBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+  }
+}
@@ -0,0 +1,86 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkParserTest {
+
+  private static final String[] texts = { "x0 * 2 + 1", "Sqrt(x0 * x0 + x1 * x1)", "x0 + # 1", "price * qty",
+    "x0*2+1", "Sum(Sqr(i), i, 1, x0) + 1", "a * b", "Pow(x0)", "x0 * 3 + 5", "Sum(Sqr(i), i, 1, x0) * 2" };
+
+  @Test
+  public void testParse() throws Exception {
+    System.out.println("parse");
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      // more than a chunk per thread, with every text repeated
+      List<String> list = new ArrayList<String>();
+      for (int i = 0; i < 20000; ++i) list.add(i % 2 == 0 ? texts[i / 2 % texts.length] : "x0 * " + i / 2 + " + " + i % 7);
+      BulkParser.Result result = new BulkParser(pool, EnumSet.noneOf(Expression.Option.class)).parse(list);
+      System.out.println(result);
+      assertEquals(list.size(), result.getCount());
+      assertEquals(2000, result.getErrors().size());
+      assertEquals(list.size() - texts.length - 10000, result.getDuplicateCount());
+      int errors = 0;
+      for (int i = 0; i < list.size(); ++i) {
+        Expression e = result.getExpressions().get(i);
+        try {
+          Expression expected = new Expression(list.get(i));
+          assertEquals(expected.toString(), e.toString());
+          assertEquals(expected.getLayout(), e.getLayout());
+          assertEquals(expected.getValue(1.5, 2.5), e.getValue(1.5, 2.5), 0);
+        }
+        catch (Exception ex) {
+          assertNull(e);
+          // in the order of the texts
+          BulkParser.Failure failure = result.getErrors().get(errors++);
+          assertEquals(i, failure.getIndex());
+          assertEquals(list.get(i), failure.getText());
+          assertEquals(ex.getMessage(), failure.getMessage());
+        }
+      }
+      // a repeated text gives the same expression
+      assertSame(result.getExpressions().get(0), result.getExpressions().get(2 * texts.length));
+      assertTrue(result.getParseNanos() > 0);
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testInterning() throws Exception {
+    System.out.println("interning");
+    List<Expression> expressions = new BulkParser().parse(Arrays.stream(texts)).getExpressions();
+    // the same program for another spelling and for other names
+    assertSame(expressions.get(0).getProgram(), expressions.get(4).getProgram());
+    assertSame(expressions.get(3).getProgram(), expressions.get(6).getProgram());
+    assertNotSame(expressions.get(3).getLayout(), expressions.get(6).getLayout());
+    // the same code with other constants
+    Program a = expressions.get(0).getProgram(), b = expressions.get(8).getProgram();
+    assertNotSame(a, b);
+    assertSame(a.code, b.code);
+    assertNotSame(a.consts, b.consts);
+    assertEquals(8.6, expressions.get(8).getValue(1.2), 1e-15);
+    // the same body in two sums
+    assertSame(expressions.get(5).getProgram().bodies[0], expressions.get(9).getProgram().bodies[0]);
+    assertEquals(2 * 14, expressions.get(9).getValue(3), 0);
+    // nothing is shared with expressions parsed apart
+    assertNotSame(a.code, new Expression(texts[0]).getProgram().code);
+  }
+
+  @Test
+  public void testEmpty() {
+    System.out.println("empty");
+    BulkParser.Result result = new BulkParser(new ForkJoinPool(1), EnumSet.of(Expression.Option.RELAXED))
+      .parse(IntStream.range(0, 0).mapToObj(Integer::toString));
+    assertEquals(0, result.getCount());
+    assertTrue(result.getErrors().isEmpty());
+    assertEquals(0, result.getTextsPerSecond(), 0);
+  }
+}
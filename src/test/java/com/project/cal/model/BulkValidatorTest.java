@@ -0,0 +1,118 @@
+package com.project.cal.model;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class BulkValidatorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String[] texts = { "x0 + 1", "Sqrt(x0 * x0 + x1 * x1)", "x0 + # 1", "price * qty", "Pow(x0)",
+    "If(x0 < 1, 2, 3", "Sum(1 / Sqr(k), k, 1, n)", "Sum(k, 2, 0, 1)", "1.5e", "foo(x0)", "", "(x0))" };
+
+  // texts, cycling over the samples
+  private static List<String> texts(int n) {
+    List<String> list = new ArrayList<String>(n);
+    for (int i = 0; i < n; ++i) list.add(texts[i % texts.length]);
+    return list;
+  }
+
+  @Test
+  public void testValidate() {
+    System.out.println("validate");
+    for (String text : texts) {
+      Validation validation = Expression.validate(text);
+      try {
+        new Expression(text);
+        assertSame(text, Validation.VALID, validation);
+      }
+      catch (Exception ex) {
+        assertFalse(text, validation.isValid());
+        // the same code and position as the constructor reports
+        assertEquals("Parse error: " + validation.getMessage(), ex.getMessage());
+      }
+    }
+    Validation validation = Expression.validate("x0 + # 1");
+    assertEquals(Validation.ILLEGAL_CHARACTER, validation.getError());
+    assertEquals(5, validation.getPosition());
+    assertEquals(validation, Expression.validate(new StringBuilder("x1 + # 2")));
+    assertEquals(Validation.BOUND_VARIABLE, Expression.validate("Sum(k, 2, 0, 1)").getError());
+    assertEquals(-1, Validation.VALID.getPosition());
+  }
+
+  @Test
+  public void testValidateAllocation() {
+    System.out.println("validate allocation");
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long legal = Long.MAX_VALUE, illegal = Long.MAX_VALUE;
+    for (int round = 0; round < 5; ++round) {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 1000; ++i) Expression.validate("Pow(x0, x1 + x2) + 1");
+      long between = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 1000; ++i) Expression.validate("Pow(x0, x1 + x2) + # 1");
+      legal = Math.min(legal, between - before);
+      illegal = Math.min(illegal, bean.getThreadAllocatedBytes(thread) - between);
+    }
+    // the parser's lists and the result only, no exception and stack trace
+    assertTrue(legal + " bytes", legal < 1000 * 1000);
+    assertTrue(illegal + " bytes", illegal < legal + 1000 * 100);
+  }
+
+  @Test
+  public void testBulk() throws Exception {
+    System.out.println("bulk");
+    int n = 100003;
+    List<String> list = texts(n);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BulkValidator validator = new BulkValidator(pool, 100);
+      BulkValidator.Report report = validator.validate(list);
+      long invalid = 0;
+      for (String text : list) if (!Expression.validate(text).isValid()) ++invalid;
+      assertEquals(n, report.getCount());
+      assertEquals(invalid, report.getInvalidCount());
+      assertEquals(100, report.getErrors().size());
+      // in the order of the lines
+      long last = 0;
+      for (BulkValidator.Failure failure : report.getErrors()) {
+        assertTrue(failure.getLine() > last);
+        last = failure.getLine();
+        assertEquals(list.get((int)failure.getLine() - 1), failure.getText());
+        assertEquals(Expression.validate(failure.getText()), failure.getValidation());
+      }
+      assertEquals(3, report.getErrors().get(0).getLine());
+      assertTrue(report.getTextsPerSecond() > 0);
+      System.out.println(report);
+      // the same from a file and from a reader
+      Path file = folder.newFile().toPath();
+      Files.write(file, list, StandardCharsets.UTF_8);
+      BulkValidator.Report read = validator.validate(file);
+      assertEquals(report.getCount(), read.getCount());
+      assertEquals(report.getInvalidCount(), read.getInvalidCount());
+      assertEquals(report.getCharacters(), read.getCharacters());
+      assertEquals(report.getErrors().get(99).getLine(), read.getErrors().get(99).getLine());
+      BulkValidator.Report small = new BulkValidator().validate(new BufferedReader(new StringReader("x0\n1 +\n\nSqr(2)")));
+      assertEquals(4, small.getCount());
+      assertEquals(2, small.getInvalidCount());
+      assertEquals("Line 2: Unexpected end at position 3", small.getErrors().get(0).toString());
+      assertEquals(3, small.getErrors().get(1).getLine());
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the evaluation server. Each client thread keeps a number of requests of a few rows
+ * outstanding on its own connection for a fixed time, first one at a time, then pipelined.
+ * Run main with the test classpath; the arguments are the number of clients, the rows per request
+ * and the seconds per run.
+ */
+public class EvaluationBenchmark
+{
+  private static final String TEXT = "Sqrt(x0 * x0 + x1 * x1) * Exp(0 - x2 / 10) + x3 / 2";
+  private static final int COLUMNS = 4;
+
+  public static void main(String[] args) throws Exception
+  {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int rows = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    int threads = Runtime.getRuntime().availableProcessors();
+    try (EvaluationServer server = new EvaluationServer(0, threads, 4096))
+    {
+      for (int window : new int[] { 1, 1, 16, 64, 256 })
+      {
+        long batches = server.getBatchCount();
+        long start = System.nanoTime();
+        long requests = run(server.getPort(), clients, rows, window, seconds);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d clients, %3d outstanding: %8.0f requests/s, %10.0f rows/s, %.1f requests per batch%n",
+          clients, window, requests / elapsed, requests * rows / elapsed,
+          (double)requests / (server.getBatchCount() - batches));
+      }
+    }
+  }
+
+  // Runs the clients, each with window requests outstanding, and returns the number of requests answered
+  private static long run(int port, int clients, int rows, int window, int seconds) throws Exception
+  {
+    LongAdder answered = new LongAdder();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    try
+    {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int c = 0; c < clients; ++c)
+      {
+        int seed = c;
+        futures.add(pool.submit(() ->
+        {
+          try (EvaluationClient client = new EvaluationClient(port))
+          {
+            int handle = client.define(TEXT).get();
+            double[] values = new double[rows * COLUMNS];
+            for (int i = 0; i < values.length; ++i) values[i] = (i + seed) % 17 - 8;
+            ArrayDeque<Future<double[]>> outstanding = new ArrayDeque<Future<double[]>>();
+            while (System.nanoTime() < end)
+            {
+              while (outstanding.size() < window) outstanding.add(client.evaluate(handle, COLUMNS, values));
+              outstanding.poll().get();
+              answered.increment();
+            }
+            for (Future<double[]> future : outstanding) future.get();
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) future.get();
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    return answered.sum();
+  }
+}
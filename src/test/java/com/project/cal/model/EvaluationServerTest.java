@@ -0,0 +1,259 @@
+package com.project.cal.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a server and its clients over the loopback interface.
+ */
+public class EvaluationServerTest {
+
+  private EvaluationServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new EvaluationServer(0, 2, 64, new ExpressionCache(100));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  private static double[] rows(int rows, int columns, int seed) {
+    double[] values = new double[rows * columns];
+    for (int i = 0; i < values.length; ++i) values[i] = (i * 7 + seed) % 23 - 11.5;
+    return values;
+  }
+
+  private static void check(Expression e, int columns, double[] values, double[] out) throws Exception {
+    assertEquals(values.length / columns, out.length);
+    for (int r = 0; r < out.length; ++r) {
+      double expected;
+      try {
+        expected = e.getValue(Arrays.copyOfRange(values, r * columns, (r + 1) * columns));
+      }
+      catch (Exception ex) {
+        expected = Double.NaN;
+      }
+      assertEquals(expected, out[r], 0);
+    }
+  }
+
+  private static Throwable failure(Future<?> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    catch (ExecutionException ex) {
+      return ex.getCause();
+    }
+    fail("No error");
+    return null;
+  }
+
+  private static String error(Future<?> future) throws Exception {
+    return failure(future).getMessage();
+  }
+
+  @Test
+  public void testDefineAndEvaluate() throws Exception {
+    System.out.println("define and evaluate");
+    try (EvaluationClient client = new EvaluationClient(server.getPort())) {
+      String text = "Sqrt(x0 * x0 + x1 * x1) - Ln(x1)";
+      int handle = client.define(text).get(10, TimeUnit.SECONDS);
+      assertEquals(handle, (int)client.define("sqrt(x0*x0 + x1*x1) - ln(x1)").get(10, TimeUnit.SECONDS));
+      double[] values = rows(100, 2, 1);
+      check(new Expression(text), 2, values, client.evaluate(handle, 2, values).get(10, TimeUnit.SECONDS));
+      // the text, and extra columns, which are ignored
+      values = rows(50, 3, 2);
+      check(new Expression("x0 / x2"), 3, values, client.evaluate("x0 / x2", 3, values).get(10, TimeUnit.SECONDS));
+      assertEquals(0, client.evaluate(handle, 2, new double[0]).get(10, TimeUnit.SECONDS).length);
+      assertEquals(0, client.getOutstanding());
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    System.out.println("errors");
+    try (EvaluationClient client = new EvaluationClient(server.getPort())) {
+      assertTrue(error(client.define("x0 + * 2")).startsWith("Parse error"));
+      assertEquals("Unknown handle 1000", error(client.evaluate(1000, 1, new double[] { 1 })));
+      assertTrue(error(client.evaluate("Ln(", 1, new double[] { 1 })).startsWith("Parse error"));
+      assertEquals("Missing argument column", error(client.evaluate("x0 + x1", 1, new double[] { 1, 2 })));
+      // the connection is still usable
+      assertEquals(3, client.evaluate("x0 + 1", 1, new double[] { 2 }).get(10, TimeUnit.SECONDS)[0], 0);
+    }
+  }
+
+  @Test
+  public void testPipelining() throws Exception {
+    System.out.println("pipelining");
+    Expression e = new Expression("Exp(x0 / 10) * x1 - x0");
+    try (EvaluationClient client = new EvaluationClient(server.getPort())) {
+      int handle = client.define(e.toString()).get(10, TimeUnit.SECONDS);
+      List<double[]> requests = new ArrayList<double[]>();
+      List<Future<double[]>> responses = new ArrayList<Future<double[]>>();
+      for (int i = 0; i < 2000; ++i) {
+        requests.add(rows(1 + i % 9, 2, i));
+        responses.add(client.evaluate(handle, 2, requests.get(i)));
+      }
+      for (int i = 0; i < requests.size(); ++i) check(e, 2, requests.get(i), responses.get(i).get(10, TimeUnit.SECONDS));
+    }
+    // requests waiting behind others were evaluated together
+    assertTrue(server.getBatchCount() + " batches", server.getBatchCount() < 2000);
+    assertEquals(2001, server.getRequestCount());
+  }
+
+  @Test
+  public void testConcurrentClients() throws Exception {
+    System.out.println("concurrent clients");
+    String[] texts = { "x0 + x1", "x0 * x1 - 3", "Abs(x0) / (x1 + 0.25)" };
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int c = 0; c < 8; ++c) {
+        int seed = c;
+        futures.add(pool.submit(() -> {
+          try (EvaluationClient client = new EvaluationClient(server.getPort())) {
+            // far more outstanding requests than the server accepts, so it has to hold the clients back
+            List<Future<double[]>> responses = new ArrayList<Future<double[]>>();
+            for (int i = 0; i < 500; ++i) responses.add(client.evaluate(texts[i % texts.length], 2, rows(200, 2, seed + i)));
+            for (int i = 0; i < responses.size(); ++i)
+              check(new Expression(texts[i % texts.length]), 2, rows(200, 2, seed + i), responses.get(i).get(30, TimeUnit.SECONDS));
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) future.get(60, TimeUnit.SECONDS);
+    }
+    finally {
+      pool.shutdown();
+    }
+    assertEquals(8 * 500, server.getRequestCount());
+  }
+
+  @Test
+  public void testMalformedRequests() throws Exception {
+    System.out.println("malformed requests");
+    // a single request at a time, so a request that kept its permit would stop the server
+    try (EvaluationServer strict = new EvaluationServer(0, 1, 1, new ExpressionCache(10))) {
+      for (int i = 0; i < 3; ++i) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), strict.getPort())) {
+          socket.setSoTimeout(10000);
+          DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+          out.writeInt(1);
+          if (i == 0) out.writeByte(99);
+          else if (i == 1) {
+            out.writeByte(EvaluationServer.EVALUATE_TEXT);
+            out.writeUTF("x0");
+            out.writeInt(-1);
+            out.writeInt(1);
+          }
+          else {
+            // truncated: the text is never sent
+            out.writeByte(EvaluationServer.DEFINE);
+            out.writeShort(10);
+          }
+          out.flush();
+          socket.shutdownOutput();
+          // the server closes the connection
+          assertEquals(-1, socket.getInputStream().read());
+        }
+      }
+      try (EvaluationClient client = new EvaluationClient(strict.getPort())) {
+        assertEquals(0, (int)client.define("x0 + 1").get(10, TimeUnit.SECONDS));
+        assertEquals(3, client.evaluate(0, 1, new double[] { 2 }).get(10, TimeUnit.SECONDS)[0], 0);
+      }
+    }
+  }
+
+  @Test
+  public void testClientNotReading() throws Exception {
+    System.out.println("client not reading");
+    try (EvaluationServer strict = new EvaluationServer(0, 1, 4, new ExpressionCache(10));
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), strict.getPort())) {
+      // requests for far more response bytes than the socket buffers hold, never read
+      Thread sender = new Thread(() -> {
+        try {
+          DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+          for (int i = 0; i < 40; ++i) {
+            out.writeInt(i);
+            out.writeByte(EvaluationServer.EVALUATE_TEXT);
+            out.writeUTF("x0");
+            out.writeInt(100000);
+            out.writeInt(1);
+            out.write(new byte[800000]);
+          }
+          out.flush();
+        }
+        catch (IOException ex) {
+          // closed at the end of the test
+        }
+      });
+      sender.setDaemon(true);
+      sender.start();
+      Thread.sleep(500);
+      // the evaluation thread is not stuck writing to the other client
+      try (EvaluationClient client = new EvaluationClient(strict.getPort())) {
+        for (int i = 0; i < 10; ++i)
+          assertEquals(i + 1, client.evaluate("x0 + 1", 1, new double[] { i }).get(10, TimeUnit.SECONDS)[0], 0);
+      }
+    }
+  }
+
+  @Test
+  public void testManyExpressions() throws Exception {
+    System.out.println("many expressions");
+    // far more expressions than requests accepted at a time, so batches for new expressions are queued
+    // while the threads are still finishing others
+    int[][] configurations = { { 1, 1 }, { 2, 4 }, { 4, 16 } };
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      for (int[] configuration : configurations) {
+        try (EvaluationServer strict = new EvaluationServer(0, configuration[0], configuration[1], new ExpressionCache(100))) {
+          List<Future<Void>> futures = new ArrayList<Future<Void>>();
+          for (int c = 0; c < 4; ++c) {
+            int seed = c;
+            futures.add(pool.submit(() -> {
+              try (EvaluationClient client = new EvaluationClient(strict.getPort())) {
+                List<Future<double[]>> responses = new ArrayList<Future<double[]>>();
+                for (int i = 0; i < 300; ++i)
+                  responses.add(client.evaluate("x0 * " + (i + seed) % 50 + " + x1", 2, rows(1 + i % 5, 2, i)));
+                for (int i = 0; i < responses.size(); ++i)
+                  check(new Expression("x0 * " + (i + seed) % 50 + " + x1"), 2, rows(1 + i % 5, 2, i),
+                    responses.get(i).get(20, TimeUnit.SECONDS));
+              }
+              return null;
+            }));
+          }
+          for (Future<Void> future : futures) future.get(60, TimeUnit.SECONDS);
+          assertEquals(4 * 300, strict.getRequestCount());
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    System.out.println("close");
+    EvaluationClient client = new EvaluationClient(server.getPort());
+    assertEquals(1, client.evaluate("x0", 1, new double[] { 1 }).get(10, TimeUnit.SECONDS)[0], 0);
+    server.close();
+    assertTrue(failure(client.evaluate("x0", 1, new double[] { 1 })) instanceof IOException);
+    client.close();
+    assertTrue(failure(client.evaluate("x0", 1, new double[] { 1 })) instanceof IOException);
+  }
+}
@@ -0,0 +1,119 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpressionCacheTest {
+
+  @Test
+  public void testNormalize() {
+    System.out.println("normalize");
+    assertEquals("sqr(x0)+x1", ExpressionCache.normalize("  Sqr( X0 ) +\tx1 "));
+    assertEquals("1 2", ExpressionCache.normalize("1   2"));
+    assertEquals("x0<=1 and x1!=2", ExpressionCache.normalize("X0 <= 1 AND x1 != 2"));
+    // "< =" is not an operator
+    assertEquals("x0< =1", ExpressionCache.normalize("x0 < = 1"));
+    // an exponent without digits stays illegal
+    assertEquals("2e -3", ExpressionCache.normalize("2e - 3"));
+    assertEquals("1.5e+ 3", ExpressionCache.normalize("1.5E+ 3"));
+    assertEquals("x2e-3", ExpressionCache.normalize("x2e - 3"));
+    assertEquals("2e-3*x0", ExpressionCache.normalize("2e-3 * x0"));
+  }
+
+  @Test
+  public void testSameAsConstructor() {
+    System.out.println("same as constructor");
+    String[] texts = { "2e - 3", "2E + 3", "2e- 3", "1.5e -2", ".5e - 1", "x2e - 3", "2e-3 * x0", "Max(1 , 2)", "1 < = 2",
+      "x0 + \u0130", "\u212a + 1", "X\u00c50" };
+    assertFalse(Expression.validate("2e - 3").isValid());
+    assertFalse(Expression.validate("x0 + \u0130").isValid());
+    assertEquals("x0+\u0130", ExpressionCache.normalize("X0 + \u0130"));
+    for (String text : texts) {
+      boolean legal = Expression.validate(text).isValid();
+      try {
+        Expression.of(text);
+        assertTrue(text, legal);
+      }
+      catch (Exception ex) {
+        assertFalse(text, legal);
+      }
+    }
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    System.out.println("get");
+    ExpressionCache cache = new ExpressionCache(100);
+    Expression e = cache.get("(X0 + x1) * x2");
+    assertSame(e, cache.get("(x0+x1)*x2"));
+    assertSame(e, cache.get(" ( x0 + X1 ) * X2 "));
+    assertEquals(200, e.getValue(23, 17, 5), 0);
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testOf() throws Exception {
+    System.out.println("of");
+    assertSame(Expression.of("Sqrt(x0 + x1)"), Expression.of("SQRT( x0+x1 )"));
+    assertTrue(Expression.getCache().getHitCount() > 0);
+  }
+
+  @Test(expected=Exception.class)
+  public void testIllegal() throws Exception {
+    System.out.println("illegal");
+    new ExpressionCache(100).get("abc(x0)");
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    System.out.println("eviction");
+    ExpressionCache cache = new ExpressionCache(64);
+    for (int i = 0; i < 1000; ++i) cache.get("x0 + " + i);
+    assertTrue(cache.size() <= 64);
+    assertEquals(1000 - cache.size(), cache.getEvictionCount());
+    Expression e = cache.get("x0 + 999");
+    assertSame(e, cache.get("x0 + 999"));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    System.out.println("expiry");
+    ExpressionCache cache = new ExpressionCache(10, 1, TimeUnit.MILLISECONDS);
+    Expression e = cache.get("x0 * 2");
+    Thread.sleep(5);
+    assertNotSame(e, cache.get("x0 * 2"));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    System.out.println("concurrent");
+    ExpressionCache cache = new ExpressionCache(50);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try
+    {
+      List<Future<Double>> results = new ArrayList<Future<Double>>();
+      for (int t = 0; t < 8; ++t)
+        results.add(executor.submit(() ->
+        {
+          double sum = 0;
+          for (int i = 0; i < 10000; ++i) sum += cache.get("x0 * " + (i % 100)).getValue(1);
+          return sum;
+        }));
+      for (Future<Double> result : results) assertEquals(100 * 99 / 2 * 100, result.get(), 0);
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+    assertEquals(80000, cache.getHitCount() + cache.getMissCount());
+    assertTrue(cache.size() <= 50);
+  }
+}
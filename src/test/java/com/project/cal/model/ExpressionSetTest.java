@@ -0,0 +1,97 @@
+package com.project.cal.model;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpressionSetTest {
+
+  private static final String[] texts = { "(x0 + x1) * x2", "Sqrt(x0 + x1)", "(x0 + x1) * x2 + 1", "x3", "2 * pi",
+    "Pow(x0, 2) - Abs(x1 - x3)", "Sqrt(x0 + x1)", "If(x0 + x1 > 2, (x0 + x1) * x2, Sqrt(x0 + x1))" };
+
+  private static Expression[] expressions() throws Exception {
+    Expression[] expressions = new Expression[texts.length];
+    for (int i = 0; i < texts.length; ++i) expressions[i] = new Expression(texts[i]);
+    return expressions;
+  }
+
+  @Test
+  public void testGetValues() throws Exception {
+    System.out.println("getValues");
+    Expression[] expressions = expressions();
+    ExpressionSet set = new ExpressionSet(expressions);
+    assertEquals(texts.length, set.size());
+    assertEquals(4, set.getVars());
+    double[][] args = { { 1, 2, 3, 4 }, { 0.5, -7, 2.25, 1e10 }, { -1, 1, 0, -0.0 } };
+    for (double[] arg : args) {
+      double[] values = set.getValues(arg);
+      for (int i = 0; i < texts.length; ++i) assertEquals(texts[i], expressions[i].getValue(arg), values[i], 0);
+    }
+  }
+
+  @Test
+  public void testShared() throws Exception {
+    System.out.println("shared");
+    Expression[] expressions = expressions();
+    ExpressionSet set = new ExpressionSet(expressions);
+    int separate = 0;
+    for (Expression e : expressions) separate += e.getSize();
+    // x0 + x1 three times, (x0 + x1) * x2 twice and Sqrt(x0 + x1) twice
+    assertTrue(set.getShared() >= 3);
+    // one output instruction for each expression
+    assertTrue(set.getSize() - set.size() < separate);
+  }
+
+  @Test
+  public void testEvaluate() throws Exception {
+    System.out.println("evaluate");
+    Expression[] expressions = expressions();
+    ExpressionSet set = new ExpressionSet(expressions);
+    int rows = 1000;
+    double[][] columns = new double[4][rows];
+    for (int i = 0; i < rows; ++i) {
+      columns[0][i] = i * 0.25;
+      columns[1][i] = 100 - i;
+      columns[2][i] = i % 7;
+      columns[3][i] = -i;
+    }
+    double[][] out = new double[texts.length][rows];
+    set.evaluate(columns, out, 3, rows);
+    double[] expected = new double[rows];
+    for (int j = 0; j < texts.length; ++j) {
+      expressions[j].evaluate(columns, expected, 3, rows);
+      assertEquals(0, out[j][2], 0);
+      for (int i = 3; i < rows; ++i) assertEquals(texts[j] + " row " + i, expected[i], out[j][i], 0);
+    }
+  }
+
+  @Test(expected=Exception.class)
+  public void testIllegalArgument() throws Exception {
+    System.out.println("illegal argument");
+    new ExpressionSet(new Expression("x0"), new Expression("Factorial(x0)")).getValues(-1);
+  }
+
+  @Test
+  public void testAllocation() throws Exception {
+    System.out.println("getValues allocation");
+    ExpressionSet set = new ExpressionSet(expressions());
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    double[] arg = { 1, 2, 3, 4 };
+    double[] out = new double[set.size()];
+    double sum = 0;
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 5; ++round) {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 100000; ++i) {
+        set.getValues(arg, out);
+        sum += out[0];
+      }
+      allocated = Math.min(allocated, bean.getThreadAllocatedBytes(thread) - before);
+    }
+    assertTrue(sum > 0);
+    assertEquals(0, allocated);
+  }
+}
@@ -0,0 +1,84 @@
+package com.project.cal.model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ExpressionStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String[] formulas = { "x0 * 1.5 + 2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)",
+    "Ln(Abs(x3) + 1) * Pow(x1, 2) + Factorial(4) * pi", "(x0 + x1) * (x0 + x1) - e", "42",
+    "If(x1 < 0 and x3 > 1, Factorial(4) - x0, x2) + Max(x0, x3)",
+    "Sum(Pow(x0, k) / Factorial(k), k, 0, 10) + Integrate(Integrate(t * u, u, 0, x1), t, 0, 1)" };
+
+  private Path store(List<Expression> expressions) throws IOException {
+    Path path = folder.newFile().toPath();
+    ExpressionStore.write(expressions, path);
+    return path;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    System.out.println("round trip");
+    List<Expression> expressions = new ArrayList<Expression>();
+    for (String formula : formulas) expressions.add(new Expression(formula));
+    ExpressionStore store = ExpressionStore.open(store(expressions));
+    assertEquals(formulas.length, store.size());
+    double[] arg = { 1.5, -2, 0.25, 3 };
+    for (int i = 0; i < formulas.length; ++i) {
+      Expression original = expressions.get(i);
+      Expression loaded = store.get(i);
+      assertEquals(original.toString(), store.getText(i));
+      assertEquals(original.toString(), loaded.toString());
+      assertEquals(original.getArgs(), loaded.getArgs());
+      assertEquals(original.getParsedSize(), loaded.getParsedSize());
+      assertEquals(original.getSize(), loaded.getSize());
+      assertEquals(original.getShared(), loaded.getShared());
+      assertEquals(original.getValue(arg), loaded.getValue(arg), 0);
+      assertSame(loaded, store.get(i));
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    System.out.println("empty");
+    assertEquals(0, ExpressionStore.open(store(new ArrayList<Expression>())).size());
+  }
+
+  @Test(expected=IOException.class)
+  public void testNotAStore() throws Exception {
+    System.out.println("not a store");
+    Path path = folder.newFile().toPath();
+    Files.write(path, "x0 + 1".getBytes());
+    ExpressionStore.open(path);
+  }
+
+  @Test
+  public void testCorruptCode() throws Exception {
+    System.out.println("corrupt code");
+    Path path = store(Arrays.asList(new Expression("x0 + x1"), new Expression("x0 * 2")));
+    byte[] bytes = Files.readAllBytes(path);
+    // the first instruction of the first expression: an ADD with nothing on the stack
+    int code = 16 + 2 * 4 + 40;
+    bytes[code + 3] = (byte)Program.ADD;
+    Files.write(path, bytes);
+    ExpressionStore store = ExpressionStore.open(path);
+    try {
+      store.get(0);
+      fail("Corrupt code loaded");
+    }
+    catch (IOException ex) {
+    }
+    assertEquals(42, store.get(1).getValue(21), 0);
+  }
+}
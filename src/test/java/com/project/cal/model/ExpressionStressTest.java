@@ -0,0 +1,189 @@
+package com.project.cal.model;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Evaluates shared expressions from many threads at once and checks every result against
+ * the value computed by a single thread.
+ */
+public class ExpressionStressTest {
+
+  private static final String[] texts = { "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)", "Pow(x0, 3) - Factorial(5) * x1",
+    "Ln(Abs(x2) + 1) * Exp(0 - x0 / 100)", "(x0 + x1) * (x0 + x1) - x2 / 4", "x0 / 3 + x1 / 7 + x2 / 11" };
+  private static final int THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+  private static final int ITERATIONS = 20000;
+
+  private static double[] arg(int thread, int i) {
+    return new double[] { (thread * 31 + i) % 1000 * 0.01, i % 17 - 8, thread % 5 + 0.5 };
+  }
+
+  // Runs the task on every thread at once and rethrows the first failure.
+  private static void race(int threads, Callable<Void> task) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CyclicBarrier start = new CyclicBarrier(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < threads; ++t)
+        futures.add(pool.submit(() -> {
+          start.await();
+          return task.call();
+        }));
+      for (Future<Void> future : futures) future.get();
+    }
+    catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Error) throw (Error)ex.getCause();
+      throw (Exception)ex.getCause();
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testSharedEvaluation() throws Exception {
+    System.out.println("shared evaluation");
+    Expression[] expressions = new Expression[texts.length];
+    Evaluator[] evaluators = new Evaluator[texts.length];
+    for (int i = 0; i < texts.length; ++i) {
+      expressions[i] = new Expression(texts[i]);
+      evaluators[i] = expressions[i].compile();
+    }
+    ExpressionSet set = new ExpressionSet(expressions);
+    int[] next = { 0 };
+    race(THREADS, () -> {
+      int thread;
+      synchronized (next) {
+        thread = next[0]++;
+      }
+      double[] values = new double[texts.length];
+      double[][] columns = new double[3][64];
+      double[] out = new double[64];
+      for (int i = 0; i < ITERATIONS; ++i) {
+        double[] arg = arg(thread, i);
+        set.getValues(arg, values);
+        for (int e = 0; e < texts.length; ++e) {
+          double expected = expressions[e].getValue(arg);
+          assertEquals(texts[e], expected, values[e], 0);
+          assertEquals(texts[e], expected, evaluators[e].eval(arg), 0);
+          columns[0][i % 64] = arg[0];
+          columns[1][i % 64] = arg[1];
+          columns[2][i % 64] = arg[2];
+        }
+        if (i % 64 == 63) {
+          for (int e = 0; e < texts.length; ++e) {
+            expressions[e].evaluate(columns, out, 0, 64);
+            for (int r = 0; r < 64; ++r) {
+              double[] row = { columns[0][r], columns[1][r], columns[2][r] };
+              assertEquals(texts[e], expressions[e].getValue(row), out[r], 0);
+            }
+          }
+        }
+      }
+      return null;
+    });
+    // the single threaded values, computed after the race, agree with those seen during it
+    double[] arg = arg(3, 5);
+    for (int e = 0; e < texts.length; ++e) assertEquals(new Expression(texts[e]).getValue(arg), expressions[e].getValue(arg), 0);
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    System.out.println("cache");
+    ExpressionCache cache = new ExpressionCache(1000);
+    ConcurrentHashMap<String, Expression> seen = new ConcurrentHashMap<String, Expression>();
+    race(THREADS, () -> {
+      for (int i = 0; i < ITERATIONS / 10; ++i) {
+        String text = texts[i / 50 % texts.length] + " + " + (i % 50);
+        Expression e = cache.get(text);
+        Expression first = seen.putIfAbsent(text, e);
+        if (first != null) assertSame(first, e);
+        assertEquals(new Expression(text).getValue(1, 2, 3), e.getValue(1, 2, 3), 0);
+      }
+      return null;
+    });
+    assertEquals(texts.length * 50, cache.size());
+  }
+
+  @Test
+  public void testRacyPublication() throws Exception {
+    System.out.println("racy publication");
+    // expressions handed between threads through a plain field, relying on final field semantics only
+    class Box {
+      Expression expression;
+    }
+    Box box = new Box();
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread writer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 2000; ++i) box.expression = new Expression("x0 * " + i + " + " + i);
+      }
+      catch (Throwable ex) {
+        failure.compareAndSet(null, ex);
+      }
+    });
+    Thread[] readers = new Thread[4];
+    for (int r = 0; r < readers.length; ++r)
+      readers[r] = new Thread(() -> {
+        try {
+          while (writer.isAlive()) {
+            Expression e = box.expression;
+            if (e == null) continue;
+            // x0 * i + i for x0 = 1 is 2 * i, where i is read back from the text
+            String text = e.toString();
+            double i = Double.parseDouble(text.substring(text.lastIndexOf(' ') + 1));
+            assertEquals(2 * i, e.getValue(1), 0);
+          }
+        }
+        catch (Throwable ex) {
+          failure.compareAndSet(null, ex);
+        }
+      });
+    for (Thread reader : readers) reader.start();
+    writer.start();
+    writer.join();
+    for (Thread reader : readers) reader.join();
+    if (failure.get() != null) throw new AssertionError(failure.get());
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    System.out.println("virtual threads");
+    Method factory;
+    try {
+      factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    }
+    catch (NoSuchMethodException ex) {
+      factory = null;
+    }
+    Assume.assumeTrue("No virtual threads in this JDK", factory != null);
+    Expression e = new Expression(texts[0]);
+    ExecutorService pool = (ExecutorService)factory.invoke(null);
+    try {
+      List<Future<Double>> futures = new ArrayList<Future<Double>>();
+      for (int t = 0; t < 10000; ++t) {
+        int thread = t;
+        futures.add(pool.submit(() -> {
+          double sum = 0;
+          for (int i = 0; i < 100; ++i) sum += e.getValue(arg(thread, i));
+          return sum;
+        }));
+      }
+      for (int t = 0; t < futures.size(); ++t) {
+        double sum = 0;
+        for (int i = 0; i < 100; ++i) sum += e.getValue(arg(t, i));
+        assertEquals(sum, futures.get(t).get(), 0);
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+}
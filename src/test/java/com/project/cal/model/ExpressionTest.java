@@ -8,6 +8,14 @@ import org.junit.Test;
 
 import com.project.cal.model.Expression;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+
 import static org.junit.Assert.*;
 
 public class ExpressionTest {
@@ -74,4 +82,377 @@ public class ExpressionTest {
     assertTrue(Math.abs(e4.getValue(13, 12) - 5) < epsilon);
     assertTrue(Math.abs(e5.getValue(123, 4567) - 4690) < epsilon);
   }
+
+  @Test
+  public void testFunctionArguments() throws Exception {
+    System.out.println("function arguments");
+    assertEquals(8, new Expression("Pow(2, 3)").getValue(), epsilon);
+    assertEquals(1024, new Expression("Pow(x0 + 1, 2 * 5)").getValue(1), epsilon);
+    assertEquals(-6, new Expression("-Sqr(2) - 2").getValue(), epsilon);
+    assertEquals(120, new Expression("Factorial(x0)").getValue(5), epsilon);
+    assertEquals(0.5, new Expression("Pow(x0, -1)").getValue(2), epsilon);
+    assertEquals(-1, new Expression("(-1)").getValue(), epsilon);
+    assertEquals(0.004, new Expression("4e-3 * X0").getValue(1), epsilon);
+  }
+
+  @Test(expected=Exception.class)
+  public void testMissingArgument() throws Exception {
+    System.out.println("missing argument");
+    e3.getValue(1, 2);
+  }
+
+  @Test
+  public void testGetValueAllocation() throws Exception {
+    System.out.println("getValue allocation");
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    double[] arg = { 123, 4567, 5 };
+    double sum = 0;
+    long allocated = Long.MAX_VALUE;
+    // the first rounds may see allocations from class loading and compilation
+    for (int round = 0; round < 5; ++round)
+    {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 100000; ++i) sum += e3.getValue(arg) + e5.getValue(arg);
+      long after = bean.getThreadAllocatedBytes(thread);
+      allocated = Math.min(allocated, after - before);
+    }
+    assertTrue(sum > 0);
+    assertEquals(0, allocated);
+  }
+
+  @Test
+  public void testCompile() throws Exception {
+    System.out.println("compile");
+    String[] texts = { "(e)", "Sqr(2)", "(x0 + x1) * x2", "Sqrt(x0 + x1)", "Exp(Ln(x0 + x1))",
+      "Pow(x0 - 1, x2) / Log(x1) + Abs(0 - x2)", "Factorial(x2) - 0 * pi + 1000000" };
+    double[] arg = { 13, 12, 5 };
+    for (String text : texts)
+    {
+      Expression expression = new Expression(text);
+      assertEquals(text, expression.getValue(arg), expression.compile().eval(arg), 0);
+    }
+    assertTrue(Double.isNaN(new Expression("Factorial(x0)").compile().eval(new double[] { -1 })));
+  }
+
+  @Test(timeout = 10000)
+  public void testLargeFactorial() throws Exception {
+    System.out.println("large factorial");
+    // folded while the expression is built, so it must not loop up to the argument
+    assertEquals(Double.POSITIVE_INFINITY, new Expression("Factorial(1e10)").getValue(), 0);
+    assertTrue(Expression.validate("Factorial(1e10)").isValid());
+    Expression e = new Expression("Factorial(x0)");
+    // a long would overflow from 21!, and 170! is the largest below infinity
+    assertEquals(51090942171709440000.0, new Expression("Factorial(21)").getValue(), 0);
+    assertEquals(7.257415615307994E306, new Expression("Factorial(170)").getValue(), 0);
+    double[] xs = { 21, 66, 170, 171, 1e10, Double.POSITIVE_INFINITY };
+    double[] values = { 51090942171709440000.0, 5.443449390774431E92, 7.257415615307994E306, Double.POSITIVE_INFINITY,
+      Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+    for (int i = 0; i < xs.length; ++i) {
+      double x = xs[i], expected = values[i], delta = expected * 1e-14;
+      assertEquals(expected, e.getValue(x), delta);
+      assertEquals(expected, e.compile().eval(new double[] { x }), delta);
+      double[] out = new double[1];
+      e.evaluate(new double[][] { { x } }, out, 0, 1);
+      assertEquals(expected, out[0], delta);
+      assertEquals(expected, Items.FACTORIAL.getValue(x), delta);
+    }
+  }
+
+  @Test
+  public void testCompiledClassUnloading() throws Exception {
+    System.out.println("compiled class unloading");
+    Evaluator evaluator = new Expression("x0 * x0 + 1").compile();
+    assertEquals(10, evaluator.eval(new double[] { 3 }), epsilon);
+    WeakReference<Class<?>> type = new WeakReference<Class<?>>(evaluator.getClass());
+    evaluator = null;
+    for (int i = 0; i < 20 && type.get() != null; ++i)
+    {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(type.get());
+  }
+
+  @Test
+  public void testEvaluate() throws Exception {
+    System.out.println("evaluate");
+    Expression expression = new Expression("Pow(x0, 2) - Sqrt(Abs(x1)) / x0 + Factorial(x1)");
+    int rows = 1000;
+    double[][] columns = new double[2][rows];
+    for (int i = 0; i < rows; ++i)
+    {
+      columns[0][i] = i * 0.25 + 1;
+      columns[1][i] = i % 7 - 1;
+    }
+    double[] out = new double[rows];
+    expression.evaluate(columns, out, 3, rows);
+    assertEquals(0, out[2], 0);
+    for (int i = 3; i < rows; ++i)
+    {
+      if (columns[1][i] < 0) assertTrue(Double.isNaN(out[i]));
+      else assertEquals(expression.getValue(columns[0][i], columns[1][i]), out[i], 0);
+    }
+  }
+
+  @Test
+  public void testEvaluateParallel() throws Exception {
+    System.out.println("evaluate parallel");
+    int rows = 100003;
+    double[][] columns = new double[3][rows];
+    for (int i = 0; i < rows; ++i)
+    {
+      columns[0][i] = i;
+      columns[1][i] = 1.0 / (i + 1);
+      columns[2][i] = i % 13;
+    }
+    double[] expected = new double[rows];
+    e3.evaluate(columns, expected, 0, rows);
+    double[] out = new double[rows];
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try
+    {
+      e3.evaluate(columns, out, 1, rows, pool, 1000);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    assertEquals(0, out[0], 0);
+    for (int i = 1; i < rows; ++i) assertEquals(expected[i], out[i], 0);
+    double[] common = new double[rows];
+    e3.evaluateParallel(columns, common, 0, rows);
+    assertArrayEquals(expected, common, 0);
+  }
+
+  @Test
+  public void testOptimize() throws Exception {
+    System.out.println("optimize");
+    Expression e = new Expression("Sqr(2) * pi / 180 * x0");
+    assertEquals(8, e.getParsedSize());
+    assertEquals(3, e.getSize());
+    assertEquals(4 * Math.PI / 180 * 0.3, e.getValue(0.3), 0);
+    assertEquals(1, new Expression("x0 * 1").getSize());
+    assertEquals(1, new Expression("- -x0").getSize());
+    assertEquals(3, new Expression("x1 + 0").getSize());
+    assertEquals(1, new Expression("x1 + 0", EnumSet.of(Expression.Option.RELAXED)).getSize());
+    assertEquals(5, new Expression("2 * x0 * 3").getSize());
+    assertEquals(3, new Expression("2 * x0 * 3", EnumSet.of(Expression.Option.RELAXED)).getSize());
+    assertEquals(3, new Expression("Exp(Ln(x0))").getSize());
+    assertEquals(1, new Expression("Exp(Ln(x0))", EnumSet.of(Expression.Option.EXP_LN)).getSize());
+    assertEquals(Double.doubleToLongBits(0.0), Double.doubleToLongBits(new Expression("x0 + 0 * 1").getValue(-0.0)));
+  }
+
+  @Test
+  public void testStrengthReduction() throws Exception {
+    System.out.println("strength reduction");
+    EnumSet<Expression.Option> relaxed = EnumSet.of(Expression.Option.RELAXED);
+    assertEquals(1, new Expression("Pow(x0, 0)").getSize());
+    assertEquals(1, new Expression("Pow(x0, 1)").getSize());
+    assertEquals(2, new Expression("Pow(x0, 2)").getSize());
+    assertEquals(3, new Expression("x0 / 4").getSize());
+    assertEquals(3, new Expression("x0 / 3").getSize());
+    assertEquals(3, new Expression("Pow(x0, 3)").getSize());
+    assertEquals(2, new Expression("Pow(x0, 0.5)", relaxed).getSize());
+    assertEquals(4, new Expression("Pow(x0, 3)", relaxed).getSize());
+    // 1 / (x * x^4 * x^8), x^4 computed once and kept in a slot
+    assertEquals(11, new Expression("Pow(x0, -13)", relaxed).getSize());
+    Expression[] exact = { new Expression("Pow(x0, 0) + Pow(x0, 1) * Pow(x0, 2)"), new Expression("x0 / 4 - x0 / -0.125") };
+    java.util.Random random = new java.util.Random(42);
+    for (int i = 0; i < 100000; ++i) {
+      double x = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) : random.nextGaussian();
+      if (Double.isNaN(x)) continue;
+      assertEquals(Double.doubleToLongBits(Math.pow(x, 0) + Math.pow(x, 1) * Math.pow(x, 2)),
+        Double.doubleToLongBits(exact[0].getValue(x)));
+      assertEquals(Double.doubleToLongBits(x / 4 - x / -0.125), Double.doubleToLongBits(exact[1].getValue(x)));
+    }
+    double x = 1.1;
+    assertEquals(Math.pow(x, -13), new Expression("Pow(x0, -13)", relaxed).getValue(x), 1e-15);
+    assertEquals(Math.pow(x, 0.5), new Expression("Pow(x0, 0.5)", relaxed).getValue(x), 0);
+    assertEquals(x / 3, new Expression("x0 / 3", relaxed).getValue(x), 1e-15);
+  }
+
+  @Test(expected=Exception.class)
+  public void testFoldIllegalArgument() throws Exception {
+    System.out.println("fold illegal argument");
+    new Expression("Factorial(0 - 1)").getValue();
+  }
+
+  @Test
+  public void testShared() throws Exception {
+    System.out.println("shared subexpressions");
+    Expression e = new Expression("Sqrt(x0*x0 + x1*x1) + Sqrt(x0*x0 + x1*x1) * Sqrt(x0*x0 + x1*x1) - x0*x0");
+    assertEquals(9, e.getShared());
+    assertEquals(16, e.getSize());
+    double r = Math.sqrt(3 * 3 + 4 * 4);
+    assertEquals(r + r * r - 9, e.getValue(3, 4), 0);
+    assertEquals(r + r * r - 9, e.compile().eval(new double[] { 3, 4 }), 0);
+    double[] out = new double[1];
+    e.evaluate(new double[][] { { 3 }, { 4 } }, out, 0, 1);
+    assertEquals(r + r * r - 9, out[0], 0);
+    assertEquals(0, e3.getShared());
+  }
+
+  @Test
+  public void testComparison() throws Exception {
+    System.out.println("comparison");
+    assertEquals(1, new Expression("x0 < x1").getValue(1, 2), 0);
+    assertEquals(0, new Expression("x0 > x1").getValue(1, 2), 0);
+    assertEquals(1, new Expression("x0 <= 1").getValue(1), 0);
+    assertEquals(1, new Expression("x0 >= 1").getValue(1), 0);
+    assertEquals(1, new Expression("x0 == 2").getValue(2), 0);
+    assertEquals(0, new Expression("x0 != 2").getValue(2), 0);
+    // comparisons bind looser than arithmetic, and before and, which binds before or
+    assertEquals(1, new Expression("x0 + 1 > 2 * x0").getValue(0.5), 0);
+    assertEquals(1, new Expression("x0 > 1 or x0 < 0 and x0 > 1").getValue(2), 0);
+    assertEquals(0, new Expression("(x0 > 1 or x0 < 0) and x0 < 1").getValue(2), 0);
+    assertEquals(1, new Expression("x0 != x0").getValue(Double.NaN), 0);
+    assertEquals(0, new Expression("x0 == x0").getValue(Double.NaN), 0);
+    // a value is true unless it is 0 or NaN
+    assertEquals(1, new Expression("x0 and 1").getValue(-0.5), 0);
+    assertEquals(0, new Expression("x0 or 0").getValue(Double.NaN), 0);
+    assertEquals(2, new Expression("Min(x0, 2)").getValue(3), 0);
+    assertEquals(3, new Expression("Max(x0, 2)").getValue(3), 0);
+    assertEquals(1, new Expression("Clamp(x0, 1, 2)").getValue(-4), 0);
+    assertEquals(1.5, new Expression("Clamp(x0, 1, 2)").getValue(1.5), 0);
+    for (String text : new String[] { "x0 < = 1", "x0 = 1", "!x0", "x0 <> 1" })
+    {
+      try
+      {
+        new Expression(text);
+        fail(text);
+      }
+      catch (Exception ex)
+      {
+      }
+    }
+  }
+
+  @Test
+  public void testConditional() throws Exception {
+    System.out.println("conditional");
+    // only the branch taken is evaluated
+    Expression e = new Expression("If(x0 >= 0, Factorial(x0), 0 - 1)");
+    assertEquals(24, e.getValue(4), 0);
+    assertEquals(-1, e.getValue(-3), 0);
+    assertEquals(0, new Expression("x0 >= 0 and Factorial(x0) > 10").getValue(-3), 0);
+    assertEquals(1, new Expression("x0 < 0 or Factorial(x0) > 10").getValue(-3), 0);
+    assertEquals(-1, e.compile().eval(new double[] { -3 }), 0);
+    // constant conditions and equal branches leave no conditional
+    assertEquals(1, new Expression("If(1 > 0, x0, Factorial(x0))").getSize());
+    assertEquals(1, new Expression("If(x1, x0, x0)").getSize());
+    assertEquals(1, new Expression("0 and x0").getSize());
+    // a value computed in one branch is computed again after the conditional
+    Expression shared = new Expression("If(x0 > x1, Sqr(x0 + x1), x1) + Sqr(x0 + x1)");
+    assertEquals(49 + 49, shared.getValue(4, 3), 0);
+    assertEquals(4 + 49, shared.getValue(3, 4), 0);
+    assertEquals(4 + 49, shared.compile().eval(new double[] { 3, 4 }), 0);
+  }
+
+  @Test
+  public void testConditionalBatch() throws Exception {
+    System.out.println("conditional batch");
+    String[] texts = { "If(x0 > 0.5, Sqrt(x0) * x1, If(x1 == 3, 0 - x0, Min(x0, x1)))",
+      "If(x0 >= 0, Factorial(x1), x0) + If(x1 > 2, x0, Factorial(x1))",
+      "If(x0 < 0.5, Sqr(x0 + x1), 1) - Sqr(x0 + x1) * (x1 != 2 or x0 > 2)", "Clamp(x0 * x1, 0 - 1, 2)" };
+    int rows = 1000;
+    double[][] columns = new double[2][rows];
+    for (int i = 0; i < rows; ++i)
+    {
+      // blocks where every row takes the first branch, then the second, then both mixed
+      columns[0][i] = i < 300 ? 1 : i < 600 ? -1 : Math.sin(i);
+      columns[1][i] = i % 7 - 1;
+    }
+    double[] out = new double[rows];
+    for (String text : texts)
+    {
+      Expression expression = new Expression(text);
+      Evaluator evaluator = expression.compile();
+      expression.evaluate(columns, out, 0, rows);
+      for (int i = 0; i < rows; ++i)
+      {
+        double[] arg = { columns[0][i], columns[1][i] };
+        double expected;
+        try
+        {
+          expected = expression.getValue(arg);
+        }
+        catch (Exception ex)
+        {
+          expected = Double.NaN;
+        }
+        assertEquals(text + " row " + i, expected, out[i], 0);
+        assertEquals(text + " row " + i, expected, evaluator.eval(arg), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testEvaluateBuffers() throws Exception {
+    System.out.println("evaluate buffers");
+    Expression expression = new Expression("Sqrt(x0 * x0 + x1 * x1) - x2 / 2");
+    int rows = 1000, columns = 4;
+    ByteBuffer rowMajor = ByteBuffer.allocateDirect(8 * (rows * columns + 2)).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer columnMajor = ByteBuffer.allocateDirect(8 * rows * columns).order(ByteOrder.LITTLE_ENDIAN);
+    double[][] values = new double[columns][rows];
+    for (int r = 0; r < rows; ++r)
+      for (int c = 0; c < columns; ++c)
+      {
+        values[c][r] = Math.sin(r * columns + c) * 10;
+        rowMajor.putDouble(8 * (2 + r * columns + c), values[c][r]);
+        columnMajor.putDouble(8 * (c * rows + r), values[c][r]);
+      }
+    double[] expected = new double[rows];
+    expression.evaluate(values, expected, 0, rows);
+    // the values after a header of two doubles, and the results after one double
+    ByteBuffer out = ByteBuffer.allocateDirect(8 * (rows + 1)).order(ByteOrder.BIG_ENDIAN);
+    rowMajor.position(16);
+    out.position(8);
+    assertEquals(rows, expression.evaluate(rowMajor, columns, StreamEvaluator.Layout.ROW_MAJOR, out));
+    assertEquals(16, rowMajor.position());
+    assertEquals(8, out.position());
+    for (int r = 0; r < rows; ++r) assertEquals(expected[r], out.getDouble(8 + 8 * r), 0);
+    assertEquals(0, out.getDouble(0), 0);
+    DoubleBuffer results = ByteBuffer.allocateDirect(8 * rows).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    expression.evaluate(columnMajor.asDoubleBuffer(), columns, StreamEvaluator.Layout.COLUMN_MAJOR, results);
+    for (int r = 0; r < rows; ++r) assertEquals(expected[r], results.get(r), 0);
+    // every other row, the variables from separate buffers in any order
+    DoubleBuffer doubles = columnMajor.asDoubleBuffer();
+    expression.evaluate(new DoubleBuffer[] { doubles, doubles.duplicate(), doubles }, new int[] { 0, rows, 2 * rows },
+      new int[] { 2, 2, 2 }, results, rows / 2);
+    for (int r = 0; r < rows / 2; ++r) assertEquals(expected[2 * r], results.get(r), 0);
+    try
+    {
+      expression.evaluate(new DoubleBuffer[] { doubles, doubles, doubles }, new int[] { 0, rows, 2 * rows },
+        new int[] { 1, 1, 3 }, results, rows);
+      fail("Read past the limit");
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      assertEquals("Column 2 has no value for row 999", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testEvaluateBuffersAllocation() throws Exception {
+    System.out.println("evaluate buffers allocation");
+    Expression expression = new Expression("(x0 + x1) * x2 - Sqr(x0)");
+    int rows = 1000;
+    DoubleBuffer in = ByteBuffer.allocateDirect(8 * 3 * rows).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    DoubleBuffer out = ByteBuffer.allocateDirect(8 * rows).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    for (int i = 0; i < 3 * rows; ++i) in.put(i, i % 17);
+    DoubleBuffer[] buffers = { in, in, in };
+    int[] offsets = { 0, 1, 2 }, strides = { 3, 3, 3 };
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < 5; ++round)
+    {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 1000; ++i) expression.evaluate(buffers, offsets, strides, out, rows);
+      allocated = Math.min(allocated, bean.getThreadAllocatedBytes(thread) - before);
+    }
+    // nothing in proportion to the rows, at most the small source object of each call
+    assertTrue(allocated + " bytes", allocated < 1000 * 64);
+  }
 }
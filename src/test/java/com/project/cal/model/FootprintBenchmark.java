@@ -0,0 +1,40 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+/**
+ * Measures the heap retained by parsed expressions and the heap allocated while parsing them.
+ * Run main with the test classpath; the allocation per parse is also shown by ParseBenchmark with -prof gc.
+ */
+public class FootprintBenchmark
+{
+  private static final String[] formulas = { "x0 * 1.5 + 2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)",
+    "Ln(Abs(x3) + 1) * Pow(x1, 2) + Factorial(4) * pi", "(x0 + x1) * x2 - e", "Exp(-x0 * x0 / 2) / Sqrt(2 * pi)" };
+
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    Expression[] expressions = new Expression[count];
+    long before = usedHeap();
+    long allocated = bean.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < count; ++i) expressions[i] = new Expression(formulas[i % formulas.length] + " + " + i);
+    allocated = bean.getThreadAllocatedBytes(thread) - allocated;
+    long retained = usedHeap() - before;
+    System.out.printf("%d expressions: %.1f bytes retained, %.1f bytes allocated per expression%n",
+      count, (double)retained / count, (double)allocated / count);
+    System.out.println(expressions[count - 1]);
+  }
+
+  private static long usedHeap() throws InterruptedException
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; ++i)
+    {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -38,9 +38,38 @@ public class ItemsTest {
     System.out.println(c2.getValue());
   }
 
+  @Test
+  public void testScan() throws Exception {
+    System.out.println("scan");
+    assertEquals(1500, ((ConstItem)Items.toItem("1.5e3", null)).getValue(), 0);
+    assertEquals(0.001, ((ConstItem)Items.toItem("1E-3", null)).getValue(), 0);
+    assertEquals(0.1, ((ConstItem)Items.toItem(".1", null)).getValue(), 0);
+    assertEquals(123456789.123456789, ((ConstItem)Items.toItem("123456789.123456789", null)).getValue(), 0);
+    assertEquals(12, ((VarItem)Items.toItem(" X12 ", null)).getId());
+    assertTrue(Items.toItem("SQRT", null) instanceof SqrtToken);
+    assertTrue(Items.toItem("Sqr", null) instanceof SqrItem);
+    assertEquals("unit_price", ((NameItem)Items.toItem("Unit_Price", null)).getName());
+    assertTrue(Items.toItem("-", new LeftItem()) instanceof SignItem);
+    assertTrue(Items.toItem("-", new SepItem()) instanceof SignItem);
+    assertTrue(Items.toItem("-", c(1)) instanceof SubItem);
+    assertTrue(Items.toItem("+", null) instanceof SkipItem);
+    assertTrue(Items.toItem(",", null) instanceof SepItem);
+    assertTrue(Items.toItem(" , ", c(1)) instanceof SepItem);
+  }
+
+  private static ConstItem c(double value) {
+    return new ConstItem(value);
+  }
+
+  @Test(expected=Exception.class)
+  public void testNotNumber() throws Exception {
+    System.out.println("Not a number");
+    Items.toItem("2e", null);
+  }
+
   @Test(expected=Exception.class)
   public void testNotItem() throws Exception {
     System.out.println("Not a Item");
-    Item token = Items.toItem("abc", null);
+    Item token = Items.toItem("#", null);
   }
 }
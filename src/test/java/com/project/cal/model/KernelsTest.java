@@ -0,0 +1,77 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KernelsTest {
+
+  private static final double[] special = { 0.0, -0.0, 1, -1, Double.NaN, Double.POSITIVE_INFINITY,
+    Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, -Double.MIN_NORMAL };
+
+  private static double[] values(Random random, int n) {
+    double[] x = new double[n];
+    for (int i = 0; i < n; ++i)
+      x[i] = i % 3 == 0 ? special[random.nextInt(special.length)] : Double.longBitsToDouble(random.nextLong());
+    return x;
+  }
+
+  private static void assertBitsEqual(String message, double[] expected, double[] actual) {
+    for (int i = 0; i < expected.length; ++i)
+      assertEquals(message + " at " + i, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+  }
+
+  @Test
+  public void testLoaded() {
+    System.out.println("loaded");
+    // the build runs the tests with the vector module on Java 17 and later
+    boolean module = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    assertEquals(module && !"false".equals(System.getProperty("com.project.cal.vector")), Kernels.INSTANCE.isVector());
+  }
+
+  @Test
+  public void testBitIdentical() {
+    System.out.println("bit identical");
+    Kernels scalar = new Kernels();
+    Kernels kernels = Kernels.INSTANCE;
+    Random random = new Random(42);
+    // lengths around whole numbers of lanes, and values past n left alone
+    for (int n = 0; n <= 40; ++n) {
+      double[] x = values(random, n + 3), y = values(random, n + 3);
+      for (int op = 0; op < 8; ++op) {
+        double[] expected = x.clone(), actual = x.clone();
+        for (Kernels k : new Kernels[] { scalar, kernels }) {
+          double[] z = k == scalar ? expected : actual;
+          switch (op) {
+            case 0: k.add(z, y, n); break;
+            case 1: k.sub(z, y, n); break;
+            case 2: k.mul(z, y, n); break;
+            case 3: k.div(z, y, n); break;
+            case 4: k.neg(z, n); break;
+            case 5: k.sqr(z, n); break;
+            case 6: k.sqrt(z, n); break;
+            case 7: k.abs(z, n); break;
+          }
+        }
+        assertBitsEqual("operation " + op + " n " + n, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    System.out.println("batch");
+    Expression e = new Expression("Sqrt(Abs(x0 * x1 - x2 / (x1 + 0.5))) + Sqr(x2) - -x0");
+    int rows = 1003;
+    Random random = new Random(7);
+    double[][] columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextGaussian() * 100;
+    double[] out = new double[rows];
+    e.evaluate(columns, out, 0, rows);
+    for (int i = 0; i < rows; ++i)
+      assertEquals(Double.doubleToLongBits(e.getValue(columns[0][i], columns[1][i], columns[2][i])), Double.doubleToLongBits(out[i]));
+  }
+}
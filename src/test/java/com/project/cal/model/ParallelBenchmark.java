@@ -0,0 +1,66 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Scaling of parallel batch evaluation with the number of threads in the pool.
+ * Run main with the test classpath, or org.openjdk.jmh.Main ParallelBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ParallelBenchmark
+{
+  @Param({ "1", "2", "4", "8", "16", "32" })
+  public int threads;
+
+  @Param({ "10000000" })
+  public int rows;
+
+  @Param({ "65536" })
+  public int grain;
+
+  private Expression expression;
+  private ForkJoinPool pool;
+  private double[][] columns;
+  private double[] out;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression("Sqrt(x0 * x0 + x1 * x1) / (x2 + 1) - Ln(x0 + 1) * x1");
+    pool = new ForkJoinPool(threads);
+    Random random = new Random(42);
+    columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextDouble();
+    out = new double[rows];
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public double[] evaluate()
+  {
+    expression.evaluate(columns, out, 0, rows, pool, grain);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(ParallelBenchmark.class.getSimpleName()).build()).run();
+  }
+}
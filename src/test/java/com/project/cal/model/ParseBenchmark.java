@@ -0,0 +1,35 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Time to parse a formula into an expression, from tokenizing to the compiled program.
+ * Run main with the test classpath, or org.openjdk.jmh.Main ParseBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+  @Param({ "x0 * 1.5 + 2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1.25) - Ln(Abs(x3) + 1) * Pow(x1, 2) + Factorial(4) * pi" })
+  public String text;
+
+  @Benchmark
+  public Expression parse() throws Exception
+  {
+    return new Expression(text);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(ParseBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,114 @@
+package com.project.cal.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParserTest {
+
+  private static String postfix(String text) {
+    Parser parser = new Parser(text);
+    assertTrue(text, parser.parse());
+    StringBuilder builder = new StringBuilder();
+    for (Item item : parser.getPostfix()) builder.append(builder.length() > 0 ? " " : "").append(item);
+    return builder.toString();
+  }
+
+  private static void assertError(int code, int position, String text) {
+    Parser parser = new Parser(text);
+    assertFalse(text, parser.parse());
+    assertEquals(text, code, parser.getError());
+    assertEquals(text, position, parser.getErrorPosition());
+  }
+
+  // A sum of n terms, x0 + x1 + ... cycling over 10 variables
+  private static String sum(int n) {
+    StringBuilder builder = new StringBuilder(6 * n);
+    for (int i = 0; i < n; ++i) builder.append(i > 0 ? " + x" : "x").append(i % 10);
+    return builder.toString();
+  }
+
+  @Test
+  public void testPostfix() {
+    System.out.println("postfix");
+    assertEquals("X0 X1 X2 * +", postfix("x0 + x1 * x2"));
+    assertEquals("X0 X1 - X2 -", postfix("x0 - x1 - x2"));
+    assertEquals("X0 X1 + X2 *", postfix("(x0 + x1) * x2"));
+    assertEquals("2.0 - 3.0 *", postfix("-2 * 3"));
+    assertEquals("X0 X1 X2 + Pow 1.0 +", postfix("Pow(x0, x1 + x2) + 1"));
+    assertEquals("2.0 Sqr - pi *", postfix("-Sqr(2) * pi"));
+    assertEquals("X0 X1 - *", postfix("x0 * -x1"));
+  }
+
+  @Test
+  public void testText() {
+    System.out.println("text");
+    Parser parser = new Parser("Sqr( x0 )+-1");
+    assertTrue(parser.parse());
+    assertEquals("Sqr ( X0 ) + - 1.0", parser.getText());
+  }
+
+  @Test
+  public void testErrors() {
+    System.out.println("errors");
+    assertError(Parser.UNEXPECTED_END, 0, "");
+    assertError(Parser.UNEXPECTED_END, 4, "x0 +");
+    assertError(Parser.UNEXPECTED_ITEM, 5, "x0 * * x1");
+    assertError(Parser.UNEXPECTED_ITEM, 3, "x0 x1");
+    assertError(Parser.UNEXPECTED_ITEM, 1, "(, x0)");
+    assertError(Parser.UNEXPECTED_ITEM, 2, "x0, x1");
+    assertError(Parser.UNBALANCED_PARENTHESIS, 2, "x0)");
+    assertError(Parser.UNBALANCED_PARENTHESIS, 0, "((x0)");
+    assertError(Parser.ARGUMENT_COUNT, 0, "Pow(x0)");
+    assertError(Parser.ARGUMENT_COUNT, 4, "1 + Sqrt");
+    assertError(Parser.ARGUMENT_COUNT, 0, "Sqr(x0, x1)");
+    assertError(Lexer.ILLEGAL_CHARACTER, 5, "x0 + # 1");
+    assertError(Lexer.UNKNOWN_NAME, 0, "foo(x0)");
+    assertError(Parser.BOUND_VARIABLE, 4, "1 + Sum(i, 2, 0, 1)");
+    assertError(Parser.BOUND_VARIABLE, 0, "Integrate(t, -t, 0, 1)");
+    assertError(Parser.BOUND_VARIABLE, 0, "Integrate(t, t + 1, 0, 1)");
+    assertEquals("t t 0.0 1.0 Integrate", postfix("Integrate(t, (t), 0, 1)"));
+  }
+
+  @Test
+  public void testLongSum() throws Exception {
+    System.out.println("long sum");
+    for (int n : new int[] { 10000, 100000, 1000000 }) {
+      Expression e = new Expression(sum(n));
+      assertEquals(10, e.getArgs());
+      assertEquals(2 * n - 1, e.getParsedSize());
+      assertEquals(n * 4.5, e.getValue(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), 0);
+    }
+  }
+
+  @Test
+  public void testDeepNesting() throws Exception {
+    System.out.println("deep nesting");
+    int n = 100000;
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < n; ++i) builder.append("Abs(-(x0 + ");
+    builder.append('1');
+    for (int i = 0; i < n; ++i) builder.append("))");
+    Expression e = new Expression(builder.toString());
+    assertEquals(n + 1, e.getValue(1), 0);
+    double[] out = new double[3];
+    e.evaluate(new double[][] { { 1, 2, 3 } }, out, 0, 3);
+    assertEquals(2 * n + 1, out[1], 0);
+    assertEquals(3 * n + 1, e.compile().eval(new double[] { 3 }), 0);
+  }
+
+  @Test
+  public void testLinearTime() {
+    System.out.println("linear time");
+    String small = sum(100000);
+    String large = sum(1000000);
+    for (int i = 0; i < 3; ++i) new Parser(small).parse();
+    long t0 = System.nanoTime();
+    for (int i = 0; i < 10; ++i) assertTrue(new Parser(small).parse());
+    long t1 = System.nanoTime();
+    assertTrue(new Parser(large).parse());
+    long t2 = System.nanoTime();
+    // ten times the input should take about ten times as long; a quadratic parser would take a hundred
+    assertTrue("small " + (t1 - t0) / 10 + " ns, large " + (t2 - t1) + " ns", t2 - t1 < 40 * (t1 - t0) / 10);
+  }
+}
@@ -0,0 +1,69 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares adaptive sampling of a curve with 100k uniform getValue calls, in an 800 x 600 pixel view.
+ * The number of points of each method is printed at setup.
+ * Run main with the test classpath, or org.openjdk.jmh.Main PlotBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlotBenchmark
+{
+  @Param({ "Exp(0 - x0 * x0) * 3 - Sqr(x0) / 10", "Ln(Abs(x0)) + 1 / (x0 - 0.5)" })
+  public String text;
+
+  private static final int POINTS = 100000;
+
+  private Expression expression;
+  private Sampler sampler;
+  private double[] values = new double[POINTS + 1];
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression(text);
+    sampler = new Sampler(expression, 0.5);
+    Sampler.Curve curve = adaptive();
+    System.out.printf("%n%s: %d uniform points, %d adaptive points from %d evaluations%n", text, POINTS + 1,
+      curve.size(), curve.getEvaluations());
+  }
+
+  @Benchmark
+  public double[] uniform()
+  {
+    for (int i = 0; i <= POINTS; ++i)
+    {
+      try
+      {
+        values[i] = expression.getValue(-5 + 10.0 * i / POINTS);
+      }
+      catch (Exception ex)
+      {
+        values[i] = Double.NaN;
+      }
+    }
+    return values;
+  }
+
+  @Benchmark
+  public Sampler.Curve adaptive()
+  {
+    return sampler.sample(-5, 5, -5, 5, 800, 600);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(PlotBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,78 @@
+package com.project.cal.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures Sum and Integrate inside an expression, against a Java loop calling getValue of the body for
+ * every term, which pays for the call and the argument array each time. The error of each value against
+ * the exact one is printed at setup. With several cores, the common pool splits the sum and the integrals
+ * that need refining; run with -Djava.util.concurrent.ForkJoinPool.common.parallelism=1 for one core.
+ * Run main with the test classpath, or org.openjdk.jmh.Main ReductionBenchmark -prof gc for the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReductionBenchmark
+{
+  private static final int TERMS = 100000;
+
+  // the exact values of the integrals
+  private static final double GAUSS = 1.7724538509027908;
+  private static final double LOG = -4.0 / 9;
+
+  private Expression gauss;
+  private Expression log;
+  private Expression sum;
+  private Expression term;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    gauss = new Expression("Integrate(Exp(-Sqr(t)), t, -5, 5)");
+    log = new Expression("Integrate(Sqrt(t) * Ln(t), t, 0, 1)");
+    sum = new Expression("Sum(1 / Sqr(k), k, 1, " + TERMS + ")");
+    term = new Expression("1 / Sqr(k)");
+    double basel = 0;
+    for (int k = TERMS; k >= 1; --k) basel += 1.0 / ((double)k * k);
+    System.out.printf("%nerrors: gauss %.3g, log %.3g, sum %.3g%n", gauss.getValue() - GAUSS, log.getValue() - LOG,
+      sum.getValue() - basel);
+  }
+
+  @Benchmark
+  public double integrateGauss() throws Exception
+  {
+    return gauss.getValue();
+  }
+
+  @Benchmark
+  public double integrateLog() throws Exception
+  {
+    return log.getValue();
+  }
+
+  @Benchmark
+  public double sum() throws Exception
+  {
+    return sum.getValue();
+  }
+
+  @Benchmark
+  public double sumByGetValue() throws Exception
+  {
+    double s = 0;
+    for (int k = 1; k <= TERMS; ++k) s += term.getValue(k);
+    return s;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(ReductionBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+  }
+}
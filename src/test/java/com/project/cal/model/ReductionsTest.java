@@ -0,0 +1,148 @@
+package com.project.cal.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReductionsTest {
+
+  @Test
+  public void testIntegrate() throws Exception {
+    System.out.println("integrate");
+    assertEquals(1.0 / 3, new Expression("Integrate(Sqr(t), t, 0, 1)").getValue(), 1e-15);
+    assertEquals(Math.sqrt(Math.PI), new Expression("Integrate(Exp(-Sqr(x)), x, -10, 10)").getValue(), 1e-14);
+    assertEquals(1, new Expression("Integrate(1 / t, t, 1, e)").getValue(), 1e-14);
+    // singularities at a limit
+    assertEquals(2.0 / 3, new Expression("Integrate(Sqrt(x0), x0, 0, 1)").getValue(), 1e-12);
+    assertEquals(-1, new Expression("Integrate(Ln(t), t, 0, 1)").getValue(), 1e-12);
+    // steps and kinks
+    assertEquals(10, new Expression("Integrate(Factorial(t), t, 0, 4)").getValue(), 1e-9);
+    assertEquals(0.29, new Expression("Integrate(Abs(t - c), t, 0, 1)").getValue(0, 0.3), 1e-12);
+    // the free variables are those of the caller, and the bound one is ignored
+    Expression e = new Expression("Integrate(a * Pow(t, x0), t, 0, b)");
+    assertEquals(2 * Math.pow(3, 4) / 4, e.getValue(3, 2, 100, 3), 1e-11);
+    assertEquals(-2 * Math.pow(3, 4) / 4, new Expression("Integrate(a * Pow(t, 3), t, b, 0)").getValue(2, 100, 3), 1e-11);
+    assertEquals(0, new Expression("Integrate(Ln(t), t, x0, x0)").getValue(-1), 0);
+    assertTrue(Double.isNaN(new Expression("Integrate(Exp(-t), t, 0, 1 / x0)").getValue(0)));
+  }
+
+  @Test
+  public void testSum() throws Exception {
+    System.out.println("sum");
+    assertEquals(5050, new Expression("Sum(i, i, 1, 100)").getValue(), 0);
+    assertEquals(Math.PI * Math.PI / 6 - 1e-6, new Expression("Sum(1 / Sqr(k), k, 1, 1000000)").getValue(), 1e-12);
+    assertEquals(Math.E, new Expression("Sum(1 / Factorial(k), k, 0, 20)").getValue(), 1e-15);
+    // from steps by 1 while at most to
+    assertEquals(1.5 + 2.5 + 3.5, new Expression("Sum(i, i, 1.5, 4)").getValue(), 0);
+    assertEquals(0, new Expression("Sum(i, i, 2, 1)").getValue(), 0);
+    assertTrue(Double.isNaN(new Expression("Sum(i, i, 0, 1 / x0)").getValue(0)));
+    // compensated: the small terms are not lost
+    assertEquals(1 + 1e-10, new Expression("Sum(If(i == 0, 1, 1e-16), i, 0, 1000000)").getValue(), 1e-15);
+    try {
+      new Expression("Sum(Factorial(i), i, -1, 1)").getValue();
+      fail("Factorial of -1");
+    }
+    catch (Exception ex) {
+      assertEquals("Evaluation error", ex.getMessage());
+    }
+    try {
+      new Expression("Sum(i, 2, 0, 1)");
+      fail("Bound to a constant");
+    }
+    catch (Exception ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("Variable expected at position 0"));
+    }
+  }
+
+  @Test
+  public void testNested() throws Exception {
+    System.out.println("nested");
+    assertEquals(0.125, new Expression("Integrate(Integrate(x * y, y, 0, x), x, 0, 1)").getValue(), 1e-15);
+    assertEquals(220 + 110, new Expression("Sum(Sum(j, j, 1, i), i, 1, 10) + Sum(i * x0, i, 1, 10)").getValue(110.0 / 55), 1e-12);
+    // the same body and variable is compiled once
+    Expression e = new Expression("Sum(Sqr(i), i, 0, x0) + Sum(Sqr(i), i, 1, x0)");
+    assertEquals(1, e.getProgram().bodies.length);
+    assertEquals(2 * 385, e.getValue(10), 0);
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    System.out.println("batch");
+    Expression e = new Expression("Integrate(Pow(t, x1), t, 0, x0) + Sum(Factorial(i), i, x1, 3)");
+    int rows = 1000;
+    double[][] columns = new double[2][rows];
+    for (int i = 0; i < rows; ++i) {
+      columns[0][i] = i / 100.0;
+      columns[1][i] = i % 7 - 1;
+    }
+    double[] out = new double[rows];
+    e.evaluate(columns, out, 0, rows);
+    for (int i = 0; i < rows; ++i) {
+      if (columns[1][i] < 0) assertTrue(Double.isNaN(out[i]));
+      else assertEquals(e.getValue(columns[0][i], columns[1][i]), out[i], 0);
+    }
+    assertEquals(e.getValue(2, 1), e.compile().eval(new double[] { 2, 1 }), 0);
+    ExpressionSet set = new ExpressionSet(e, new Expression("Sum(x0 * i, i, 1, 4)"));
+    double[] values = new double[2];
+    set.getValues(new double[] { 2, 1 }, values);
+    assertEquals(e.getValue(2, 1), values[0], 0);
+    assertEquals(20, values[1], 0);
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    System.out.println("parallel");
+    Expression sum = new Expression("Sum(1 / Sqr(k) + x0, k, 1, 1000000)");
+    Expression integral = new Expression("Integrate(Sqrt(t) * Ln(t), t, 0, x0)");
+    Expression illegal = new Expression("Sum(Factorial(1000 - k), k, 0, 100000)");
+    double sequentialSum = sum.getValue(1);
+    double sequentialIntegral = integral.getValue(1);
+    ForkJoinPool saved = Reductions.pool;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Reductions.pool = pool;
+    try {
+      assertEquals(sequentialSum, sum.getValue(1), 1e-9);
+      assertEquals(sequentialIntegral, integral.getValue(1), 1e-13);
+      assertEquals(-4.0 / 9, integral.getValue(1), 1e-11);
+      try {
+        illegal.getValue();
+        fail("Factorial of a negative value in a task");
+      }
+      catch (Exception ex) {
+        assertEquals("Evaluation error", ex.getMessage());
+      }
+      // batch evaluation in a pool runs the sums on its own thread
+      double[][] columns = { { 1, 2, 3, 4 } };
+      double[] out = new double[4];
+      sum.evaluate(columns, out, 0, 4, pool, 1);
+      assertEquals(sum.getValue(3), out[2], 1e-9);
+    }
+    finally {
+      Reductions.pool = saved;
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testAllocation() throws Exception {
+    System.out.println("allocation");
+    Expression e = new Expression("Integrate(Sqrt(t) * Exp(-x0 * t), t, 0, 10) + Sum(Pow(x0, -i), i, 1, 1000)");
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocated = Long.MAX_VALUE;
+    double[] arg = new double[2];
+    for (int round = 0; round < 5; ++round) {
+      long before = bean.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < 100; ++i) {
+        arg[0] = 1.5 + i;
+        e.getValue(arg);
+      }
+      allocated = Math.min(allocated, bean.getThreadAllocatedBytes(thread) - before);
+    }
+    // nothing in proportion to the points
+    assertTrue(allocated + " bytes", allocated < 1000);
+  }
+}
@@ -0,0 +1,103 @@
+package com.project.cal.model;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SamplerTest {
+
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 600;
+
+  // The largest vertical distance in pixels between the curve and the polyline inside the view, over a dense grid
+  private static double error(Expression e, Sampler.Curve curve, double from, double to, double bottom, double top)
+    throws Exception {
+    double sy = HEIGHT / (top - bottom);
+    double worst = 0;
+    int segment = 0;
+    for (int i = 0; i <= 100000; ++i) {
+      double x = from + (to - from) * i / 100000;
+      while (segment < curve.size() - 2 && curve.getX(segment + 1) < x) ++segment;
+      double x0 = curve.getX(segment), y0 = curve.getY(segment);
+      double x1 = curve.getX(segment + 1), y1 = curve.getY(segment + 1);
+      if (Double.isNaN(y0) || Double.isNaN(y1) || x < x0) continue;
+      double line = y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+      double y = Math.max(bottom, Math.min(top, e.getValue(x)));
+      worst = Math.max(worst, Math.abs(y - Math.max(bottom, Math.min(top, line))) * sy);
+    }
+    return worst;
+  }
+
+  private static int breaks(Sampler.Curve curve) {
+    int breaks = 0;
+    for (int i = 0; i < curve.size(); ++i)
+      if (Double.isNaN(curve.getY(i))) ++breaks;
+    return breaks;
+  }
+
+  @Test
+  public void testLine() throws Exception {
+    System.out.println("line");
+    Sampler.Curve curve = new Sampler(new Expression("2 * x0 + 1"), 0.5).sample(-10, 10, -30, 30, WIDTH, HEIGHT);
+    assertEquals(2, curve.size());
+    assertEquals(-10, curve.getX(0), 0);
+    assertEquals(21, curve.getY(1), 0);
+  }
+
+  @Test
+  public void testCurve() throws Exception {
+    System.out.println("curve");
+    Expression e = new Expression("Exp(0 - x0 * x0) * 3 - Sqr(x0) / 10");
+    Sampler.Curve curve = new Sampler(e, 0.5).sample(-5, 5, -3, 3, WIDTH, HEIGHT);
+    assertEquals(0, breaks(curve));
+    assertTrue(curve.size() + " points", curve.size() < WIDTH / 2);
+    assertTrue(error(e, curve, -5, 5, -3, 3) <= 0.6);
+    for (int i = 1; i < curve.size(); ++i) assertTrue(curve.getX(i) > curve.getX(i - 1));
+  }
+
+  @Test
+  public void testPole() throws Exception {
+    System.out.println("pole");
+    Expression e = new Expression("1 / (x0 - 0.3)");
+    Sampler.Curve curve = new Sampler(e, 0.5).sample(-2, 2, -10, 10, WIDTH, HEIGHT);
+    assertEquals(1, breaks(curve));
+    for (int i = 0; i < curve.size(); ++i)
+      if (Double.isNaN(curve.getY(i))) assertEquals(0.3, curve.getX(i), 1e-3);
+    assertTrue(error(e, curve, -2, 2, -10, 10) <= 0.6);
+  }
+
+  @Test
+  public void testUndefined() throws Exception {
+    System.out.println("undefined");
+    Expression e = new Expression("Ln(x0)");
+    Sampler.Curve curve = new Sampler(e, 0.5).sample(-1, 3, -5, 2, WIDTH, HEIGHT);
+    assertFalse(Double.isNaN(curve.getY(0)));
+    // the curve starts where Ln becomes defined, within a fraction of a pixel
+    int first = 0;
+    while (Double.isNaN(curve.getY(first)) || curve.getX(first) < 0) ++first;
+    assertEquals(0, curve.getX(first), 4.0 / WIDTH);
+    assertTrue(curve.getEvaluations() < 2000);
+  }
+
+  @Test
+  public void testSampleAll() throws Exception {
+    System.out.println("sample all");
+    List<Sampler> samplers = new ArrayList<Sampler>();
+    for (int i = 0; i < 32; ++i) samplers.add(new Sampler(new Expression("Sqrt(Abs(x0)) * " + i + " - Sqr(x0)"), 1));
+    List<Sampler.Curve> curves = Sampler.sampleAll(samplers, -4, 4, -20, 20, WIDTH, HEIGHT);
+    assertEquals(samplers.size(), curves.size());
+    for (int i = 0; i < samplers.size(); ++i) {
+      Sampler.Curve expected = samplers.get(i).sample(-4, 4, -20, 20, WIDTH, HEIGHT);
+      assertEquals(expected.size(), curves.get(i).size());
+      for (int j = 0; j < expected.size(); ++j) assertEquals(expected.getY(j), curves.get(i).getY(j), 0);
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testTwoVariables() throws Exception {
+    System.out.println("two variables");
+    new Sampler(new Expression("x0 + x1"), 1);
+  }
+}
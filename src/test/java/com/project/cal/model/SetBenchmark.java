@@ -0,0 +1,85 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares evaluating an ExpressionSet with evaluating its expressions one by one, for one row and for a batch.
+ * The expressions are columns of a report over eight variables, many of them sharing subexpressions.
+ * Run main with the test classpath, or org.openjdk.jmh.Main SetBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetBenchmark
+{
+  @Param({ "20", "100" })
+  public int count;
+
+  private static final int ROWS = 10000;
+
+  private Expression[] expressions;
+  private ExpressionSet set;
+  private double[] arg;
+  private double[] values;
+  private double[][] columns;
+  private double[][] out;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    String[] terms = { "(x0 + x1)", "Sqrt(x2 * x2 + x3 * x3)", "(x4 - x5) / (x6 + 1)", "Exp(-x7)" };
+    Random random = new Random(42);
+    expressions = new Expression[count];
+    for (int i = 0; i < count; ++i)
+      expressions[i] = new Expression(terms[i % 4] + " * " + terms[(i / 4) % 4] + " + x" + i % 8 + " * " + i);
+    set = new ExpressionSet(expressions);
+    arg = new double[8];
+    for (int i = 0; i < 8; ++i) arg[i] = random.nextDouble();
+    values = new double[count];
+    columns = new double[8][ROWS];
+    for (double[] column : columns)
+      for (int i = 0; i < ROWS; ++i) column[i] = random.nextDouble();
+    out = new double[count][ROWS];
+  }
+
+  @Benchmark
+  public double[] oneByOne() throws Exception
+  {
+    for (int i = 0; i < count; ++i) values[i] = expressions[i].getValue(arg);
+    return values;
+  }
+
+  @Benchmark
+  public double[] set() throws Exception
+  {
+    set.getValues(arg, values);
+    return values;
+  }
+
+  @Benchmark
+  public double[][] batchOneByOne()
+  {
+    for (int i = 0; i < count; ++i) expressions[i].evaluate(columns, out[i], 0, ROWS);
+    return out;
+  }
+
+  @Benchmark
+  public double[][] batchSet()
+  {
+    set.evaluate(columns, out, 0, ROWS);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(SetBenchmark.class.getSimpleName()).build()).run();
+  }
+}
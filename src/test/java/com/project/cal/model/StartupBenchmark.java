@@ -0,0 +1,51 @@
+package com.project.cal.model;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares the time to get a set of expressions ready at startup: parsing their texts, or opening
+ * an ExpressionStore and decoding all of them or only those used. Run main with the test classpath;
+ * the argument is the number of expressions.
+ */
+public class StartupBenchmark
+{
+  private static final String[] formulas = { "x0 * 1.5 + 2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)",
+    "Ln(Abs(x3) + 1) * Pow(x1, 2) + Factorial(4) * pi", "(x0 + x1) * x2 - e", "Exp(-x0 * x0 / 2) / Sqrt(2 * pi)" };
+
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    String[] texts = new String[count];
+    for (int i = 0; i < count; ++i) texts[i] = formulas[i % formulas.length] + " + " + i;
+    Path path = Files.createTempFile("expressions", ".bin");
+    try
+    {
+      List<Expression> expressions = new ArrayList<Expression>();
+      for (String text : texts) expressions.add(new Expression(text));
+      ExpressionStore.write(expressions, path);
+      System.out.printf("%d expressions, %d bytes stored%n", count, Files.size(path));
+      for (int round = 0; round < 5; ++round)
+      {
+        long start = System.nanoTime();
+        Expression[] parsed = new Expression[count];
+        for (int i = 0; i < count; ++i) parsed[i] = new Expression(texts[i]);
+        long parse = System.nanoTime() - start;
+        start = System.nanoTime();
+        ExpressionStore store = ExpressionStore.open(path);
+        long open = System.nanoTime() - start;
+        double sum = 0;
+        for (int i = 0; i < count; i += 100) sum += store.get(i).getValue(1, 2, 3, 4);
+        long some = System.nanoTime() - start;
+        for (int i = 0; i < count; ++i) store.get(i);
+        long all = System.nanoTime() - start;
+        System.out.printf("parse %.1f ms, open %.2f ms, open and use 1%% %.1f ms, open and load all %.1f ms (%s)%n",
+          parse / 1e6, open / 1e6, some / 1e6, all / 1e6, sum + parsed[count - 1].getValue(1, 2, 3, 4));
+      }
+    }
+    finally
+    {
+      Files.delete(path);
+    }
+  }
+}
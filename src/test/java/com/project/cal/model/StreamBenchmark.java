@@ -0,0 +1,77 @@
+package com.project.cal.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Compares streaming evaluation of a file of rows with reading the rows into heap arrays and evaluating
+ * them one at a time with getValue. Run main with the test classpath; the arguments are the number of rows
+ * and the directory of the temporary files.
+ */
+public class StreamBenchmark
+{
+  private static final int COLUMNS = 4;
+
+  public static void main(String[] args) throws Exception
+  {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+    Path directory = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+    Path input = Files.createTempFile(directory, "rows", ".bin");
+    Path output = Files.createTempFile(directory, "values", ".bin");
+    try
+    {
+      write(input, rows);
+      Expression e = new Expression("Sqrt(x0 * x0 + x1 * x1) * Exp(-x2) + x3 / 2");
+      StreamEvaluator evaluator = new StreamEvaluator(e, COLUMNS, StreamEvaluator.Layout.ROW_MAJOR);
+      for (int i = 0; i < 3; ++i)
+      {
+        System.out.println("stream:  " + evaluator.evaluate(input, output));
+        long start = System.nanoTime();
+        rowByRow(e, input, output);
+        long nanos = System.nanoTime() - start;
+        System.out.printf("per row: %d rows in %.1f ms, %.0f rows/s%n", rows, nanos / 1e6, rows * 1e9 / nanos);
+      }
+    }
+    finally
+    {
+      Files.delete(input);
+      Files.delete(output);
+    }
+  }
+
+  // The way it was done before: the whole file into the heap, then getValue for each row
+  private static void rowByRow(Expression e, Path input, Path output) throws Exception
+  {
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(input)).order(ByteOrder.LITTLE_ENDIAN);
+    int rows = bytes.remaining() / (8 * COLUMNS);
+    double[] row = new double[COLUMNS];
+    ByteBuffer values = ByteBuffer.allocate(8 * rows).order(ByteOrder.LITTLE_ENDIAN);
+    for (int r = 0; r < rows; ++r)
+    {
+      for (int c = 0; c < COLUMNS; ++c) row[c] = bytes.getDouble();
+      values.putDouble(e.getValue(row));
+    }
+    Files.write(output, values.array());
+  }
+
+  private static void write(Path path, int rows) throws IOException
+  {
+    ByteBuffer bytes = ByteBuffer.allocateDirect(8 * COLUMNS * 4096).order(ByteOrder.LITTLE_ENDIAN);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+    {
+      for (int r = 0; r < rows; ++r)
+      {
+        for (int c = 0; c < COLUMNS; ++c) bytes.putDouble((r % 1000) * 0.001 + c);
+        if (!bytes.hasRemaining() || r == rows - 1)
+        {
+          bytes.flip();
+          while (bytes.hasRemaining()) channel.write(bytes);
+          bytes.clear();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.project.cal.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class StreamEvaluatorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final int ROWS = 10000;
+  private static final int COLUMNS = 3;
+
+  private static double value(int row, int column) {
+    return (row % 97) * 0.5 - column;
+  }
+
+  private Path write(boolean rowMajor) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(8 * ROWS * COLUMNS).order(ByteOrder.LITTLE_ENDIAN);
+    if (rowMajor) {
+      for (int r = 0; r < ROWS; ++r)
+        for (int c = 0; c < COLUMNS; ++c) bytes.putDouble(value(r, c));
+    }
+    else {
+      for (int c = 0; c < COLUMNS; ++c)
+        for (int r = 0; r < ROWS; ++r) bytes.putDouble(value(r, c));
+    }
+    Path path = folder.newFile().toPath();
+    Files.write(path, bytes.array());
+    return path;
+  }
+
+  private static double[] read(Path path) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+    double[] values = new double[bytes.remaining() / 8];
+    bytes.asDoubleBuffer().get(values);
+    return values;
+  }
+
+  private void check(StreamEvaluator.Layout layout, int window) throws Exception {
+    Expression e = new Expression("x0 * x2 - Sqrt(x1)");
+    Path output = folder.newFile().toPath();
+    StreamEvaluator evaluator = new StreamEvaluator(e, COLUMNS, layout, window);
+    StreamEvaluator.Statistics statistics = evaluator.evaluate(write(layout == StreamEvaluator.Layout.ROW_MAJOR), output);
+    assertEquals(ROWS, statistics.getRows());
+    assertEquals(8L * ROWS * COLUMNS, statistics.getBytesRead());
+    assertTrue(statistics.getRowsPerSecond() > 0);
+    double[] values = read(output);
+    assertEquals(ROWS, values.length);
+    for (int r = 0; r < ROWS; ++r) {
+      double x1 = value(r, 1);
+      double expected = x1 < 0 ? Double.NaN : value(r, 0) * value(r, 2) - Math.sqrt(x1);
+      assertEquals("row " + r, expected, values[r], 0);
+    }
+  }
+
+  @Test
+  public void testRowMajor() throws Exception {
+    System.out.println("row major");
+    check(StreamEvaluator.Layout.ROW_MAJOR, 32 << 20);
+    // windows of 1000 rows, not a multiple of the block size
+    check(StreamEvaluator.Layout.ROW_MAJOR, 8 * COLUMNS * 1000);
+  }
+
+  @Test
+  public void testColumnMajor() throws Exception {
+    System.out.println("column major");
+    check(StreamEvaluator.Layout.COLUMN_MAJOR, 32 << 20);
+    check(StreamEvaluator.Layout.COLUMN_MAJOR, 8 * COLUMNS * 777);
+  }
+
+  @Test
+  public void testConstant() throws Exception {
+    System.out.println("constant");
+    Path output = folder.newFile().toPath();
+    new StreamEvaluator(new Expression("2 * pi"), COLUMNS, StreamEvaluator.Layout.ROW_MAJOR).evaluate(write(true), output);
+    double[] values = read(output);
+    assertEquals(ROWS, values.length);
+    assertEquals(2 * Math.PI, values[ROWS - 1], 0);
+  }
+
+  @Test(expected=IOException.class)
+  public void testPartialRow() throws Exception {
+    System.out.println("partial row");
+    Path input = folder.newFile().toPath();
+    Files.write(input, new byte[8 * COLUMNS + 8]);
+    new StreamEvaluator(new Expression("x0"), COLUMNS, StreamEvaluator.Layout.ROW_MAJOR).evaluate(input, folder.newFile().toPath());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testMissingColumn() throws Exception {
+    System.out.println("missing column");
+    new StreamEvaluator(new Expression("x3"), COLUMNS, StreamEvaluator.Layout.ROW_MAJOR);
+  }
+}
@@ -0,0 +1,77 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares summarizing an expression over many rows fused with evaluation with evaluating into an output
+ * array first and reducing it afterwards, with a plain two-pass loop and with a Summary.
+ * Run main with the test classpath, or org.openjdk.jmh.Main SummaryBenchmark -prof gc for the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SummaryBenchmark
+{
+  @Param({ "(x0 + x1) * x2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1) - 2 * x0 * x1 + x2" })
+  public String text;
+
+  @Param({ "1000000", "10000000" })
+  public int rows;
+
+  private Expression expression;
+  private double[][] columns;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression(text);
+    Random random = new Random(42);
+    columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextDouble();
+  }
+
+  @Benchmark
+  public double evaluateThenLoop()
+  {
+    double[] out = new double[rows];
+    expression.evaluate(columns, out, 0, rows);
+    double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    for (double x : out)
+    {
+      sum += x;
+      min = Math.min(min, x);
+      max = Math.max(max, x);
+    }
+    double mean = sum / rows, squares = 0;
+    for (double x : out) squares += (x - mean) * (x - mean);
+    return mean + min + max + squares / rows;
+  }
+
+  @Benchmark
+  public Summary evaluateThenSummarize()
+  {
+    double[] out = new double[rows];
+    expression.evaluate(columns, out, 0, rows);
+    return new Summary().add(out, 0, rows);
+  }
+
+  @Benchmark
+  public Summary fused()
+  {
+    return expression.summarize(columns, 0, rows);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(SummaryBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+  }
+}
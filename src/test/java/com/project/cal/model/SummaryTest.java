@@ -0,0 +1,148 @@
+package com.project.cal.model;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SummaryTest {
+
+  private static double[][] columns(int rows) {
+    double[][] columns = new double[2][rows];
+    for (int i = 0; i < rows; ++i) {
+      columns[0][i] = Math.sin(i) * 100;
+      columns[1][i] = i % 11 - 3;
+    }
+    return columns;
+  }
+
+  @Test
+  public void testAdd() {
+    System.out.println("add");
+    double[] values = { 4, Double.NaN, -2, 7.5, 1, Double.NaN, 0 };
+    Summary summary = new Summary().add(values, 0, values.length);
+    assertEquals(5, summary.getCount());
+    assertEquals(2, summary.getNaNCount());
+    assertEquals(10.5, summary.getSum(), 0);
+    assertEquals(2.1, summary.getMean(), 1e-15);
+    assertEquals(-2, summary.getMin(), 0);
+    assertEquals(7.5, summary.getMax(), 0);
+    double squares = 0;
+    for (double x : values) if (!Double.isNaN(x)) squares += (x - 2.1) * (x - 2.1);
+    assertEquals(squares / 5, summary.getVariance(), 1e-12);
+    assertEquals(squares / 4, summary.getSampleVariance(), 1e-12);
+    // one at a time
+    Summary single = new Summary();
+    for (double x : values) single.add(x);
+    assertEquals(summary.toString().length(), single.toString().length());
+    assertEquals(summary.getSum(), single.getSum(), 0);
+    assertEquals(summary.getVariance(), single.getVariance(), 1e-12);
+    assertEquals(2, single.getNaNCount());
+  }
+
+  @Test
+  public void testEmpty() {
+    System.out.println("empty");
+    Summary summary = new Summary().add(new double[] { Double.NaN }, 0, 1);
+    assertEquals(0, summary.getCount());
+    assertEquals(0, summary.getSum(), 0);
+    assertTrue(Double.isNaN(summary.getMean()));
+    assertTrue(Double.isNaN(summary.getMin()));
+    assertTrue(Double.isNaN(summary.getVariance()));
+    assertTrue(Double.isNaN(new Summary().add(1).getSampleVariance()));
+  }
+
+  @Test
+  public void testCompensation() {
+    System.out.println("compensation");
+    // a plain sum loses the small values entirely
+    double[] values = { 1e100, 1, -1e100, 1e-3, 3 };
+    assertEquals(4.001, new Summary().add(values, 0, values.length).getSum(), 1e-15);
+    double[] tenths = new double[1000000];
+    Arrays.fill(tenths, 0.1);
+    assertEquals(100000, new Summary().add(tenths, 0, tenths.length).getSum(), 0);
+    // large offsets do not cancel the variance
+    double[] offset = { 1e9 + 4, 1e9 + 7, 1e9 + 13, 1e9 + 16 };
+    assertEquals(22.5, new Summary().add(offset, 0, 4).getVariance(), 0);
+    assertEquals(Double.POSITIVE_INFINITY, new Summary().add(1).add(Double.POSITIVE_INFINITY).getSum(), 0);
+    assertTrue(Double.isNaN(new Summary().add(new double[] { 1, Double.POSITIVE_INFINITY }, 0, 2).getVariance()));
+  }
+
+  @Test
+  public void testCombine() {
+    System.out.println("combine");
+    Random random = new Random(42);
+    double[] values = new double[10000];
+    for (int i = 0; i < values.length; ++i) values[i] = i % 97 == 0 ? Double.NaN : random.nextGaussian() * 1e3 + 5e5;
+    Summary whole = new Summary().add(values, 0, values.length);
+    Summary parts = new Summary();
+    for (int from = 0; from < values.length; from += 777)
+      parts.combine(new Summary().add(values, from, Math.min(values.length, from + 777)));
+    assertEquals(whole.getCount(), parts.getCount());
+    assertEquals(whole.getNaNCount(), parts.getNaNCount());
+    assertEquals(whole.getSum(), parts.getSum(), 0);
+    assertEquals(whole.getMin(), parts.getMin(), 0);
+    assertEquals(whole.getMax(), parts.getMax(), 0);
+    assertEquals(whole.getVariance(), parts.getVariance(), whole.getVariance() * 1e-12);
+    assertEquals(1e6, whole.getVariance(), 5e4);
+  }
+
+  @Test
+  public void testSummarize() throws Exception {
+    System.out.println("summarize");
+    Expression e = new Expression("x0 / 7 + Factorial(x1)");
+    int rows = 100003;
+    double[][] columns = columns(rows);
+    double[] out = new double[rows];
+    e.evaluate(columns, out, 0, rows);
+    Summary expected = new Summary().add(out, 1, rows);
+    Summary summary = e.summarize(columns, 1, rows);
+    // Factorial of the negative values of x1
+    assertEquals(3 * (rows / 11), summary.getNaNCount(), 3);
+    assertEquals(expected.getNaNCount(), summary.getNaNCount());
+    assertEquals(expected.getSum(), summary.getSum(), 0);
+    assertEquals(expected.getMin(), summary.getMin(), 0);
+    assertEquals(expected.getMax(), summary.getMax(), 0);
+    assertEquals(expected.getVariance(), summary.getVariance(), expected.getVariance() * 1e-12);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Summary parallel = e.summarize(columns, 1, rows, pool, 1000);
+      assertEquals(summary.getCount(), parallel.getCount());
+      assertEquals(summary.getNaNCount(), parallel.getNaNCount());
+      assertEquals(summary.getSum(), parallel.getSum(), 0);
+      assertEquals(summary.getVariance(), parallel.getVariance(), summary.getVariance() * 1e-12);
+    }
+    finally {
+      pool.shutdown();
+    }
+    assertEquals(summary.getSum(), e.summarizeParallel(columns, 1, rows).getSum(), 0);
+    // the same rows from a buffer, row-major
+    DoubleBuffer buffer = ByteBuffer.allocateDirect(16 * rows).asDoubleBuffer();
+    for (int i = 0; i < rows; ++i) buffer.put(2 * i, columns[0][i]).put(2 * i + 1, columns[1][i]);
+    assertEquals(summary.getSum(), e.summarize(new DoubleBuffer[] { buffer, buffer }, new int[] { 2, 3 }, new int[] { 2, 2 },
+      rows - 1).getSum(), 0);
+  }
+
+  @Test
+  public void testSummarizeAllocation() throws Exception {
+    System.out.println("summarize allocation");
+    Expression e = new Expression("x0 * x1 - 1");
+    double[][] columns = columns(1000000);
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocated = Long.MAX_VALUE;
+    // until the loops are compiled, which may take a while on a busy machine
+    for (int round = 0; round < 20 && allocated >= 1000; ++round) {
+      long before = bean.getThreadAllocatedBytes(thread);
+      e.summarize(columns, 0, 1000000);
+      allocated = Math.min(allocated, bean.getThreadAllocatedBytes(thread) - before);
+    }
+    // nothing in proportion to the rows
+    assertTrue(allocated + " bytes", allocated < 1000);
+  }
+}
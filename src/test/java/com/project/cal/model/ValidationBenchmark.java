@@ -0,0 +1,77 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares checking a corpus of formulas, a third of them illegal, by constructing expressions and catching
+ * the exceptions with Expression.validate, and with the bulk validator on the common pool.
+ * Run main with the test classpath, or org.openjdk.jmh.Main ValidationBenchmark -prof gc for the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark
+{
+  private static final String[] SAMPLES = { "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1)", "price * qty + # tax", "Pow(x0, 2) - Ln(x1",
+    "If(x0 < 1, Abs(x1), x2 * 3)", "Max(a, b) + Min(c, 1.5e3)", "Sum(1 / Sqr(k), k, 1, 100) * x0" };
+
+  @Param({ "10000" })
+  public int count;
+
+  private List<String> texts;
+  private BulkValidator validator;
+
+  @Setup
+  public void setUp()
+  {
+    texts = new ArrayList<String>(count);
+    for (int i = 0; i < count; ++i) texts.add(SAMPLES[i % SAMPLES.length].replace("x0", "x" + i % 7));
+    validator = new BulkValidator();
+  }
+
+  @Benchmark
+  public int construct()
+  {
+    int invalid = 0;
+    for (String text : texts)
+    {
+      try
+      {
+        new Expression(text);
+      }
+      catch (Exception ex)
+      {
+        ++invalid;
+      }
+    }
+    return invalid;
+  }
+
+  @Benchmark
+  public int validate()
+  {
+    int invalid = 0;
+    for (String text : texts)
+      if (!Expression.validate(text).isValid()) ++invalid;
+    return invalid;
+  }
+
+  @Benchmark
+  public long bulk()
+  {
+    return validator.validate(texts).getInvalidCount();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(ValidationBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+  }
+}
@@ -0,0 +1,132 @@
+package com.project.cal.model;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class VariableLayoutTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSlots() throws Exception {
+    System.out.println("slots");
+    Expression e = new Expression("Price * Qty + x2 - price / X0");
+    VariableLayout layout = e.getLayout();
+    assertEquals(4, layout.size());
+    assertEquals(4, e.getArgs());
+    assertEquals("[X0, X2, price, qty]", layout.toString());
+    assertEquals(0, layout.slotOf("x0"));
+    assertEquals(1, layout.slotOf("X02"));
+    assertEquals(2, layout.slotOf("PRICE"));
+    assertEquals(3, layout.slotOf("qty"));
+    assertEquals(-1, layout.slotOf("x1"));
+    assertEquals(-1, layout.slotOf("discount"));
+    assertEquals(2, layout.getIndex(1));
+    assertEquals(-1, layout.getIndex(2));
+    // the names follow the highest X index
+    assertEquals(2, layout.getPosition(1));
+    assertEquals(3, layout.getPosition(2));
+    assertEquals(4, layout.getPosition(3));
+    assertEquals(5, layout.getArgumentCount());
+  }
+
+  @Test
+  public void testSparse() throws Exception {
+    System.out.println("sparse");
+    Expression e = new Expression("x5 * 2");
+    assertEquals(1, e.getArgs());
+    assertEquals(0, e.getLayout().slotOf("x5"));
+    assertEquals(6, e.getLayout().getArgumentCount());
+    assertEquals(14, e.getValue(e.getLayout().newFrame().set(0, 7)), 0);
+    assertEquals(14, e.getValue(0, 0, 0, 0, 0, 7), 0);
+  }
+
+  @Test
+  public void testFrame() throws Exception {
+    System.out.println("frame");
+    Expression e = new Expression("price * qty * (1 - discount)");
+    VariableLayout layout = e.getLayout();
+    int price = layout.slotOf("price"), qty = layout.slotOf("qty"), discount = layout.slotOf("discount");
+    VariableLayout.Frame frame = layout.newFrame();
+    for (int i = 1; i <= 100; ++i) {
+      frame.set(price, i * 0.5).set(qty, i).set(discount, 0.25);
+      assertEquals(i * 0.5 * i * 0.75, e.getValue(frame), 1e-12);
+    }
+    assertEquals(0.25, frame.get(discount), 0);
+    // by name, and positionally in the order of the slots
+    frame.set("Price", 10).set("QTY", 3).set("discount", 0.5);
+    assertEquals(15, e.getValue(frame), 0);
+    assertEquals(15, e.getValue(10, 3, 0.5), 0);
+    // a frame of an expression with the same variables
+    assertEquals(30, new Expression("price * qty").getValue(new Expression("price * qty + 0").getLayout().newFrame()
+      .set("price", 10).set("qty", 3)), 0);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testFrameOfOtherLayout() throws Exception {
+    System.out.println("frame of other layout");
+    new Expression("a + b").getValue(new Expression("b + a").getLayout().newFrame());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnknownName() throws Exception {
+    System.out.println("unknown name");
+    new Expression("a + b").getLayout().newFrame().set("c", 1);
+  }
+
+  @Test
+  public void testNames() throws Exception {
+    System.out.println("names");
+    assertEquals(6, new Expression("pi2 + e_1 * x1a").getValue(1, 2, 2.5), 0);
+    assertEquals(Math.PI + Math.E, new Expression("pi + e").getValue(), 0);
+    assertEquals(14, new Expression("Sqrt(rate) + Sqr(RATE) - rate").getValue(4), 0);
+    // a name followed by a parenthesis is an unknown function
+    try {
+      new Expression("rate(2)");
+      fail("No error");
+    }
+    catch (Exception ex) {
+      assertEquals("Parse error: Unknown name at position 0", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void testSet() throws Exception {
+    System.out.println("set");
+    Expression a = new Expression("price * qty");
+    Expression b = new Expression("qty + x1");
+    Expression c = new Expression("price * qty * tax");
+    ExpressionSet set = new ExpressionSet(a, b, c);
+    assertEquals("[X1, price, qty, tax]", set.getLayout().toString());
+    VariableLayout.Frame frame = set.getLayout().newFrame().set("price", 2).set("qty", 5).set("x1", 1).set("tax", 0.5);
+    double[] out = new double[3];
+    set.getValues(frame, out);
+    assertArrayEquals(new double[] { 10, 6, 5 }, out, 0);
+    // price * qty is shared
+    assertTrue(set.getShared() > 0);
+  }
+
+  @Test
+  public void testStore() throws Exception {
+    System.out.println("store");
+    Path path = folder.newFile().toPath();
+    ExpressionStore.write(Arrays.asList(new Expression("x3 + speed * time")), path);
+    Expression e = ExpressionStore.open(path).get(0);
+    assertEquals("[X3, speed, time]", e.getLayout().toString());
+    assertEquals(21, e.getValue(e.getLayout().newFrame().set("x3", 1).set("speed", 4).set("time", 5)), 0);
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    System.out.println("cache");
+    ExpressionCache cache = new ExpressionCache(10);
+    assertSame(cache.get("Unit_Price * n"), cache.get("unit_price*N"));
+  }
+}
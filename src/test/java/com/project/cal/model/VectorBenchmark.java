@@ -0,0 +1,65 @@
+package com.project.cal.model;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares batch evaluation with the Vector API kernels and with the scalar loops, each in its own fork.
+ * Run main on Java 17 or later with the test classpath and target/classes/META-INF/versions/17,
+ * or the multi-release jar, on the class path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VectorBenchmark
+{
+  @Param({ "(x0 + x1) * x2", "Sqrt(x0 * x0 + x1 * x1) / (x2 + 1) - Abs(x0 - x1) * x2", "Exp(x0) + x1 * x2" })
+  public String text;
+
+  @Param({ "1000000" })
+  public int rows;
+
+  private Expression expression;
+  private double[][] columns;
+  private double[] out;
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    expression = new Expression(text);
+    Random random = new Random(42);
+    columns = new double[3][rows];
+    for (double[] column : columns)
+      for (int i = 0; i < rows; ++i) column[i] = random.nextDouble();
+    out = new double[rows];
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "-Dcom.project.cal.vector=false" })
+  public double[] scalar()
+  {
+    if (Kernels.INSTANCE.isVector()) throw new IllegalStateException("Vector kernels loaded");
+    expression.evaluate(columns, out, 0, rows);
+    return out;
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+  public double[] vector()
+  {
+    if (!Kernels.INSTANCE.isVector()) throw new IllegalStateException("Vector kernels not loaded");
+    expression.evaluate(columns, out, 0, rows);
+    return out;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    new Runner(new OptionsBuilder().include(VectorBenchmark.class.getSimpleName()).build()).run();
+  }
+}